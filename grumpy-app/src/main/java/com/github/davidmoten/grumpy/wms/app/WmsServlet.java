@@ -65,4 +65,10 @@ public class WmsServlet extends HttpServlet {
         processor.doGet(req, resp);
     }
 
+    @Override
+    public void destroy() {
+        // stop the render threads and close the image cache
+        processor.close();
+    }
+
 }
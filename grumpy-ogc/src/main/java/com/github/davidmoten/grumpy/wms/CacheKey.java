@@ -0,0 +1,251 @@
+package com.github.davidmoten.grumpy.wms;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import com.github.davidmoten.grumpy.projection.ProjectorBounds;
+
+/**
+ * Canonical key of the image produced by a {@link WmsRequest}. Two requests
+ * have equal keys if and only if they produce the same image (to within a
+ * 128 bit hash collision).
+ * 
+ * <p>
+ * The key is built from the parsed request so that parameter name case,
+ * parameter order, the number format of the BBOX and the version dependent
+ * BBOX axis order make no difference. Parameters whose names start with
+ * {@code _} (for example the cache-busting {@code _OLSALT}) and parameters
+ * that don't affect the image (like {@code REQUEST} or {@code cacheImage})
+ * are ignored.
+ * 
+ * <p>
+ * Equality and hashing only use the precomputed 128 bit hash. The layers and
+ * bounds are carried along to support invalidation.
+ */
+final class CacheKey {
+
+    /**
+     * Parameters that are either represented by parsed fields of the request
+     * or that don't affect the rendered image.
+     */
+    private static final Set<String> EXCLUDED_PARAMETERS = new HashSet<String>(Arrays.asList(
+            "SERVICE", "REQUEST", "VERSION", "LAYERS", "STYLES", "CRS", "SRS", "BBOX", "WIDTH",
+            "HEIGHT", "FORMAT", "TRANSPARENT", "BGCOLOR", "TIME", "EXCEPTIONS", "CACHEIMAGE",
+            "QUERY_LAYERS", "INFO_FORMAT", "FEATURE_COUNT", "I", "J", "X", "Y"));
+
+    private static final char SEPARATOR = '\u0000';
+
+    private final long hash1;
+    private final long hash2;
+    private final List<String> layers;
+    private final ProjectorBounds bounds;
+
+    private CacheKey(long hash1, long hash2, List<String> layers, ProjectorBounds bounds) {
+        this.hash1 = hash1;
+        this.hash2 = hash2;
+        this.layers = layers;
+        this.bounds = bounds;
+    }
+
+    /**
+     * Returns the canonical key for the request. Prefer
+     * {@link WmsRequest#getCacheKey()} which builds the key once per request.
+     * 
+     * @param request
+     *            WMS request
+     * @return key
+     */
+    static CacheKey from(WmsRequest request) {
+        return from(request, request.getLayers(), request.getStyles(), true);
+    }
+
+    /**
+     * Returns the key of the raster of a single layer of the request (before
+     * compositing and encoding). The key is independent of the other layers
+     * of the request and of the image format.
+     * 
+     * @param request
+     *            WMS request
+     * @param index
+     *            index of the layer in the request's layers
+     * @return key
+     */
+    static CacheKey forLayer(WmsRequest request, int index) {
+        List<String> styles = request.getStyles();
+        String style = styles != null && index < styles.size() ? styles.get(index) : "";
+        return from(request, Collections.singletonList(request.getLayers().get(index)),
+                Collections.singletonList(style), false);
+    }
+
+    private static CacheKey from(WmsRequest request, List<String> layers, List<String> styles,
+            boolean includeFormat) {
+        StringBuilder s = new StringBuilder(256);
+        append(s, "LAYERS", join(layers));
+        append(s, "STYLES", join(styles));
+        ProjectorBounds b = request.getBounds();
+        append(s, "CRS", b.getSrs() == null ? "" : b.getSrs().toUpperCase(Locale.ENGLISH));
+        // canonical numeric form of the bbox (adding 0.0 turns -0.0 into 0.0)
+        append(s, "BBOX", Long.toHexString(Double.doubleToLongBits(b.getMinX() + 0.0)) + ","
+                + Long.toHexString(Double.doubleToLongBits(b.getMinY() + 0.0)) + ","
+                + Long.toHexString(Double.doubleToLongBits(b.getMaxX() + 0.0)) + ","
+                + Long.toHexString(Double.doubleToLongBits(b.getMaxY() + 0.0)));
+        append(s, "WIDTH", String.valueOf(request.getWidth()));
+        append(s, "HEIGHT", String.valueOf(request.getHeight()));
+        if (includeFormat)
+            append(s, "FORMAT", request.getFormat() == null ? ""
+                    : request.getFormat().toLowerCase(Locale.ENGLISH));
+        append(s, "TRANSPARENT", String.valueOf(request.isTransparent()));
+        append(s, "BGCOLOR", request.getBackgroundColor() == null ? ""
+                : Integer.toHexString(request.getBackgroundColor().getRGB()));
+        append(s, "TIME", request.getTime() == null ? "" : String.valueOf(request.getTime()
+                .getTime()));
+        for (String parameter : otherParameters(request))
+            s.append(parameter).append(SEPARATOR);
+        byte[] bytes = s.toString().getBytes(StandardCharsets.UTF_8);
+        long[] hash = Murmur3.hash128(bytes, 0, bytes.length, 0);
+        return new CacheKey(hash[0], hash[1],
+                Collections.unmodifiableList(new ArrayList<String>(layers)), b);
+    }
+
+    private static List<String> otherParameters(WmsRequest request) {
+        List<String> list = new ArrayList<String>();
+        if (request.getParameterNames() == null)
+            return list;
+        for (String name : request.getParameterNames()) {
+            String upper = name.toUpperCase(Locale.ENGLISH);
+            if (!name.startsWith("_") && !EXCLUDED_PARAMETERS.contains(upper))
+                list.add(upper + "=" + request.getParam(name));
+        }
+        Collections.sort(list);
+        return list;
+    }
+
+    private static void append(StringBuilder s, String name, String value) {
+        s.append(name).append('=').append(value).append(SEPARATOR);
+    }
+
+    private static String join(List<String> list) {
+        StringBuilder s = new StringBuilder();
+        for (String item : list) {
+            if (s.length() > 0)
+                s.append(',');
+            s.append(item);
+        }
+        return s.toString();
+    }
+
+    List<String> getLayers() {
+        return layers;
+    }
+
+    ProjectorBounds getBounds() {
+        return bounds;
+    }
+
+    /**
+     * Returns the number of bytes written by {@link #writeTo(ByteBuffer)}.
+     * 
+     * @return serialized length in bytes
+     */
+    int serializedLength() {
+        int n = 16 + 4 + 2 + utf8(bounds.getSrs()).length + 32;
+        for (String layer : layers)
+            n += 2 + utf8(layer).length;
+        return n;
+    }
+
+    /**
+     * Writes the key and its layers and bounds to the buffer.
+     * 
+     * @param b
+     *            buffer to write to
+     */
+    void writeTo(ByteBuffer b) {
+        b.putLong(hash1);
+        b.putLong(hash2);
+        b.putInt(layers.size());
+        for (String layer : layers)
+            putString(b, layer);
+        putString(b, bounds.getSrs());
+        b.putDouble(bounds.getMinX());
+        b.putDouble(bounds.getMinY());
+        b.putDouble(bounds.getMaxX());
+        b.putDouble(bounds.getMaxY());
+    }
+
+    /**
+     * Reads a key written by {@link #writeTo(ByteBuffer)}.
+     * 
+     * @param b
+     *            buffer to read from
+     * @return key
+     */
+    static CacheKey readFrom(ByteBuffer b) {
+        long hash1 = b.getLong();
+        long hash2 = b.getLong();
+        int count = b.getInt();
+        if (count < 0 || count > b.remaining())
+            throw new IllegalArgumentException("invalid layer count " + count);
+        List<String> layers = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++)
+            layers.add(getString(b));
+        String srs = getString(b);
+        ProjectorBounds bounds = new ProjectorBounds(srs, b.getDouble(), b.getDouble(),
+                b.getDouble(), b.getDouble());
+        return new CacheKey(hash1, hash2, Collections.unmodifiableList(layers), bounds);
+    }
+
+    private static byte[] utf8(String s) {
+        return (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void putString(ByteBuffer b, String s) {
+        byte[] bytes = utf8(s);
+        b.putShort((short) bytes.length);
+        b.put(bytes);
+    }
+
+    private static String getString(ByteBuffer b) {
+        int length = b.getShort() & 0xffff;
+        byte[] bytes = new byte[length];
+        b.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (hash1 ^ (hash1 >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (!(obj instanceof CacheKey))
+            return false;
+        CacheKey other = (CacheKey) obj;
+        return hash1 == other.hash1 && hash2 == other.hash2;
+    }
+
+    /**
+     * Returns the 128 bit hash as 32 hex characters.
+     * 
+     * @return hex string
+     */
+    String toHex() {
+        return String.format("%016x%016x", hash1, hash2);
+    }
+
+    @Override
+    public String toString() {
+        return "CacheKey [" + toHex() + ", layers=" + layers + "]";
+    }
+
+}
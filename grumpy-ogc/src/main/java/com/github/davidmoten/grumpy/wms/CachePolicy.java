@@ -0,0 +1,193 @@
+package com.github.davidmoten.grumpy.wms;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Server-side rule deciding which GetMap requests for cached layers have their
+ * images cached (see
+ * {@link WmsRequestProcessor.Builder#cachePolicy(CachePolicy)}). A request is
+ * admitted if its size, CRS and scale are within the limits of the policy. A
+ * policy with no limits admits every request.
+ */
+public final class CachePolicy {
+
+    private static final Logger log = LoggerFactory.getLogger(CachePolicy.class);
+
+    private final int maxWidth;
+    private final int maxHeight;
+
+    /**
+     * Upper case srs codes, empty for any.
+     */
+    private final Set<String> srs;
+
+    private final double minScaleDenominator;
+    private final double maxScaleDenominator;
+
+    private CachePolicy(int maxWidth, int maxHeight, Set<String> srs, double minScaleDenominator,
+            double maxScaleDenominator) {
+        this.maxWidth = maxWidth;
+        this.maxHeight = maxHeight;
+        this.srs = srs;
+        this.minScaleDenominator = minScaleDenominator;
+        this.maxScaleDenominator = maxScaleDenominator;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+
+        private int maxWidth = Integer.MAX_VALUE;
+        private int maxHeight = Integer.MAX_VALUE;
+        private final Set<String> srs = new HashSet<String>();
+        private double minScaleDenominator = 0;
+        private double maxScaleDenominator = Double.POSITIVE_INFINITY;
+
+        private Builder() {
+        }
+
+        /**
+         * Only admits requests no larger than the given size in pixels. Large
+         * one-off images (for example for printing) would otherwise displace
+         * many tiles from the cache.
+         *
+         * @param maxWidth
+         *            maximum width in pixels
+         * @param maxHeight
+         *            maximum height in pixels
+         * @return this
+         */
+        public Builder maxSize(int maxWidth, int maxHeight) {
+            if (maxWidth <= 0 || maxHeight <= 0)
+                throw new IllegalArgumentException("maxWidth and maxHeight must be positive");
+            this.maxWidth = maxWidth;
+            this.maxHeight = maxHeight;
+            return this;
+        }
+
+        /**
+         * Only admits requests in one of the given CRSs (for example
+         * {@code EPSG:3857}). May be called more than once. If not called
+         * requests in any CRS are admitted.
+         *
+         * @param srs
+         *            CRS codes
+         * @return this
+         */
+        public Builder srs(String... srs) {
+            return srs(Arrays.asList(srs));
+        }
+
+        public Builder srs(List<String> srs) {
+            for (String s : srs)
+                this.srs.add(s.toUpperCase(Locale.ENGLISH));
+            return this;
+        }
+
+        /**
+         * Only admits requests whose OGC scale denominator (see
+         * {@link WmsUtil#getScale(WmsRequest)}) is within the given range
+         * (inclusive).
+         *
+         * @param minScaleDenominator
+         *            minimum scale denominator (most zoomed in)
+         * @param maxScaleDenominator
+         *            maximum scale denominator (most zoomed out)
+         * @return this
+         */
+        public Builder scaleRange(double minScaleDenominator, double maxScaleDenominator) {
+            if (minScaleDenominator < 0 || maxScaleDenominator < minScaleDenominator)
+                throw new IllegalArgumentException(
+                        "scale range must be non-negative with min <= max");
+            this.minScaleDenominator = minScaleDenominator;
+            this.maxScaleDenominator = maxScaleDenominator;
+            return this;
+        }
+
+        public CachePolicy build() {
+            return new CachePolicy(maxWidth, maxHeight,
+                    Collections.unmodifiableSet(new HashSet<String>(srs)), minScaleDenominator,
+                    maxScaleDenominator);
+        }
+    }
+
+    /**
+     * Returns true if the image for the request may be cached.
+     *
+     * @param request
+     *            the WMS request
+     * @return true if admitted
+     */
+    boolean admits(WmsRequest request) {
+        return admits(request, usesScale() ? scale(request) : Double.NaN);
+    }
+
+    /**
+     * Returns true if the image for the request may be cached, using a scale
+     * already calculated with {@link #scale(WmsRequest)} so that the scale is
+     * calculated once however many policies are consulted.
+     *
+     * @param request
+     *            the WMS request
+     * @param scale
+     *            OGC scale denominator of the request, NaN if not known (not
+     *            admitted if the policy has a scale range)
+     * @return true if admitted
+     */
+    boolean admits(WmsRequest request, double scale) {
+        if (request.getWidth() > maxWidth || request.getHeight() > maxHeight)
+            return false;
+        String requestSrs = request.getBounds().getSrs();
+        if (!srs.isEmpty()
+                && (requestSrs == null || !srs.contains(requestSrs.toUpperCase(Locale.ENGLISH))))
+            return false;
+        // NaN fails both comparisons
+        if (usesScale() && !(scale >= minScaleDenominator && scale <= maxScaleDenominator))
+            return false;
+        return true;
+    }
+
+    /**
+     * Returns true if the policy limits the scale of admitted requests.
+     *
+     * @return true if {@link #admits(WmsRequest, double)} needs the scale
+     */
+    boolean usesScale() {
+        return minScaleDenominator > 0 || maxScaleDenominator < Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Returns the OGC scale denominator of the request or NaN if it could not
+     * be calculated.
+     *
+     * @param request
+     *            the WMS request
+     * @return scale denominator or NaN
+     */
+    static double scale(WmsRequest request) {
+        try {
+            return WmsUtil.getScale(request);
+        } catch (RuntimeException e) {
+            log.warn("could not calculate scale of request, not caching: " + e.getMessage());
+            return Double.NaN;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CachePolicy [maxWidth=" + maxWidth + ", maxHeight=" + maxHeight + ", srs=" + srs
+                + ", minScaleDenominator=" + minScaleDenominator + ", maxScaleDenominator="
+                + maxScaleDenominator + "]";
+    }
+
+}
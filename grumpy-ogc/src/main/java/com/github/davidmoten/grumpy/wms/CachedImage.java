@@ -0,0 +1,168 @@
+package com.github.davidmoten.grumpy.wms;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The encoded bytes of an image held by the {@link ImageCache}, either on the
+ * heap or in off-heap memory.
+ * 
+ * <p>
+ * Off-heap images are reference counted because their memory is reused once
+ * they are evicted. A reader must {@link #retain()} an image before reading
+ * it and {@link #release()} it afterwards.
+ */
+abstract class CachedImage {
+
+    private final long createdTime;
+
+    CachedImage(long createdTime) {
+        this.createdTime = createdTime;
+    }
+
+    /**
+     * Returns a 64 bit hash of the encoded bytes of an image.
+     * 
+     * @param bytes
+     *            encoded image
+     * @return hash
+     */
+    static long contentHash(byte[] bytes) {
+        return Murmur3.hash128(bytes, 0, bytes.length, 0)[0];
+    }
+
+    /**
+     * Returns the time the image was rendered in epoch milliseconds.
+     * 
+     * @return creation time
+     */
+    final long createdTime() {
+        return createdTime;
+    }
+
+    /**
+     * Returns the {@link #contentHash(byte[]) hash} of the encoded bytes of
+     * the image.
+     * 
+     * @return hash
+     */
+    abstract long contentHash();
+
+    /**
+     * Returns the HTTP entity tag (quoted) of the image derived from a hash
+     * of its encoded bytes.
+     * 
+     * @return entity tag
+     */
+    final String etag() {
+        return String.format("\"%016x\"", contentHash());
+    }
+
+    /**
+     * Returns the number of bytes of the encoded image.
+     * 
+     * @return length in bytes
+     */
+    abstract int length();
+
+    /**
+     * Returns the number of bytes of memory this image occupies.
+     * 
+     * @return weight in bytes
+     */
+    abstract int weight();
+
+    /**
+     * Writes the encoded image to the output stream.
+     * 
+     * @param out
+     *            stream to write to
+     * @throws IOException
+     *             on write failure
+     */
+    abstract void writeTo(OutputStream out) throws IOException;
+
+    /**
+     * Returns a copy of the encoded image on the heap (or the bytes themselves
+     * if already on the heap).
+     * 
+     * @return encoded image
+     */
+    abstract byte[] toByteArray();
+
+    /**
+     * Acquires a reference to the image for reading.
+     * 
+     * @return false if the image memory has already been freed
+     */
+    abstract boolean retain();
+
+    /**
+     * Releases a reference acquired by {@link #retain()} or held by the cache.
+     */
+    abstract void release();
+
+    static CachedImage onHeap(byte[] bytes) {
+        return onHeap(bytes, System.currentTimeMillis());
+    }
+
+    static CachedImage onHeap(byte[] bytes, long createdTime) {
+        return new Heap(bytes, createdTime);
+    }
+
+    private static final class Heap extends CachedImage {
+
+        private final byte[] bytes;
+
+        /**
+         * Calculated when first needed so that images that are never given
+         * an entity tag don't pay for hashing. Guarded by this.
+         */
+        private boolean hashed;
+        private long contentHash;
+
+        Heap(byte[] bytes, long createdTime) {
+            super(createdTime);
+            this.bytes = bytes;
+        }
+
+        @Override
+        synchronized long contentHash() {
+            if (!hashed) {
+                contentHash = contentHash(bytes);
+                hashed = true;
+            }
+            return contentHash;
+        }
+
+        @Override
+        int length() {
+            return bytes.length;
+        }
+
+        @Override
+        int weight() {
+            return bytes.length;
+        }
+
+        @Override
+        void writeTo(OutputStream out) throws IOException {
+            out.write(bytes);
+        }
+
+        @Override
+        byte[] toByteArray() {
+            return bytes;
+        }
+
+        @Override
+        boolean retain() {
+            return true;
+        }
+
+        @Override
+        void release() {
+            // garbage collected
+        }
+    }
+}
@@ -3,6 +3,9 @@ package com.github.davidmoten.grumpy.wms;
 import java.util.ArrayList;
 import java.util.List;
 
+import com.github.davidmoten.grumpy.projection.FeatureUtil;
+import com.github.davidmoten.grumpy.projection.ProjectorBounds;
+
 public final class CapabilitiesLayer {
     
     private final String name;
@@ -12,9 +15,13 @@ public final class CapabilitiesLayer {
     private final List<String> crs;
     private final List<String> styles;
     private final List<CapabilitiesLayer> layers;
+    private final ProjectorBounds extent;
+    private final double minScaleDenominator;
+    private final double maxScaleDenominator;
 
     private CapabilitiesLayer(String name, String title, boolean queryable, boolean opaque,
-            List<String> crs, List<String> styles, List<CapabilitiesLayer> layers) {
+            List<String> crs, List<String> styles, List<CapabilitiesLayer> layers,
+            ProjectorBounds extent, double minScaleDenominator, double maxScaleDenominator) {
         this.name = name;
         this.title = title;
         this.crs = crs;
@@ -22,6 +29,9 @@ public final class CapabilitiesLayer {
         this.layers = layers;
         this.queryable = queryable;
         this.opaque = opaque;
+        this.extent = extent;
+        this.minScaleDenominator = minScaleDenominator;
+        this.maxScaleDenominator = maxScaleDenominator;
     }
 
     public boolean isQueryable() {
@@ -52,6 +62,24 @@ public final class CapabilitiesLayer {
         return layers;
     }
 
+    /**
+     * Returns the geographic (EPSG:4326 longitude and latitude) bounds of the
+     * layer.
+     * 
+     * @return extent, the whole world if not set
+     */
+    public ProjectorBounds getExtent() {
+        return extent;
+    }
+
+    public double getMinScaleDenominator() {
+        return minScaleDenominator;
+    }
+
+    public double getMaxScaleDenominator() {
+        return maxScaleDenominator;
+    }
+
     public static Builder builder() {
         return new Builder();
     }
@@ -70,6 +98,9 @@ public final class CapabilitiesLayer {
         private Boolean queryable = null;
         private boolean opaque = true;
         private LayerFeatures layerFeatures;
+        private ProjectorBounds extent;
+        private Double minScaleDenominator;
+        private Double maxScaleDenominator;
 
         private Builder() {
         }
@@ -98,6 +129,18 @@ public final class CapabilitiesLayer {
             return queryable(true);
         }
 
+        public Builder extent(double minLon, double minLat, double maxLon, double maxLat) {
+            this.extent = new ProjectorBounds(FeatureUtil.EPSG_4326, minLon, minLat, maxLon,
+                    maxLat);
+            return this;
+        }
+
+        public Builder scaleRange(double minScaleDenominator, double maxScaleDenominator) {
+            this.minScaleDenominator = minScaleDenominator;
+            this.maxScaleDenominator = maxScaleDenominator;
+            return this;
+        }
+
         public Builder opaque() {
             return opaque(true);
         }
@@ -145,12 +188,25 @@ public final class CapabilitiesLayer {
                     name = layerFeatures.getName();
                 if (queryable == null)
                     queryable = layerFeatures.isQueryable();
+                if (extent == null)
+                    extent = layerFeatures.getExtent();
+                if (minScaleDenominator == null) {
+                    minScaleDenominator = layerFeatures.getMinScaleDenominator();
+                    maxScaleDenominator = layerFeatures.getMaxScaleDenominator();
+                }
             }
             if (title == null)
                 title = name;
             if (queryable == null)
                 queryable = false;
-            return new CapabilitiesLayer(name, title, queryable, opaque, crs, styles, layers);
+            if (extent == null)
+                extent = new ProjectorBounds(FeatureUtil.EPSG_4326, -180, -90, 180, 90);
+            if (minScaleDenominator == null) {
+                minScaleDenominator = 0.0;
+                maxScaleDenominator = Double.POSITIVE_INFINITY;
+            }
+            return new CapabilitiesLayer(name, title, queryable, opaque, crs, styles, layers,
+                    extent, minScaleDenominator, maxScaleDenominator);
         }
     }
 
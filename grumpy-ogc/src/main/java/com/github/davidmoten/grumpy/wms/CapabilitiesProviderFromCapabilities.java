@@ -16,6 +16,7 @@ import org.apache.commons.text.StringEscapeUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.github.davidmoten.grumpy.projection.ProjectorBounds;
 import com.jamesmurty.utils.XMLBuilder;
 
 public final class CapabilitiesProviderFromCapabilities implements CapabilitiesProvider {
@@ -91,24 +92,30 @@ public final class CapabilitiesProviderFromCapabilities implements CapabilitiesP
                 xml = xml.element("CRS").text(crs).up();
             }
 
+            ProjectorBounds extent = layer.getExtent();
             xml = xml.e("EX_GeographicBoundingBox") //
-                    .element("westBoundLongitude").text("-180").up() //
-                    .element("eastBoundLongitude").text("180").up() //
-                    .element("southBoundLatitude").text("-90").up() //
-                    .element("northBoundLatitude").text("90").up() //
+                    .element("westBoundLongitude").text(format(extent.getMinX())).up() //
+                    .element("eastBoundLongitude").text(format(extent.getMaxX())).up() //
+                    .element("southBoundLatitude").text(format(extent.getMinY())).up() //
+                    .element("northBoundLatitude").text(format(extent.getMaxY())).up() //
                     .up();
             // wms 1.3.0 expects lat, long order in coordinates
             xml = xml.e("BoundingBox") //
                     .a("CRS", "EPSG:4326") //
-                    .a("minx", "-90") //
-                    .a("miny", "-180") //
-                    .a("maxx", "90") //
-                    .a("maxy", "180") //
+                    .a("minx", format(extent.getMinY())) //
+                    .a("miny", format(extent.getMinX())) //
+                    .a("maxx", format(extent.getMaxY())) //
+                    .a("maxy", format(extent.getMaxX())) //
                     .up();
-//             xml = xml.e("MaxScaleDenominator").text("500000000").up();
             for (String style : layer.getStyles()) {
                 xml = xml.element("Style").element("Name").text(style).up().up();
             }
+            if (layer.getMinScaleDenominator() > 0)
+                xml = xml.e("MinScaleDenominator").text(format(layer.getMinScaleDenominator()))
+                        .up();
+            if (layer.getMaxScaleDenominator() < Double.POSITIVE_INFINITY)
+                xml = xml.e("MaxScaleDenominator").text(format(layer.getMaxScaleDenominator()))
+                        .up();
             return xml.asString();
         } catch (ParserConfigurationException e) {
             throw new RuntimeException(e);
@@ -119,6 +126,16 @@ public final class CapabilitiesProviderFromCapabilities implements CapabilitiesP
         }
     }
 
+    /**
+     * Formats whole numbers without a decimal point.
+     */
+    private static String format(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15)
+            return Long.toString((long) value);
+        else
+            return Double.toString(value);
+    }
+
     private String formats(List<String> formats) {
         StringBuilder s = new StringBuilder();
         for (String format : formats) {
@@ -0,0 +1,182 @@
+package com.github.davidmoten.grumpy.wms;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Composites layer rasters onto the request image with source-over blending
+ * directly on their {@code int} pixel arrays, avoiding the generic Java2D blit
+ * loop that {@code Graphics2D.drawImage} uses on headless servers. Pixels are
+ * blended in premultiplied form and stored back non-premultiplied. Fully
+ * transparent and fully opaque source pixels (the vast majority for map
+ * layers) take fast paths. Blending happens on the calling (render) thread so
+ * that the render scheduler's limits on concurrent work hold.
+ */
+final class Compositor {
+
+    /**
+     * Unpremultiplied colour component by alpha (high byte) and premultiplied
+     * component (low byte), avoiding divisions when blending.
+     */
+    private static final byte[] UNPREMULTIPLY = createUnpremultiplyTable();
+
+    private Compositor() {
+        // prevent instantiation
+    }
+
+    /**
+     * Returns true if {@link #drawOver(BufferedImage, BufferedImage, int)}
+     * supports the images, that is the destination is {@code TYPE_INT_ARGB}
+     * and the source is {@code TYPE_INT_ARGB} or {@code TYPE_INT_RGB}.
+     *
+     * @param dst
+     *            destination image
+     * @param src
+     *            source image
+     * @return true if supported
+     */
+    static boolean supports(BufferedImage dst, BufferedImage src) {
+        return dst.getType() == BufferedImage.TYPE_INT_ARGB
+                && (src.getType() == BufferedImage.TYPE_INT_ARGB
+                        || src.getType() == BufferedImage.TYPE_INT_RGB)
+                && dst.getSampleModel() instanceof SinglePixelPackedSampleModel
+                && src.getSampleModel() instanceof SinglePixelPackedSampleModel;
+    }
+
+    /**
+     * Draws the source image over the destination image with its top left
+     * corner at (0, y), as {@code Graphics2D.drawImage} with the default
+     * {@code SRC_OVER} composite would (to within rounding).
+     *
+     * @param dst
+     *            destination image
+     * @param src
+     *            source image
+     * @param y
+     *            row of the destination to draw the first row of the source
+     *            at
+     */
+    static void drawOver(BufferedImage dst, BufferedImage src, int y) {
+        Pixels d = new Pixels(dst.getRaster());
+        Pixels s = new Pixels(src.getRaster());
+        boolean opaque = src.getType() == BufferedImage.TYPE_INT_RGB;
+        int width = Math.min(dst.getWidth(), src.getWidth());
+        int top = Math.max(0, y);
+        int bottom = Math.min(dst.getHeight(), y + src.getHeight());
+        if (width <= 0 || bottom <= top)
+            return;
+        blendRows(d, s, opaque, width, top, bottom, y);
+    }
+
+    /**
+     * Blends destination rows {@code from} (inclusive) to {@code to}
+     * (exclusive) with the source rows offset by {@code dy}.
+     */
+    private static void blendRows(Pixels d, Pixels s, boolean opaque, int width, int from,
+            int to, int dy) {
+        int[] dst = d.data;
+        int[] src = s.data;
+        for (int row = from; row < to; row++) {
+            int di = d.index(0, row);
+            int si = s.index(0, row - dy);
+            if (opaque) {
+                for (int x = 0; x < width; x++)
+                    dst[di + x] = src[si + x] | 0xff000000;
+                continue;
+            }
+            for (int x = 0; x < width; x++) {
+                int sp = src[si + x];
+                int sa = sp >>> 24;
+                if (sa == 0)
+                    continue;
+                int dp = dst[di + x];
+                int da = dp >>> 24;
+                if (sa == 255 || da == 0)
+                    dst[di + x] = sp;
+                else if (da == 255)
+                    dst[di + x] = blendOverOpaque(sp, sa, dp);
+                else
+                    dst[di + x] = blend(sp, sa, dp);
+            }
+        }
+    }
+
+    /**
+     * Returns the result of the source pixel over the opaque destination
+     * pixel. The result is opaque so needs no unpremultiplying, and the red
+     * and blue components are blended together in separate 16 bit lanes of
+     * an {@code int}.
+     */
+    private static int blendOverOpaque(int sp, int sa, int dp) {
+        int inverse = 255 - sa;
+        // each lane is at most 255 * 255 + 128 so doesn't overflow
+        int rb = (sp & 0xff00ff) * sa + (dp & 0xff00ff) * inverse + 0x800080;
+        rb = ((rb + ((rb >>> 8) & 0xff00ff)) >>> 8) & 0xff00ff;
+        int g = ((sp >> 8) & 0xff) * sa + ((dp >> 8) & 0xff) * inverse + 128;
+        g = (g + (g >> 8)) >> 8;
+        return 0xff000000 | rb | (g << 8);
+    }
+
+    /**
+     * Returns the non-premultiplied result of the source pixel (with alpha
+     * strictly between 0 and 255) over the destination pixel (with non-zero
+     * alpha).
+     */
+    private static int blend(int sp, int sa, int dp) {
+        int da = dp >>> 24;
+        int inverse = 255 - sa;
+        // destination alpha scaled by the source's transparency
+        int dw = mul(da, inverse);
+        int a = sa + dw;
+        int r = unpremultiply(mul((sp >> 16) & 0xff, sa) + mul((dp >> 16) & 0xff, dw), a);
+        int g = unpremultiply(mul((sp >> 8) & 0xff, sa) + mul((dp >> 8) & 0xff, dw), a);
+        int b = unpremultiply(mul(sp & 0xff, sa) + mul(dp & 0xff, dw), a);
+        return (a << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    /**
+     * Returns a * b / 255 rounded, for a and b in 0..255.
+     */
+    private static int mul(int a, int b) {
+        int t = a * b + 128;
+        return (t + (t >> 8)) >> 8;
+    }
+
+    private static int unpremultiply(int c, int a) {
+        return UNPREMULTIPLY[(a << 8) | c] & 0xff;
+    }
+
+    private static byte[] createUnpremultiplyTable() {
+        byte[] table = new byte[256 * 256];
+        for (int a = 1; a < 256; a++)
+            for (int c = 0; c < 256; c++)
+                table[(a << 8) | c] = (byte) Math.min(255, (c * 255 + (a >> 1)) / a);
+        return table;
+    }
+
+    /**
+     * The pixel array of a raster and how to index it.
+     */
+    private static final class Pixels {
+
+        final int[] data;
+        private final int stride;
+        private final int offset;
+
+        Pixels(WritableRaster raster) {
+            DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+            this.data = buffer.getData();
+            this.stride = ((SinglePixelPackedSampleModel) raster.getSampleModel())
+                    .getScanlineStride();
+            this.offset = buffer.getOffset() - raster.getSampleModelTranslateY() * stride
+                    - raster.getSampleModelTranslateX();
+        }
+
+        int index(int x, int y) {
+            return offset + y * stride + x;
+        }
+    }
+
+}
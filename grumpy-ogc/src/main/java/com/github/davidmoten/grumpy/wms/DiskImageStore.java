@@ -0,0 +1,394 @@
+package com.github.davidmoten.grumpy.wms;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores encoded images in append-only segment files in a directory. Segments
+ * are memory-mapped so reads are copies out of the page cache and do not
+ * block writers. An in-memory index maps the 128 bit hash of the
+ * {@link CacheKey} to the location of the latest record for that key.
+ * 
+ * <p>
+ * When the store is opened the existing segments are scanned in order to
+ * rebuild the index, so images written before a restart are served straight
+ * away. Removals are recorded as tombstone records so that they also survive
+ * a restart. When the store exceeds its maximum size the oldest segment is
+ * deleted.
+ * 
+ * <p>
+ * Reads take no lock so a reader may hold the location of a record whose
+ * segment is concurrently deleted. Segment ids therefore only ever increase
+ * (even across {@link #clear()}) so a location never refers to a different
+ * segment, and the key of the record is checked on every read.
+ * 
+ * <p>
+ * Record layout: magic (int), crc32 of key and value (int), key length (int),
+ * value length (int, -1 for a tombstone), image creation time (long), key
+ * (see {@link CacheKey#writeTo(ByteBuffer)}), value.
+ */
+final class DiskImageStore implements ImageStore {
+
+    private static final Logger log = LoggerFactory.getLogger(DiskImageStore.class);
+
+    private static final int MAGIC = 0x47524d33;
+
+    private static final int TOMBSTONE = -1;
+
+    private static final int HEADER_BYTES = 24;
+
+    static final int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * Smallest segment size used when the segment size is reduced to fit the
+     * maximum size of the store.
+     */
+    static final int MIN_SEGMENT_BYTES = 64 * 1024;
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)\\.dat");
+
+    private final File directory;
+
+    private final int segmentBytes;
+
+    private final int maxSegments;
+
+    private final ConcurrentHashMap<CacheKey, Location> index = new ConcurrentHashMap<CacheKey, Location>();
+
+    private final LayerIndex layerIndex = new LayerIndex();
+
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<Integer, Segment>();
+
+    // guarded by this
+    private Segment active;
+
+    /**
+     * Id of the next segment created, never reused. Guarded by this.
+     */
+    private int nextSegmentId = 1;
+
+    private DiskImageStore(File directory, long maxBytes, int segmentBytes) {
+        this.directory = directory;
+        // the store always has at least two segments so that the oldest can
+        // be dropped without losing the newest images
+        this.segmentBytes = (int) Math.min(segmentBytes, maxBytes / 2);
+        this.maxSegments = (int) Math.min(Integer.MAX_VALUE, maxBytes / this.segmentBytes);
+    }
+
+    /**
+     * Opens the store in the given directory (creating it if required) and
+     * indexes any segments already there. The store holds at least two
+     * segments so if {@code maxBytes} is less than two segments the segment
+     * size is reduced to half of {@code maxBytes}.
+     * 
+     * @param directory
+     *            directory holding the segment files
+     * @param maxBytes
+     *            maximum total size of the segment files, at least twice
+     *            {@link #MIN_SEGMENT_BYTES}
+     * @param segmentBytes
+     *            size of each segment file
+     * @return store
+     * @throws IOException
+     *             if the directory or segments cannot be read
+     * @throws IllegalArgumentException
+     *             if maxBytes is less than twice {@link #MIN_SEGMENT_BYTES}
+     *             or segmentBytes is less than {@link #MIN_SEGMENT_BYTES}
+     */
+    static DiskImageStore open(File directory, long maxBytes, int segmentBytes)
+            throws IOException {
+        if (segmentBytes < MIN_SEGMENT_BYTES)
+            throw new IllegalArgumentException("segmentBytes must be at least "
+                    + MIN_SEGMENT_BYTES);
+        if (maxBytes < 2L * MIN_SEGMENT_BYTES)
+            throw new IllegalArgumentException("maxBytes must be at least "
+                    + 2 * MIN_SEGMENT_BYTES);
+        if (!directory.exists() && !directory.mkdirs())
+            throw new IOException("could not create directory " + directory);
+        DiskImageStore store = new DiskImageStore(directory, maxBytes, segmentBytes);
+        store.load();
+        return store;
+    }
+
+    private void load() throws IOException {
+        File[] files = directory.listFiles();
+        List<Integer> ids = new ArrayList<Integer>();
+        if (files != null)
+            for (File file : files) {
+                Matcher m = SEGMENT_NAME.matcher(file.getName());
+                if (m.matches())
+                    ids.add(Integer.parseInt(m.group(1)));
+            }
+        Collections.sort(ids);
+        for (int id : ids) {
+            Segment segment = Segment.open(segmentFile(id), id, segmentBytes);
+            segments.put(id, segment);
+            scan(segment);
+            active = segment;
+            nextSegmentId = id + 1;
+        }
+        // the maximum size may have been reduced since the last run
+        while (segments.size() > maxSegments)
+            dropOldest();
+        log.info("opened disk image store " + directory + " with " + segments.size()
+                + " segments and " + index.size() + " images");
+    }
+
+    private void scan(Segment segment) {
+        ByteBuffer b = segment.buffer.duplicate();
+        int position = 0;
+        while (position + HEADER_BYTES <= b.capacity()) {
+            b.position(position);
+            if (b.getInt() != MAGIC)
+                break;
+            int crc = b.getInt();
+            int keyLength = b.getInt();
+            int valueLength = b.getInt();
+            long createdTime = b.getLong();
+            int length = HEADER_BYTES + keyLength + Math.max(0, valueLength);
+            if (keyLength < 0 || valueLength < TOMBSTONE || position + length > b.capacity())
+                break;
+            byte[] keyBytes = new byte[keyLength];
+            b.get(keyBytes);
+            byte[] value = new byte[Math.max(0, valueLength)];
+            b.get(value);
+            if (crc != crc(keyBytes, value))
+                // torn write, ignore the rest of the segment
+                break;
+            CacheKey key;
+            try {
+                key = CacheKey.readFrom(ByteBuffer.wrap(keyBytes));
+            } catch (RuntimeException e) {
+                break;
+            }
+            if (valueLength == TOMBSTONE) {
+                index.remove(key);
+                layerIndex.remove(key);
+            } else {
+                index.put(key,
+                        new Location(segment.id, position + HEADER_BYTES + keyLength, valueLength,
+                                createdTime));
+                layerIndex.add(key);
+            }
+            position += length;
+        }
+        segment.position = position;
+    }
+
+    @Override
+    public CachedImage get(CacheKey key) {
+        Location location = index.get(key);
+        if (location == null)
+            return null;
+        Segment segment = segments.get(location.segment);
+        if (segment == null)
+            return null;
+        ByteBuffer b = segment.buffer.duplicate();
+        byte[] keyBytes = toBytes(key);
+        int keyOffset = location.valueOffset - keyBytes.length;
+        if (keyOffset < HEADER_BYTES)
+            return null;
+        b.position(keyOffset);
+        byte[] storedKey = new byte[keyBytes.length];
+        b.get(storedKey);
+        if (!Arrays.equals(keyBytes, storedKey)) {
+            log.warn("disk image store record does not match key " + key);
+            return null;
+        }
+        byte[] bytes = new byte[location.length];
+        b.get(bytes);
+        return CachedImage.onHeap(bytes, location.createdTime);
+    }
+
+    @Override
+    public synchronized void put(CacheKey key, CachedImage image) {
+        Location existing = index.get(key);
+        if (existing != null && existing.createdTime == image.createdTime())
+            return;
+        byte[] keyBytes = toBytes(key);
+        byte[] bytes = image.toByteArray();
+        int offset = append(keyBytes, bytes, bytes.length, image.createdTime());
+        if (offset >= 0) {
+            index.put(key, new Location(active.id, offset + HEADER_BYTES + keyBytes.length,
+                    bytes.length, image.createdTime()));
+            layerIndex.add(key);
+        }
+    }
+
+    @Override
+    public synchronized void remove(CacheKey key) {
+        if (index.remove(key) != null) {
+            layerIndex.remove(key);
+            append(toBytes(key), new byte[0], TOMBSTONE, 0);
+        }
+    }
+
+    @Override
+    public List<CacheKey> keys(String layerName) {
+        return layerIndex.keys(layerName);
+    }
+
+    private static byte[] toBytes(CacheKey key) {
+        ByteBuffer b = ByteBuffer.allocate(key.serializedLength());
+        key.writeTo(b);
+        return b.array();
+    }
+
+    @Override
+    public synchronized void clear() {
+        index.clear();
+        layerIndex.clear();
+        for (Segment segment : segments.values())
+            delete(segment);
+        segments.clear();
+        active = null;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (Segment segment : segments.values()) {
+            segment.buffer.force();
+            segment.channel.close();
+        }
+    }
+
+    /**
+     * Appends a record to the active segment, rolling to a new segment if
+     * required. Must hold the lock on this.
+     * 
+     * @return offset of the record in the active segment or -1 if the record
+     *         is too large to be stored
+     */
+    private int append(byte[] keyBytes, byte[] value, int valueLength, long createdTime) {
+        int length = HEADER_BYTES + keyBytes.length + value.length;
+        if (length > segmentBytes)
+            return -1;
+        try {
+            if (active == null || active.position + length > segmentBytes)
+                roll();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        int offset = active.position;
+        ByteBuffer b = active.buffer.duplicate();
+        b.position(offset);
+        b.putInt(MAGIC);
+        b.putInt(crc(keyBytes, value));
+        b.putInt(keyBytes.length);
+        b.putInt(valueLength);
+        b.putLong(createdTime);
+        b.put(keyBytes);
+        b.put(value);
+        active.position = offset + length;
+        return offset;
+    }
+
+    private void roll() throws IOException {
+        int id = nextSegmentId++;
+        active = Segment.open(segmentFile(id), id, segmentBytes);
+        segments.put(id, active);
+        while (segments.size() > maxSegments)
+            dropOldest();
+    }
+
+    private void dropOldest() {
+        Segment oldest = segments.pollFirstEntry().getValue();
+        Iterator<Entry<CacheKey, Location>> it = index.entrySet().iterator();
+        while (it.hasNext()) {
+            Entry<CacheKey, Location> entry = it.next();
+            if (entry.getValue().segment == oldest.id) {
+                it.remove();
+                layerIndex.remove(entry.getKey());
+            }
+        }
+        delete(oldest);
+        log.info("dropped oldest disk image store segment " + oldest.file);
+    }
+
+    private static void delete(Segment segment) {
+        try {
+            segment.channel.close();
+        } catch (IOException e) {
+            log.warn(e.getMessage(), e);
+        }
+        // the mapping remains valid for concurrent readers until it is
+        // garbage collected
+        if (!segment.file.delete())
+            log.warn("could not delete " + segment.file);
+    }
+
+    private File segmentFile(int id) {
+        return new File(directory, String.format("segment-%08d.dat", id));
+    }
+
+    private static int crc(byte[] key, byte[] value) {
+        CRC32 crc = new CRC32();
+        crc.update(key);
+        crc.update(value);
+        return (int) crc.getValue();
+    }
+
+
+    private static final class Location {
+        final int segment;
+        final int valueOffset;
+        final int length;
+        final long createdTime;
+
+        Location(int segment, int valueOffset, int length, long createdTime) {
+            this.createdTime = createdTime;
+            this.segment = segment;
+            this.valueOffset = valueOffset;
+            this.length = length;
+        }
+    }
+
+    private static final class Segment {
+        final int id;
+        final File file;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        // guarded by the store's lock
+        int position;
+
+        private Segment(int id, File file, FileChannel channel, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        static Segment open(File file, int id, int segmentBytes) throws IOException {
+            @SuppressWarnings("resource")
+            FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+            long size = Math.max(channel.size(), segmentBytes);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            return new Segment(id, file, channel, buffer);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DiskImageStore [directory=" + directory + ", segments=" + segments.keySet()
+                + ", images=" + index.size() + "]";
+    }
+}
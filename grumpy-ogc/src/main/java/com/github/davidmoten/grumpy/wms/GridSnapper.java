@@ -0,0 +1,54 @@
+package com.github.davidmoten.grumpy.wms;
+
+/**
+ * Replaces the bounds of a request that is within a tolerance of a tile of a
+ * {@link TileGrid} with the exact bounds of the tile (as WMS-C clients
+ * would request) so that requests differing only by floating point noise
+ * share a cache key. Only requests of the grid's tile size are snapped, the
+ * size of a request is never changed.
+ */
+final class GridSnapper {
+
+    private final TileGrid grid;
+
+    /**
+     * Tolerance as a proportion of the tile size.
+     */
+    private final double tolerance;
+
+    /**
+     * Constructor.
+     *
+     * @param grid
+     *            tile grid
+     * @param tolerancePixels
+     *            maximum difference of each edge of a request from the edge
+     *            of a tile in pixels
+     */
+    GridSnapper(TileGrid grid, double tolerancePixels) {
+        if (tolerancePixels < 0)
+            throw new IllegalArgumentException("tolerancePixels must be non-negative");
+        this.grid = grid;
+        this.tolerance = tolerancePixels / grid.tileSize();
+    }
+
+    TileGrid grid() {
+        return grid;
+    }
+
+    /**
+     * Returns the request with the bounds of the grid tile it is within
+     * tolerance of, or the request itself if it is not near a tile.
+     *
+     * @param request
+     *            the WMS request
+     * @return snapped request
+     */
+    WmsRequest snap(WmsRequest request) {
+        int[] tile = grid.tileAt(request.getBounds(), request.getWidth(), request.getHeight(),
+                tolerance);
+        if (tile == null)
+            return request;
+        return request.modifyBounds(grid.tileBounds(tile[0], tile[1], tile[2]));
+    }
+}
@@ -1,38 +1,192 @@
 package com.github.davidmoten.grumpy.wms;
 
-import java.util.ArrayList;
-import java.util.HashSet;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Clock;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.github.davidmoten.grumpy.projection.ProjectorBounds;
+
 /**
- * Caches images keyed on the {@link WmsRequest}.
+ * Caches images keyed on the {@link WmsRequest}. The cache is bounded by the
+ * total number of bytes of the encoded images it holds and uses a W-TinyLFU
+ * policy (see {@link WeightedCache}) so that frequently requested images are
+ * retained in preference to one-off requests (for example from panning).
+ * Lookups do not block.
+ * 
+ * <p>
+ * Optionally images evicted from memory are demoted to a disk tier (see
+ * {@link Builder#diskTier(File, long)}) rather than dropped. The disk tier
+ * survives restarts.
+ * 
+ * <p>
+ * Optionally images are also written to a directory shared by several servers
+ * (see {@link Builder#sharedTier(File)}) so that an image rendered by one
+ * server is served by all of them. The writes happen in the background so
+ * don't delay the request that rendered the image.
+ * 
+ * <p>
+ * Layers whose data changes over time can be given a time to live (see
+ * {@link #timeToLive(String, long, TimeUnit)}). By default an expired image is
+ * still served (stale-while-revalidate, optionally for a limited time, see
+ * {@link #staleWhileRevalidate(long, TimeUnit)}) and
+ * {@link WmsRequestProcessor} re-renders it in the background.
+ * 
+ * <p>
+ * Optionally the rasters of individual layers are cached too (see
+ * {@link Builder#layerRasterCache(long)}) so that a request for a different
+ * combination or ordering of cached layers only renders the layers not
+ * already rendered for the same bounds, size, style and CRS.
+ * 
+ * <p>
+ * Optionally the images in memory are written to a snapshot file when the
+ * cache is {@link #close() closed} and read back when the next cache is built
+ * (see {@link Builder#snapshot(File)}) so that a restart keeps the cache warm.
  * 
  * @author dxm
  * 
  */
-public class ImageCache {
+public class ImageCache implements Closeable {
 
     private static Logger log = LoggerFactory.getLogger(ImageCache.class);
 
-    private static int DEFAULT_SIZE = 250;// 50MB at 200K per image
+    /**
+     * Used to convert a maximum number of images to a maximum number of bytes.
+     */
+    private static final int AVERAGE_IMAGE_BYTES = 200 * 1024;
+
+    private static final int DEFAULT_SIZE = 250;// 50MB at 200K per image
+
+    /**
+     * Used to estimate the number of entries for sizing the frequency sketch.
+     */
+    private static final int MIN_EXPECTED_IMAGE_BYTES = 8 * 1024;
+
+    /**
+     * Maximum images waiting to be written to the shared tier. Further images
+     * are not written (other servers render them themselves).
+     */
+    private static final int SHARED_WRITE_QUEUE_SIZE = 64;
+
+    /**
+     * Maximum time to wait on close for queued shared tier writes.
+     */
+    private static final long SHARED_WRITE_CLOSE_TIMEOUT_SECONDS = 10;
+
+    private static final int MIN_HEADROOM_BYTES = 4 * 1024 * 1024;
+
+    private final Set<String> layers = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Time to live in milliseconds by layer name.
+     */
+    private final Map<String, Long> timeToLiveMs = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * How long after expiring an image is still served in milliseconds,
+     * {@link Long#MAX_VALUE} for as long as it takes to refresh.
+     */
+    private volatile long staleWhileRevalidateMs = Long.MAX_VALUE;
+
+    private volatile Clock clock = Clock.systemUTC();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder diskHits = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder loadTimeNanos = new LongAdder();
+
+    /**
+     * Hit and miss counters of layers enabled for caching.
+     */
+    private final Map<String, LayerCounters> layerCounters = new ConcurrentHashMap<String, LayerCounters>();
+
+    private final WeightedCache<CacheKey, CachedImage> cache;
+
+    /**
+     * Keys of images in memory by layer.
+     */
+    private final LayerIndex layerIndex = new LayerIndex();
+
+    /**
+     * Second tier, may be null.
+     */
+    private final ImageStore store;
+
+    /**
+     * Images evicted from memory that are waiting to be demoted to the store.
+     * Registered with the eviction lock held so that an invalidation running
+     * between the eviction and the demotion finds and cancels them.
+     */
+    private final ConcurrentHashMap<CacheKey, CachedImage> pendingDemotions = new ConcurrentHashMap<CacheKey, CachedImage>();
 
     /**
-     * Records the keys and the order they went into the cache so we can trim
-     * the cache if needed.
+     * Held while demoting to the store and while invalidating the store so
+     * that an invalidated image is never written back to the store.
      */
-    private volatile List<String> keys = new ArrayList<String>();
+    private final Object demotionLock = new Object();
 
-    private volatile Set<String> layers = new HashSet<String>();
+    /**
+     * Tier shared with other servers that images are written through to, may
+     * be null.
+     */
+    private final ImageStore shared;
 
-    private volatile Map<String, byte[]> cache = new ConcurrentHashMap<String, byte[]>();
+    /**
+     * Writes images to the shared tier in the background, null if no shared
+     * tier.
+     */
+    private final ThreadPoolExecutor sharedWriter;
 
-    private final int maxSize;
+    /**
+     * Images waiting to be written to the shared tier, cancelled by
+     * invalidations.
+     */
+    private final ConcurrentHashMap<CacheKey, CachedImage> pendingSharedWrites = new ConcurrentHashMap<CacheKey, CachedImage>();
+
+    /**
+     * Held while writing to the shared tier and while invalidating it so
+     * that an invalidated image is never written to it.
+     */
+    private final Object sharedLock = new Object();
+
+    /**
+     * Direct memory for images if off-heap, otherwise null.
+     */
+    private final OffHeapImagePool pool;
+
+    /**
+     * Rendered rasters of individual layers, may be null.
+     */
+    private final LayerRasterCache rasters;
+
+    /**
+     * Snapshot file written on close, may be null.
+     */
+    private final File snapshot;
+
+    private final AtomicBoolean closed = new AtomicBoolean();
 
     /**
      * Constructor.
@@ -45,49 +199,476 @@ public class ImageCache {
      * Constructor.
      * 
      * @param size
-     *            the maximum number of elements in the cache
+     *            the maximum number of average sized (200K) images in the
+     *            cache. The cache is bounded by bytes so will hold more small
+     *            images or fewer large images.
      */
     public ImageCache(int size) {
-        this.maxSize = size;
+        this((long) size * AVERAGE_IMAGE_BYTES);
+    }
+
+    private ImageCache(long maxBytes) {
+        this(maxBytes, null, null, null, null, null);
+    }
+
+    private ImageCache(long maxBytes, final ImageStore store, ImageStore shared,
+            OffHeapImagePool pool, LayerRasterCache rasters, File snapshot) {
+        this.store = store;
+        this.shared = shared;
+        if (shared != null) {
+            this.sharedWriter = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(SHARED_WRITE_QUEUE_SIZE), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "image-cache-shared-writer");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        } else
+            this.sharedWriter = null;
+        this.pool = pool;
+        this.rasters = rasters;
+        this.snapshot = snapshot;
+        this.cache = new WeightedCache<CacheKey, CachedImage>(maxBytes, expectedEntries(maxBytes),
+                new WeightedCache.Weigher<CachedImage>() {
+                    @Override
+                    public int weigh(CachedImage image) {
+                        return image.weight();
+                    }
+                }, new WeightedCache.RemovalListener<CacheKey, CachedImage>() {
+                    @Override
+                    public void removed(CacheKey key, CachedImage image, boolean evicted) {
+                        if (evicted)
+                            evictions.increment();
+                        // demote to the second tier rather than drop
+                        if (evicted && store != null)
+                            demote(key, image);
+                        image.release();
+                    }
+                }, new WeightedCache.KeyObserver<CacheKey, CachedImage>() {
+                    @Override
+                    public void added(CacheKey key) {
+                        layerIndex.add(key);
+                    }
+
+                    @Override
+                    public void removed(CacheKey key) {
+                        layerIndex.remove(key);
+                    }
+
+                    @Override
+                    public void evicted(CacheKey key, CachedImage image) {
+                        if (store != null)
+                            pendingDemotions.put(key, image);
+                    }
+                });
+    }
+
+    private void demote(CacheKey key, CachedImage image) {
+        synchronized (demotionLock) {
+            // not demoted if invalidated (or evicted again) since eviction
+            if (pendingDemotions.remove(key, image))
+                store.put(key, image);
+        }
+    }
+
+    /**
+     * Queues the image to be written to the shared tier unless the queue is
+     * full.
+     */
+    private void writeShared(final CacheKey key, final CachedImage image) {
+        pendingSharedWrites.put(key, image);
+        try {
+            sharedWriter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (sharedLock) {
+                        // not written if invalidated (or replaced) meanwhile
+                        if (pendingSharedWrites.remove(key, image))
+                            shared.put(key, image);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // queue full or closed
+            pendingSharedWrites.remove(key, image);
+            log.debug("not writing image to shared tier " + key + ": " + e.getMessage());
+        }
+    }
+
+    private static int expectedEntries(long maxBytes) {
+        return (int) Math.min(1 << 20, Math.max(16, maxBytes / MIN_EXPECTED_IMAGE_BYTES));
     }
 
     /**
      * Factory method. Returns a new {@link ImageCache} of given maximum size.
      * 
      * @param size
-     * @return
+     *            the maximum number of average sized (200K) images in the cache
+     * @return cache
      */
     public static ImageCache create(int size) {
         return new ImageCache(size);
     }
 
     /**
-     * Clears the cache for the given layer name.
+     * Factory method. Returns a new {@link ImageCache} that holds at most the
+     * given number of bytes of images.
+     * 
+     * @param maxBytes
+     *            the maximum total number of bytes of images in the cache
+     * @return cache
+     */
+    public static ImageCache createWithMaxBytes(long maxBytes) {
+        return new ImageCache(maxBytes);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+
+        private long maxBytes = (long) DEFAULT_SIZE * AVERAGE_IMAGE_BYTES;
+        private File diskDirectory;
+        private long diskMaxBytes;
+        private File sharedDirectory;
+        private int diskSegmentBytes = DiskImageStore.DEFAULT_SEGMENT_BYTES;
+        private boolean offHeap;
+        private long layerRasterMaxBytes;
+        private File snapshot;
+
+        private Builder() {
+        }
+
+        /**
+         * Sets the maximum total number of bytes of images held in memory.
+         * 
+         * @param maxBytes
+         *            maximum bytes in memory
+         * @return this
+         */
+        public Builder maxBytes(long maxBytes) {
+            this.maxBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * Enables a disk tier that holds images evicted from memory in
+         * memory-mapped segment files in the given directory. Images already in
+         * the directory (from a previous run) are available immediately. The
+         * tier holds at least two segment files so if {@code maxBytes} is less
+         * than two segments (see {@link #diskSegmentBytes(int)}) the segment
+         * size is reduced to half of {@code maxBytes}.
+         * 
+         * @param directory
+         *            directory for the segment files
+         * @param maxBytes
+         *            maximum total bytes of the segment files, at least 128KB
+         * @return this
+         */
+        public Builder diskTier(File directory, long maxBytes) {
+            this.diskDirectory = directory;
+            this.diskMaxBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * Enables a tier of image files in a directory shared with other
+         * servers (for example on a network filesystem). Every image cached
+         * is also written to the shared directory and images missing from
+         * this server's memory and disk tiers are looked for there, so that
+         * an image rendered by one server is reused by all. The writes happen
+         * in the background on one thread; images are not written if too
+         * many are already waiting. The shared
+         * directory is not bounded in size by the cache; prune it externally
+         * (for example by file age) if required.
+         * 
+         * @param directory
+         *            shared directory
+         * @return this
+         */
+        public Builder sharedTier(File directory) {
+            this.sharedDirectory = directory;
+            return this;
+        }
+
+        /**
+         * Sets the size of each disk tier segment file. Images larger than this
+         * are not stored on disk. Defaults to 64MB.
+         * 
+         * @param segmentBytes
+         *            size of each segment file, at least 64KB
+         * @return this
+         */
+        public Builder diskSegmentBytes(int segmentBytes) {
+            this.diskSegmentBytes = segmentBytes;
+            return this;
+        }
+
+        /**
+         * Sets whether images held in memory are stored in pooled direct
+         * (off-heap) memory so that the size of the cache does not affect
+         * garbage collection. Direct memory used will be a little more than
+         * {@code maxBytes} so {@code -XX:MaxDirectMemorySize} may need to be
+         * set accordingly.
+         * 
+         * @param offHeap
+         *            true to store images off-heap
+         * @return this
+         */
+        public Builder offHeap(boolean offHeap) {
+            this.offHeap = offHeap;
+            return this;
+        }
+
+        public Builder offHeap() {
+            return offHeap(true);
+        }
+
+        /**
+         * Enables caching of the rendered (uncompressed) raster of each cached
+         * layer. Each raster uses 4 bytes per pixel.
+         * 
+         * @param maxBytes
+         *            maximum total bytes of layer rasters
+         * @return this
+         */
+        public Builder layerRasterCache(long maxBytes) {
+            this.layerRasterMaxBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * Sets the file that the images in memory are written to when the
+         * cache is closed. If the file exists when the cache is built its
+         * images are loaded (and the file deleted so that a crash doesn't
+         * later restore images that may since have been invalidated).
+         * 
+         * @param file
+         *            snapshot file
+         * @return this
+         */
+        public Builder snapshot(File file) {
+            this.snapshot = file;
+            return this;
+        }
+
+        public ImageCache build() {
+            ImageStore store;
+            if (diskDirectory != null) {
+                try {
+                    store = DiskImageStore.open(diskDirectory, diskMaxBytes, diskSegmentBytes);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            } else
+                store = null;
+            ImageStore shared;
+            if (sharedDirectory != null) {
+                try {
+                    shared = SharedImageStore.open(sharedDirectory);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            } else
+                shared = null;
+            OffHeapImagePool pool;
+            if (offHeap)
+                // allow headroom for evicted images still being read and for
+                // a new image allocated before evictions make room for it
+                pool = new OffHeapImagePool(maxBytes + Math.max(maxBytes / 8, MIN_HEADROOM_BYTES),
+                        OffHeapImagePool.DEFAULT_BLOCK_BYTES, OffHeapImagePool.DEFAULT_SLAB_BYTES);
+            else
+                pool = null;
+            LayerRasterCache rasters;
+            if (layerRasterMaxBytes > 0)
+                rasters = new LayerRasterCache(layerRasterMaxBytes);
+            else
+                rasters = null;
+            ImageCache cache = new ImageCache(maxBytes, store, shared, pool, rasters, snapshot);
+            if (snapshot != null) {
+                try {
+                    cache.loadSnapshot();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Clears the cache of images that include the given layer. If there is a
+     * shared tier (see {@link Builder#sharedTier(File)}) this reads the
+     * header of every file in the shared directory, so is slow when the
+     * shared tier holds many images.
      * 
      * @param layerName
      */
-    // TOOD improve this
     public void clear(String layerName) {
-        synchronized (this) {
-            log.info("clearing cache for layer " + layerName);
-            for (String key : cache.keySet()) {
-                if (key.contains(layerName))
-                    remove(key);
+        log.info("clearing cache for layer " + layerName);
+        clear(layerName, null);
+    }
+
+    /**
+     * Clears the cache of images that include the given layer and whose
+     * bounds intersect the given region. Use this when the data of a layer
+     * changes in a small area so that the rest of the layer's cached images
+     * are kept. As for {@link #clear(String)} this reads the header of every
+     * file in the shared tier (if any).
+     * 
+     * @param layerName
+     *            name of the WMS layer
+     * @param region
+     *            region that has changed (in any supported CRS), or null for
+     *            everywhere
+     */
+    public void clear(String layerName, ProjectorBounds region) {
+        // converted once rather than for every key
+        ProjectorBounds latLonRegion = region == null ? null : WmsUtil.toLatLonBounds(region);
+        int count = 0;
+        for (CacheKey key : layerIndex.keys(layerName)) {
+            if (intersects(key, region, latLonRegion)) {
+                remove(key);
+                count++;
             }
         }
+        synchronized (demotionLock) {
+            for (CacheKey key : pendingDemotions.keySet()) {
+                if (key.getLayers().contains(layerName)
+                        && intersects(key, region, latLonRegion))
+                    pendingDemotions.remove(key);
+            }
+            count += clear(store, layerName, region, latLonRegion);
+        }
+        synchronized (sharedLock) {
+            for (CacheKey key : pendingSharedWrites.keySet()) {
+                if (key.getLayers().contains(layerName)
+                        && intersects(key, region, latLonRegion))
+                    pendingSharedWrites.remove(key);
+            }
+            count += clear(shared, layerName, region, latLonRegion);
+        }
+        if (rasters != null)
+            for (CacheKey key : rasters.keys(layerName)) {
+                if (intersects(key, region, latLonRegion))
+                    rasters.remove(key);
+            }
+        log.info("cleared " + count + " cached images for layer " + layerName + " in region "
+                + region);
     }
 
-    private void remove(String key) {
-        cache.remove(key);
-        log.info("removed cache entry " + key);
+    private static int clear(ImageStore store, String layerName, ProjectorBounds region,
+            ProjectorBounds latLonRegion) {
+        if (store == null)
+            return 0;
+        int count = 0;
+        for (CacheKey key : store.keys(layerName)) {
+            if (intersects(key, region, latLonRegion)) {
+                store.remove(key);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static boolean intersects(CacheKey key, ProjectorBounds region,
+            ProjectorBounds latLonRegion) {
+        return region == null || WmsUtil.intersects(key.getBounds(), region, latLonRegion);
+    }
+
+    private void remove(CacheKey key) {
+        if (cache.remove(key))
+            log.debug("removed cache entry " + key);
     }
 
     /**
      * Clears the cache.
      */
     public void clear() {
-        synchronized (this) {
-            cache.clear();
+        cache.clear();
+        synchronized (demotionLock) {
+            pendingDemotions.clear();
+            if (store != null)
+                store.clear();
+        }
+        synchronized (sharedLock) {
+            pendingSharedWrites.clear();
+            if (shared != null)
+                shared.clear();
+        }
+        if (rasters != null)
+            rasters.clear();
+    }
+
+    private void loadSnapshot() throws IOException {
+        long t = System.currentTimeMillis();
+        int count = ImageSnapshot.read(snapshot, new ImageSnapshot.Visitor() {
+            @Override
+            public void image(CacheKey key, byte[] image, long createdTime) {
+                putImage(key, image, createdTime);
+            }
+        });
+        if (snapshot.exists() && !snapshot.delete())
+            log.warn("could not delete snapshot " + snapshot);
+        log.info("loaded " + count + " images from snapshot " + snapshot + " in "
+                + (System.currentTimeMillis() - t) + "ms");
+    }
+
+    /**
+     * Writes the images in memory to the snapshot file (if configured),
+     * finishes queued writes to the shared tier and releases the resources of
+     * the disk tier (if any). Called by {@link WmsRequestProcessor#close()}.
+     * Calls after the first do nothing.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!closed.compareAndSet(false, true))
+            return;
+        try {
+            if (snapshot != null)
+                writeSnapshot();
+        } finally {
+            try {
+                if (store != null)
+                    store.close();
+            } finally {
+                if (shared != null) {
+                    sharedWriter.shutdown();
+                    try {
+                        if (!sharedWriter.awaitTermination(SHARED_WRITE_CLOSE_TIMEOUT_SECONDS,
+                                TimeUnit.SECONDS))
+                            log.warn("shared tier writes not finished on close");
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    shared.close();
+                }
+            }
+        }
+    }
+
+    private void writeSnapshot() throws IOException {
+        long t = System.currentTimeMillis();
+        ImageSnapshot.Writer writer = ImageSnapshot.writer(snapshot);
+        try {
+            for (CacheKey key : cache.keys()) {
+                CachedImage image = cache.peek(key);
+                if (image != null && image.retain()) {
+                    try {
+                        writer.write(key, image);
+                    } finally {
+                        image.release();
+                    }
+                }
+            }
+            int count = writer.commit();
+            log.info("wrote " + count + " images to snapshot " + snapshot + " in "
+                    + (System.currentTimeMillis() - t) + "ms");
+        } finally {
+            writer.close();
         }
     }
 
@@ -100,29 +681,127 @@ public class ImageCache {
      *            is true if want to cache
      */
     public void setEnabled(String layerName, boolean enabled) {
-        synchronized (this) {
-            if (enabled)
-                layers.add(layerName);
-            else
-                layers.remove(layerName);
-        }
+        if (enabled)
+            layers.add(layerName);
+        else
+            layers.remove(layerName);
+    }
+
+    /**
+     * Returns true if all of the given layers are enabled for caching.
+     * 
+     * @param layerNames
+     *            names of WMS layers
+     * @return true if images of the layers are cached
+     */
+    boolean isCacheable(List<String> layerNames) {
+        return layers.containsAll(layerNames);
+    }
+
+    /**
+     * Sets the time to live of cached images that include the given layer.
+     * Images of more than one layer expire with the shortest time to live of
+     * their layers.
+     * 
+     * @param layerName
+     *            name of the WMS layer
+     * @param duration
+     *            time to live, non-positive to never expire
+     * @param unit
+     *            unit of duration
+     * @return this
+     */
+    public ImageCache timeToLive(String layerName, long duration, TimeUnit unit) {
+        if (duration > 0)
+            timeToLiveMs.put(layerName, unit.toMillis(duration));
+        else
+            timeToLiveMs.remove(layerName);
+        return this;
     }
 
-    private static String getKey(WmsRequest request) {
-        StringBuffer s = new StringBuffer();
-        for (String name : request.getParameterNames())
-            // make sure we exclude the _OLSALT parameter which changes with
-            // every request
-            if (!name.startsWith("_"))
-                add(s, name, request.getParam(name));
-        return s.toString();
+    /**
+     * Sets whether an expired image is returned (and refreshed in the
+     * background by {@link WmsRequestProcessor}) rather than treated as a
+     * miss. If true an expired image is served until a refresh replaces it.
+     * Defaults to true.
+     * 
+     * @param staleWhileRevalidate
+     *            true to serve expired images while they are re-rendered
+     * @return this
+     */
+    public ImageCache staleWhileRevalidate(boolean staleWhileRevalidate) {
+        this.staleWhileRevalidateMs = staleWhileRevalidate ? Long.MAX_VALUE : 0;
+        return this;
     }
 
-    private static void add(StringBuffer s, String name, Object value) {
-        s.append(name);
-        s.append("=");
-        s.append(String.valueOf(value));
-        s.append(";");
+    /**
+     * Sets how long after expiring an image is still returned (and refreshed
+     * in the background by {@link WmsRequestProcessor}). After that the image
+     * is treated as a miss, so that an image whose refreshes keep failing is
+     * not served indefinitely.
+     * 
+     * @param duration
+     *            time an expired image is served for, non-positive to never
+     *            serve expired images
+     * @param unit
+     *            unit of duration
+     * @return this
+     */
+    public ImageCache staleWhileRevalidate(long duration, TimeUnit unit) {
+        this.staleWhileRevalidateMs = Math.max(0, unit.toMillis(duration));
+        return this;
+    }
+
+    /**
+     * Sets the clock that creation times and expiry are measured with.
+     * 
+     * @param clock
+     *            clock
+     * @return this
+     */
+    ImageCache clock(Clock clock) {
+        this.clock = clock;
+        return this;
+    }
+
+    /**
+     * Returns true if the image cached for the request has outlived the time
+     * to live of one of the request's layers.
+     * 
+     * @param request
+     *            the WMS request
+     * @param image
+     *            image cached for the request
+     * @return true if expired
+     */
+    boolean isExpired(WmsRequest request, CachedImage image) {
+        if (timeToLiveMs.isEmpty())
+            return false;
+        long ttl = timeToLive(request.getLayers());
+        return ttl != Long.MAX_VALUE && clock.millis() - image.createdTime() >= ttl;
+    }
+
+    /**
+     * Returns true if the image cached for the request may be returned, that
+     * is it hasn't expired or expired less than the stale-while-revalidate
+     * time ago.
+     */
+    private boolean isServable(WmsRequest request, CachedImage image) {
+        long stale = staleWhileRevalidateMs;
+        if (stale == Long.MAX_VALUE || timeToLiveMs.isEmpty())
+            return true;
+        long ttl = timeToLive(request.getLayers());
+        return ttl == Long.MAX_VALUE || clock.millis() - image.createdTime() - ttl < stale;
+    }
+
+    private long timeToLive(List<String> layerNames) {
+        long ttl = Long.MAX_VALUE;
+        for (String layerName : layerNames) {
+            Long t = timeToLiveMs.get(layerName);
+            if (t != null)
+                ttl = Math.min(ttl, t);
+        }
+        return ttl;
     }
 
     /**
@@ -134,34 +813,221 @@ public class ImageCache {
      * @return bytes of the image
      */
     public byte[] get(WmsRequest request) {
-        synchronized (this) {
-            log.info("cache size=" + cache.size());
-            return cache.get(getKey(request));
+        CachedImage image = getImage(request);
+        if (image == null)
+            return null;
+        try {
+            return image.toByteArray();
+        } finally {
+            image.release();
         }
     }
 
     /**
-     * Sets the cached image for the request.
+     * Returns the cached image for the request or null if not cached. A
+     * non-null result has been retained and the caller must
+     * {@link CachedImage#release() release} it when finished. Expired images
+     * are only returned within the stale-while-revalidate time.
+     * 
+     * @param request
+     *            the WMS request
+     * @return retained image or null
+     */
+    CachedImage getImage(WmsRequest request) {
+        return getImage(request, true);
+    }
+
+    /**
+     * Returns the cached image for the request or null as per
+     * {@link #getImage(WmsRequest)}.
+     * 
+     * @param request
+     *            the WMS request
+     * @param recordStats
+     *            false if the lookup repeats one already counted in the
+     *            statistics
+     * @return retained image or null
+     */
+    CachedImage getImage(WmsRequest request, boolean recordStats) {
+        CacheKey key = request.getCacheKey();
+        CachedImage image = cache.get(key);
+        // an off-heap image may be freed between the get and the retain in
+        // which case we treat it as a miss
+        if (image != null && image.retain()) {
+            if (isServable(request, image)) {
+                if (recordStats)
+                    record(request, true);
+                return image;
+            }
+            image.release();
+            remove(key);
+        }
+        CachedImage stored = getStored(store, request, key);
+        if (stored == null)
+            stored = getStored(shared, request, key);
+        if (stored != null) {
+            // promote to memory keeping the original creation time so
+            // that expiry is unaffected
+            putImage(key, stored.toByteArray(), stored.createdTime());
+            if (recordStats) {
+                diskHits.increment();
+                record(request, true);
+            }
+            return stored;
+        }
+        if (recordStats)
+            record(request, false);
+        return null;
+    }
+
+    private CachedImage getStored(ImageStore store, WmsRequest request, CacheKey key) {
+        if (store == null)
+            return null;
+        CachedImage stored = store.get(key);
+        if (stored != null && !isServable(request, stored)) {
+            store.remove(key);
+            return null;
+        }
+        return stored;
+    }
+
+    private void record(WmsRequest request, boolean hit) {
+        // requests that include layers not enabled for caching always miss
+        // so are left out of the statistics
+        if (!layers.containsAll(request.getLayers()))
+            return;
+        (hit ? hits : misses).increment();
+        for (String layerName : request.getLayers()) {
+            LayerCounters counters = layerCounters.get(layerName);
+            if (counters == null) {
+                LayerCounters created = new LayerCounters();
+                counters = layerCounters.putIfAbsent(layerName, created);
+                if (counters == null)
+                    counters = created;
+            }
+            (hit ? counters.hits : counters.misses).increment();
+        }
+    }
+
+    /**
+     * Records the time taken to render and encode an image for a cacheable
+     * request.
+     * 
+     * @param nanos
+     *            elapsed time in nanoseconds
+     */
+    void recordLoad(long nanos) {
+        loads.increment();
+        loadTimeNanos.add(nanos);
+    }
+
+    /**
+     * Returns a snapshot of the statistics of this cache.
+     * 
+     * @return statistics
+     */
+    public ImageCacheStats stats() {
+        Map<String, ImageCacheStats.LayerStats> layerStats = new HashMap<String, ImageCacheStats.LayerStats>();
+        for (Entry<String, LayerCounters> entry : layerCounters.entrySet())
+            layerStats.put(entry.getKey(), new ImageCacheStats.LayerStats(entry.getValue().hits
+                    .sum(), entry.getValue().misses.sum()));
+        return new ImageCacheStats(hits.sum(), misses.sum(), diskHits.sum(), evictions.sum(),
+                loads.sum(), loadTimeNanos.sum(), cache.size(), cache.weightedSize(),
+                cache.maximumWeight(), layerStats);
+    }
+
+    private static final class LayerCounters {
+        final LongAdder hits = new LongAdder();
+        final LongAdder misses = new LongAdder();
+    }
+
+    /**
+     * Sets the cached image for the request if all of the request's layers are
+     * enabled for caching.
      * 
      * @param request
      *            the WMS http request
      * @param image
      *            bytes of the image
      */
-    public synchronized void put(WmsRequest request, byte[] image) {
-        synchronized (this) {
-            String key = getKey(request);
-            // make sure it's the last on the list of keys so won't be dropped
-            // from cache
-            keys.remove(key);
-            keys.add(key);
-            if (keys.size() > maxSize)
-                remove(keys.get(0));
-            if (maxSize > 0 && layers.containsAll(request.getLayers())) {
-                cache.put(key, image);
-                log.info("cached image with key=" + key);
-            }
+    public void put(WmsRequest request, byte[] image) {
+        if (cache.maximumWeight() > 0 && layers.containsAll(request.getLayers())) {
+            CacheKey key = request.getCacheKey();
+            long createdTime = clock.millis();
+            putImage(key, image, createdTime);
+            if (shared != null)
+                // write through so other servers can use the image soon
+                writeShared(key, CachedImage.onHeap(image, createdTime));
+            log.info("cached image with key=" + key);
+        }
+    }
+
+    private void putImage(CacheKey key, byte[] bytes, long createdTime) {
+        CachedImage image = null;
+        if (pool != null)
+            image = pool.allocate(bytes, createdTime);
+        if (image == null)
+            // on-heap or the off-heap pool is temporarily exhausted
+            image = CachedImage.onHeap(bytes, createdTime);
+        cache.put(key, image);
+    }
+
+    /**
+     * Returns the cached raster of the layer at the given index of the
+     * request's layers or null if layer rasters are not cached, the layer is
+     * not enabled for caching, or the raster is not cached or has expired. The
+     * returned raster is shared and must not be modified.
+     * 
+     * @param request
+     *            the WMS request
+     * @param index
+     *            index of the layer in the request's layers
+     * @return raster or null
+     */
+    BufferedImage getLayerRaster(WmsRequest request, int index) {
+        if (rasters == null || !layers.contains(request.getLayers().get(index)))
+            return null;
+        CacheKey key = CacheKey.forLayer(request, index);
+        LayerRasterCache.Raster raster = rasters.get(key);
+        if (raster == null)
+            return null;
+        // expired rasters are never served so that a background refresh of
+        // the whole image re-renders the layer
+        Long ttl = timeToLiveMs.get(request.getLayers().get(index));
+        if (ttl != null && clock.millis() - raster.createdTime >= ttl) {
+            rasters.remove(key);
+            return null;
         }
+        return raster.image;
+    }
+
+    /**
+     * Caches the rendered raster of the layer at the given index of the
+     * request's layers if layer rasters are cached and the layer is enabled
+     * for caching. The raster must not be modified afterwards.
+     * 
+     * @param request
+     *            the WMS request
+     * @param index
+     *            index of the layer in the request's layers
+     * @param image
+     *            rendered raster of the layer
+     */
+    void putLayerRaster(WmsRequest request, int index, BufferedImage image) {
+        if (rasters != null && layers.contains(request.getLayers().get(index)))
+            rasters.put(CacheKey.forLayer(request, index), image, clock.millis());
+    }
+
+    /**
+     * Returns true if rendered rasters of the layer may be retained by
+     * {@link #putLayerRaster(WmsRequest, int, BufferedImage)}.
+     * 
+     * @param layerName
+     *            name of the WMS layer
+     * @return true if rasters of the layer are cached
+     */
+    boolean cachesLayerRasters(String layerName) {
+        return rasters != null && layers.contains(layerName);
     }
 
     /**
@@ -0,0 +1,206 @@
+package com.github.davidmoten.grumpy.wms;
+
+import java.text.DecimalFormat;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+/**
+ * Immutable snapshot of the statistics of an {@link ImageCache}. Counts are
+ * cumulative since the cache was created.
+ */
+public final class ImageCacheStats {
+
+    private final long hitCount;
+    private final long missCount;
+    private final long diskHitCount;
+    private final long evictionCount;
+    private final long loadCount;
+    private final long totalLoadTimeNanos;
+    private final int entries;
+    private final long bytes;
+    private final long maxBytes;
+    private final Map<String, LayerStats> layers;
+
+    ImageCacheStats(long hitCount, long missCount, long diskHitCount, long evictionCount,
+            long loadCount, long totalLoadTimeNanos, int entries, long bytes, long maxBytes,
+            Map<String, LayerStats> layers) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.diskHitCount = diskHitCount;
+        this.evictionCount = evictionCount;
+        this.loadCount = loadCount;
+        this.totalLoadTimeNanos = totalLoadTimeNanos;
+        this.entries = entries;
+        this.bytes = bytes;
+        this.maxBytes = maxBytes;
+        this.layers = Collections.unmodifiableMap(new TreeMap<String, LayerStats>(layers));
+    }
+
+    /**
+     * Returns the number of lookups that found an image in memory or in the
+     * disk tier.
+     *
+     * @return hit count
+     */
+    public long hitCount() {
+        return hitCount;
+    }
+
+    public long missCount() {
+        return missCount;
+    }
+
+    /**
+     * Returns the number of hits that were served from the disk or shared
+     * tier.
+     *
+     * @return disk hit count
+     */
+    public long diskHitCount() {
+        return diskHitCount;
+    }
+
+    public long requestCount() {
+        return hitCount + missCount;
+    }
+
+    /**
+     * Returns the ratio of hits to lookups, or 1 if there have been no
+     * lookups.
+     *
+     * @return hit ratio
+     */
+    public double hitRatio() {
+        return ratio(hitCount, missCount);
+    }
+
+    /**
+     * Returns the number of images evicted from memory to make room for
+     * others.
+     *
+     * @return eviction count
+     */
+    public long evictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * Returns the number of images rendered and encoded for cacheable
+     * requests.
+     *
+     * @return load count
+     */
+    public long loadCount() {
+        return loadCount;
+    }
+
+    public long totalLoadTimeNanos() {
+        return totalLoadTimeNanos;
+    }
+
+    /**
+     * Returns the mean time to render and encode an image in milliseconds.
+     *
+     * @return average load time in ms
+     */
+    public double averageLoadTimeMs() {
+        return loadCount == 0 ? 0 : totalLoadTimeNanos / 1000000.0 / loadCount;
+    }
+
+    /**
+     * Returns the number of images held in memory.
+     *
+     * @return entries
+     */
+    public int entries() {
+        return entries;
+    }
+
+    /**
+     * Returns the total bytes of the images held in memory.
+     *
+     * @return bytes
+     */
+    public long bytes() {
+        return bytes;
+    }
+
+    public long maxBytes() {
+        return maxBytes;
+    }
+
+    public long averageEntryBytes() {
+        return entries == 0 ? 0 : bytes / entries;
+    }
+
+    /**
+     * Returns the statistics by layer name. A lookup of an image with more
+     * than one layer counts for each of its layers.
+     *
+     * @return statistics by layer name
+     */
+    public Map<String, LayerStats> layers() {
+        return layers;
+    }
+
+    private static double ratio(long hits, long misses) {
+        long total = hits + misses;
+        return total == 0 ? 1.0 : (double) hits / total;
+    }
+
+    @Override
+    public String toString() {
+        DecimalFormat f = new DecimalFormat("0.000");
+        StringBuilder s = new StringBuilder();
+        s.append("ImageCacheStats [hits=").append(hitCount).append(", misses=").append(missCount)
+                .append(", hitRatio=").append(f.format(hitRatio())).append(", diskHits=")
+                .append(diskHitCount).append(", evictions=").append(evictionCount)
+                .append(", loads=").append(loadCount).append(", averageLoadTimeMs=")
+                .append(f.format(averageLoadTimeMs())).append(", entries=").append(entries)
+                .append(", bytes=").append(bytes).append(", maxBytes=").append(maxBytes)
+                .append(", averageEntryBytes=").append(averageEntryBytes()).append(", layers={");
+        boolean first = true;
+        for (Entry<String, LayerStats> entry : layers.entrySet()) {
+            if (!first)
+                s.append(", ");
+            first = false;
+            s.append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        s.append("}]");
+        return s.toString();
+    }
+
+    /**
+     * Hit and miss counts of one layer.
+     */
+    public static final class LayerStats {
+
+        private final long hitCount;
+        private final long missCount;
+
+        LayerStats(long hitCount, long missCount) {
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+        }
+
+        public long hitCount() {
+            return hitCount;
+        }
+
+        public long missCount() {
+            return missCount;
+        }
+
+        public double hitRatio() {
+            return ratio(hitCount, missCount);
+        }
+
+        @Override
+        public String toString() {
+            return "[hits=" + hitCount + ", misses=" + missCount + ", hitRatio="
+                    + new DecimalFormat("0.000").format(hitRatio()) + "]";
+        }
+    }
+}
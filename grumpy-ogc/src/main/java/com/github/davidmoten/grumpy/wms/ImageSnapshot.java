@@ -0,0 +1,206 @@
+package com.github.davidmoten.grumpy.wms;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads and writes a snapshot file of the images held by an
+ * {@link ImageCache} so that a restarted server starts with a warm cache.
+ * The file is written sequentially to a temporary file that is renamed over
+ * the snapshot when complete, and is read with a single memory-mapped pass.
+ *
+ * <p>
+ * Layout: magic (int), then records of crc32 of key and value (int), key
+ * length (int), value length (int), image creation time (long), key (see
+ * {@link CacheKey#writeTo(ByteBuffer)}), value, terminated by -1 (int).
+ */
+final class ImageSnapshot {
+
+    private static final Logger log = LoggerFactory.getLogger(ImageSnapshot.class);
+
+    private static final int MAGIC = 0x47524d53;
+
+    private static final int END = -1;
+
+    private static final int HEADER_BYTES = 20;
+
+    private ImageSnapshot() {
+        // prevent instantiation
+    }
+
+    /**
+     * Receives the images read from a snapshot.
+     */
+    interface Visitor {
+        void image(CacheKey key, byte[] image, long createdTime);
+    }
+
+    /**
+     * Reads the snapshot file (if it exists) passing each image to the
+     * visitor. A truncated or corrupt file is read up to the first bad record.
+     *
+     * @param file
+     *            snapshot file
+     * @param visitor
+     *            receives the images
+     * @return the number of images read
+     * @throws IOException
+     *             if the file cannot be read
+     */
+    static int read(File file, Visitor visitor) throws IOException {
+        if (!file.exists())
+            return 0;
+        int count = 0;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer b = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (b.remaining() < 4 || b.getInt() != MAGIC) {
+                log.warn("ignoring snapshot with unrecognized format " + file);
+                return 0;
+            }
+            while (b.remaining() >= 4) {
+                int position = b.position();
+                int crc = b.getInt();
+                if (crc == END && b.remaining() == 0)
+                    break;
+                if (b.remaining() < HEADER_BYTES - 4)
+                    break;
+                int keyLength = b.getInt();
+                int valueLength = b.getInt();
+                long createdTime = b.getLong();
+                if (keyLength < 0 || valueLength < 0
+                        || (long) keyLength + valueLength > b.remaining()) {
+                    log.warn("truncated snapshot " + file + " at " + position);
+                    break;
+                }
+                byte[] keyBytes = new byte[keyLength];
+                b.get(keyBytes);
+                byte[] value = new byte[valueLength];
+                b.get(value);
+                if (crc != crc(keyBytes, value)) {
+                    log.warn("corrupt snapshot " + file + " at " + position);
+                    break;
+                }
+                visitor.image(CacheKey.readFrom(ByteBuffer.wrap(keyBytes)), value, createdTime);
+                count++;
+            }
+        } catch (RuntimeException e) {
+            log.warn("could not read snapshot " + file + ": " + e.getMessage(), e);
+        } finally {
+            raf.close();
+        }
+        return count;
+    }
+
+    /**
+     * Returns a writer of a new snapshot that replaces the file when
+     * committed.
+     *
+     * @param file
+     *            snapshot file
+     * @return writer
+     * @throws IOException
+     *             if the temporary file cannot be created
+     */
+    static Writer writer(File file) throws IOException {
+        return new Writer(file);
+    }
+
+    static final class Writer implements Closeable {
+
+        private final File file;
+        private final File temp;
+        private final FileChannel channel;
+        private final FileOutputStream out;
+        private ByteBuffer buffer = ByteBuffer.allocate(256 * 1024);
+        private int count;
+        private boolean committed;
+
+        private Writer(File file) throws IOException {
+            this.file = file;
+            this.temp = new File(file.getPath() + ".tmp");
+            File parent = file.getAbsoluteFile().getParentFile();
+            if (parent != null && !parent.exists() && !parent.mkdirs())
+                throw new IOException("could not create directory " + parent);
+            this.out = new FileOutputStream(temp);
+            this.channel = out.getChannel();
+            buffer.putInt(MAGIC);
+        }
+
+        void write(CacheKey key, CachedImage image) throws IOException {
+            byte[] keyBytes = new byte[key.serializedLength()];
+            key.writeTo(ByteBuffer.wrap(keyBytes));
+            byte[] value = image.toByteArray();
+            int length = HEADER_BYTES + keyBytes.length + value.length;
+            if (buffer.remaining() < length) {
+                flush();
+                if (buffer.capacity() < length)
+                    buffer = ByteBuffer.allocate(length);
+            }
+            buffer.putInt(crc(keyBytes, value));
+            buffer.putInt(keyBytes.length);
+            buffer.putInt(value.length);
+            buffer.putLong(image.createdTime());
+            buffer.put(keyBytes);
+            buffer.put(value);
+            count++;
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            buffer.clear();
+        }
+
+        /**
+         * Completes the snapshot and renames it over the snapshot file.
+         *
+         * @return number of images written
+         * @throws IOException
+         *             on write failure
+         */
+        int commit() throws IOException {
+            if (buffer.remaining() < 4)
+                flush();
+            buffer.putInt(END);
+            flush();
+            channel.force(false);
+            out.close();
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                out.close();
+                if (!temp.delete())
+                    log.warn("could not delete " + temp);
+            }
+        }
+    }
+
+    private static int crc(byte[] key, byte[] value) {
+        CRC32 crc = new CRC32();
+        crc.update(key);
+        crc.update(value);
+        return (int) crc.getValue();
+    }
+
+}
@@ -0,0 +1,56 @@
+package com.github.davidmoten.grumpy.wms;
+
+import java.io.Closeable;
+import java.util.List;
+
+/**
+ * Second tier storage of encoded images behind the in-memory
+ * {@link ImageCache}. Images evicted from memory are demoted to the store and
+ * promoted back to memory when requested again.
+ */
+interface ImageStore extends Closeable {
+
+    /**
+     * Returns the image stored under the key (on the heap) or null if not
+     * present.
+     * 
+     * @param key
+     *            image cache key
+     * @return image or null
+     */
+    CachedImage get(CacheKey key);
+
+    /**
+     * Stores the image and its creation time under the key.
+     * 
+     * @param key
+     *            image cache key
+     * @param image
+     *            image
+     */
+    void put(CacheKey key, CachedImage image);
+
+    /**
+     * Removes the image stored under the key.
+     * 
+     * @param key
+     *            image cache key
+     */
+    void remove(CacheKey key);
+
+    /**
+     * Returns a snapshot of the keys of images in the store that include the
+     * given layer.
+     * 
+     * @param layerName
+     *            layer name
+     * @return keys
+     */
+    List<CacheKey> keys(String layerName);
+
+    /**
+     * Removes all images.
+     */
+    void clear();
+
+}
@@ -3,25 +3,91 @@ package com.github.davidmoten.grumpy.wms;
 import java.util.ArrayList;
 import java.util.List;
 
+import com.github.davidmoten.grumpy.projection.FeatureUtil;
+import com.github.davidmoten.grumpy.projection.ProjectorBounds;
+
 public class LayerFeatures {
     private final List<String> styles;
     private final List<String> crs;
     private final String name;
     private final boolean queryable;
-
-    private LayerFeatures(List<String> styles, List<String> crs, String name, boolean queryable) {
+    private final boolean opaque;
+    private final ProjectorBounds extent;
+    private final double minScaleDenominator;
+    private final double maxScaleDenominator;
+
+    private LayerFeatures(List<String> styles, List<String> crs, String name, boolean queryable,
+            boolean opaque, ProjectorBounds extent, double minScaleDenominator,
+            double maxScaleDenominator) {
         if (name == null)
             throw new NullPointerException("name cannot be null");
         this.styles = styles;
         this.crs = crs;
         this.name = name;
         this.queryable = queryable;
+        this.opaque = opaque;
+        this.extent = extent;
+        this.minScaleDenominator = minScaleDenominator;
+        this.maxScaleDenominator = maxScaleDenominator;
     }
 
     public boolean isQueryable() {
         return queryable;
     }
 
+    /**
+     * Returns true if the layer paints every pixel of every request with a
+     * fully opaque colour (for example a base map or satellite imagery).
+     * Layers beneath an opaque layer in a request are hidden so are not
+     * rendered, and the opaque layer is rendered into an image without an
+     * alpha channel. Layers with an extent are not treated as opaque.
+     * 
+     * @return true if the layer is opaque and covers the whole map
+     */
+    public boolean isOpaque() {
+        return opaque;
+    }
+
+    /**
+     * Returns the geographic (EPSG:4326 longitude and latitude) bounds outside
+     * of which the layer paints nothing, or null if the layer may paint
+     * anywhere.
+     * 
+     * @return extent or null
+     */
+    public ProjectorBounds getExtent() {
+        return extent;
+    }
+
+    /**
+     * Returns the minimum OGC scale denominator (most zoomed in) at which the
+     * layer paints anything.
+     * 
+     * @return minimum scale denominator, 0 if none
+     */
+    public double getMinScaleDenominator() {
+        return minScaleDenominator;
+    }
+
+    /**
+     * Returns the maximum OGC scale denominator (most zoomed out) at which the
+     * layer paints anything.
+     * 
+     * @return maximum scale denominator, positive infinity if none
+     */
+    public double getMaxScaleDenominator() {
+        return maxScaleDenominator;
+    }
+
+    /**
+     * Returns true if a scale range has been set.
+     * 
+     * @return true if scale range set
+     */
+    public boolean hasScaleRange() {
+        return minScaleDenominator > 0 || maxScaleDenominator < Double.POSITIVE_INFINITY;
+    }
+
     public List<String> getStyles() {
         return styles;
     }
@@ -44,6 +110,10 @@ public class LayerFeatures {
         private List<String> styles = new ArrayList<String>();
         private List<String> crs = new ArrayList<String>();
         private boolean queryable = false;
+        private boolean opaque = false;
+        private ProjectorBounds extent;
+        private double minScaleDenominator = 0;
+        private double maxScaleDenominator = Double.POSITIVE_INFINITY;
 
         private Builder() {
         }
@@ -78,8 +148,73 @@ public class LayerFeatures {
             return this;
         }
 
+        /**
+         * Declares whether the layer paints every pixel of every request with
+         * a fully opaque colour (see {@link LayerFeatures#isOpaque()}).
+         * Defaults to false. Declaring a layer opaque that leaves pixels
+         * unpainted or translucent hides the layers beneath it and shows
+         * black where it did not paint.
+         * 
+         * @param value
+         *            true if opaque
+         * @return this
+         */
+        public Builder opaque(boolean value) {
+            this.opaque = value;
+            return this;
+        }
+
+        public Builder opaque() {
+            return opaque(true);
+        }
+
+        /**
+         * Sets the geographic bounds outside of which the layer paints
+         * nothing. Requests that don't overlap the extent don't render the
+         * layer, and the extent is advertised in the capabilities.
+         * 
+         * @param minLon
+         *            west bound longitude
+         * @param minLat
+         *            south bound latitude
+         * @param maxLon
+         *            east bound longitude
+         * @param maxLat
+         *            north bound latitude
+         * @return this
+         */
+        public Builder extent(double minLon, double minLat, double maxLon, double maxLat) {
+            if (minLon > maxLon || minLat > maxLat)
+                throw new IllegalArgumentException("min must not be greater than max");
+            this.extent = new ProjectorBounds(FeatureUtil.EPSG_4326, minLon, minLat, maxLon,
+                    maxLat);
+            return this;
+        }
+
+        /**
+         * Sets the range of OGC scale denominators (see
+         * {@link WmsUtil#getScale(WmsRequest)}) in which the layer paints
+         * anything (inclusive). Requests outside the range don't render the
+         * layer, and the range is advertised in the capabilities.
+         * 
+         * @param minScaleDenominator
+         *            minimum scale denominator (most zoomed in)
+         * @param maxScaleDenominator
+         *            maximum scale denominator (most zoomed out)
+         * @return this
+         */
+        public Builder scaleRange(double minScaleDenominator, double maxScaleDenominator) {
+            if (minScaleDenominator < 0 || maxScaleDenominator < minScaleDenominator)
+                throw new IllegalArgumentException(
+                        "scale range must be non-negative with min <= max");
+            this.minScaleDenominator = minScaleDenominator;
+            this.maxScaleDenominator = maxScaleDenominator;
+            return this;
+        }
+
         public LayerFeatures build() {
-            return new LayerFeatures(styles, crs, name, queryable);
+            return new LayerFeatures(styles, crs, name, queryable, opaque, extent,
+                    minScaleDenominator, maxScaleDenominator);
         }
 
         public Builder queryable() {
@@ -0,0 +1,70 @@
+package com.github.davidmoten.grumpy.wms;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Secondary index from layer name to the cache keys of images that include
+ * that layer, so that invalidating a layer doesn't scan every key. Layers are
+ * removed from the index with their last key so that the index doesn't grow
+ * with every layer name ever cached.
+ */
+final class LayerIndex {
+
+    /**
+     * Guarded by this. Sets are never empty.
+     */
+    private final Map<String, Set<CacheKey>> map = new HashMap<String, Set<CacheKey>>();
+
+    synchronized void add(CacheKey key) {
+        for (String layer : key.getLayers()) {
+            Set<CacheKey> keys = map.get(layer);
+            if (keys == null) {
+                keys = new HashSet<CacheKey>();
+                map.put(layer, keys);
+            }
+            keys.add(key);
+        }
+    }
+
+    synchronized void remove(CacheKey key) {
+        for (String layer : key.getLayers()) {
+            Set<CacheKey> keys = map.get(layer);
+            if (keys != null && keys.remove(key) && keys.isEmpty())
+                map.remove(layer);
+        }
+    }
+
+    /**
+     * Returns a snapshot of the keys of images that include the layer.
+     * 
+     * @param layerName
+     *            layer name
+     * @return keys
+     */
+    synchronized List<CacheKey> keys(String layerName) {
+        Set<CacheKey> keys = map.get(layerName);
+        if (keys == null)
+            return Collections.emptyList();
+        else
+            return new ArrayList<CacheKey>(keys);
+    }
+
+    /**
+     * Returns the number of layers with keys in the index.
+     * 
+     * @return number of layers
+     */
+    synchronized int layerCount() {
+        return map.size();
+    }
+
+    synchronized void clear() {
+        map.clear();
+    }
+}
@@ -8,66 +8,305 @@ import java.awt.Image;
 import java.awt.Point;
 import java.awt.image.BufferedImage;
 import java.awt.image.ImageObserver;
+import java.io.Closeable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-class LayerManager {
+import com.github.davidmoten.grumpy.projection.ProjectorBounds;
+
+class LayerManager implements Closeable {
 
     private static Logger log = LoggerFactory.getLogger(LayerManager.class);
 
     private final Layers layers;
 
-    private final ExecutorService executor;
+    /**
+     * Source of cached layer rasters, may be null.
+     */
+    private final ImageCache imageCache;
+
+    private final RenderScheduler scheduler;
+
+    /**
+     * Maximum time to wait for the layers of a request in milliseconds, 0 for
+     * no limit.
+     */
+    private final long renderTimeoutMs;
+
+    /**
+     * Number of horizontal strips that each layer of a large request is
+     * rendered in, 1 to disable.
+     */
+    private final int stripCount;
+
+    /**
+     * Minimum number of pixels of a request rendered in strips.
+     */
+    private final long stripMinPixels;
+
+    /**
+     * Strips are at least this high so that the overhead of rendering a strip
+     * doesn't outweigh the parallelism.
+     */
+    private static final int MIN_STRIP_HEIGHT = 64;
+
+    /**
+     * Reused images of the composite and of each layer.
+     */
+    private final RasterPool rasterPool;
+
+    /**
+     * Default maximum bytes of pixels retained by the raster pool.
+     */
+    static final long DEFAULT_RASTER_POOL_BYTES = 64 * 1024 * 1024;
+
+    static final int DEFAULT_RENDER_THREADS = Runtime.getRuntime().availableProcessors() + 1;
+
+    static final int DEFAULT_RENDER_QUEUE_SIZE = 1000;
 
     private static final boolean DRAW_IN_PARALLEL = true;
 
     LayerManager(Layers layers) {
+        this(layers, null);
+    }
+
+    LayerManager(Layers layers, ImageCache imageCache) {
+        this(layers, imageCache, DEFAULT_RASTER_POOL_BYTES);
+    }
+
+    LayerManager(Layers layers, ImageCache imageCache, long rasterPoolMaxBytes) {
+        this(layers, imageCache, rasterPoolMaxBytes, RenderScheduler.create(
+                DEFAULT_RENDER_THREADS, DEFAULT_RENDER_QUEUE_SIZE, false,
+                Collections.<String, Integer> emptyMap()), 0, 1, 0);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param layers
+     *            layers
+     * @param imageCache
+     *            source of cached layer rasters, may be null
+     * @param rasterPoolMaxBytes
+     *            maximum bytes of pixels kept for reuse
+     * @param scheduler
+     *            runs the work of each layer, owned by this
+     * @param renderTimeoutMs
+     *            maximum time to wait for the layers of a request in
+     *            milliseconds, 0 for no limit
+     * @param stripCount
+     *            number of horizontal strips each layer of a large request is
+     *            rendered in concurrently, 1 to disable
+     * @param stripMinPixels
+     *            minimum number of pixels of a request rendered in strips
+     */
+    LayerManager(Layers layers, ImageCache imageCache, long rasterPoolMaxBytes,
+            RenderScheduler scheduler, long renderTimeoutMs, int stripCount,
+            long stripMinPixels) {
         this.layers = layers;
+        this.imageCache = imageCache;
+        this.rasterPool = new RasterPool(rasterPoolMaxBytes);
+        this.scheduler = scheduler;
+        this.renderTimeoutMs = renderTimeoutMs;
+        this.stripCount = stripCount;
+        this.stripMinPixels = stripMinPixels;
         GraphicsEnvironment gEnv = GraphicsEnvironment.getLocalGraphicsEnvironment();
         for (String name : gEnv.getAvailableFontFamilyNames())
             log.debug(name);
         log.info("constructed");
-        executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() + 1);
     }
 
-    BufferedImage getImage(WmsRequest request) {
-        MyGraphics graphics = createGraphics(request);
+    BufferedImage getImage(WmsRequest request) throws RenderRejectedException {
+        return render(request, false, RenderPriority.INTERACTIVE).image;
+    }
+
+    /**
+     * Renders the image for the request. The caller should {@link #release}
+     * the image when finished with it.
+     * 
+     * @param request
+     *            the WMS request
+     * @param useLayerRasters
+     *            if true then layer rasters cached by the {@link ImageCache}
+     *            are composited instead of rendering those layers and newly
+     *            rendered layer rasters are offered to the cache
+     * @param priority
+     *            priority of the work of each layer
+     * @return image and whether all layers were rendered in time
+     * @throws RenderRejectedException
+     *             if the render queue is full
+     */
+    Rendered render(WmsRequest request, boolean useLayerRasters, RenderPriority priority)
+            throws RenderRejectedException {
+        return render(request, useLayerRasters, new RenderScheduler.Job(priority), false);
+    }
+
+    /**
+     * Renders the image for the request as per
+     * {@link #render(WmsRequest, boolean, RenderPriority)}.
+     * 
+     * @param request
+     *            the WMS request
+     * @param useLayerRasters
+     *            if true use and offer cached layer rasters
+     * @param job
+     *            decides the priority of the work of each layer, which may be
+     *            raised while the work waits
+     * @param admitted
+     *            if true the render continues work that has already been
+     *            admitted (see
+     *            {@link RenderScheduler#submit(String, RenderScheduler.Job, boolean, Callable)})
+     *            and is not rejected when the render queue is full
+     * @return image and whether all layers were rendered in time
+     * @throws RenderRejectedException
+     *             if not admitted and the render queue is full
+     */
+    Rendered render(WmsRequest request, boolean useLayerRasters, RenderScheduler.Job job,
+            boolean admitted) throws RenderRejectedException {
+        MyGraphics graphics = createGraphics(request, BufferedImage.TYPE_INT_ARGB);
         Graphics2D g = graphics.graphics;
 
         log.info("painting image with layers");
         // paint the image
-        paintImage(request, g);
-        // release resources
-        g.dispose();
+        boolean complete;
+        try {
+            complete = paintImage(request, graphics, useLayerRasters && imageCache != null,
+                    job, admitted);
+        } finally {
+            // release resources
+            g.dispose();
+        }
         log.info("image finished");
-        return graphics.image;
+        return new Rendered(graphics.image, complete);
     }
 
-    Map<String, String> getInfos(Date time, WmsRequest request, Point point, String mimeType) {
-        Map<String, String> map = new HashMap<String, String>();
+    /**
+     * The result of a render.
+     */
+    static final class Rendered {
+
+        final BufferedImage image;
+
+        /**
+         * False if a layer was replaced by a placeholder because it did not
+         * render in time or if a layer failed (and its error message was
+         * drawn instead). Incomplete images must not be cached.
+         */
+        final boolean complete;
+
+        Rendered(BufferedImage image, boolean complete) {
+            this.image = image;
+            this.complete = complete;
+        }
+    }
+
+    /**
+     * Returns an image obtained from
+     * {@link #render(WmsRequest, boolean, RenderPriority)} to
+     * the pool for reuse by later requests. Neither the image nor any subimage
+     * of it may be used afterwards.
+     * 
+     * @param image
+     *            rendered image
+     */
+    void release(BufferedImage image) {
+        rasterPool.release(image);
+    }
+
+    RasterPool rasterPool() {
+        return rasterPool;
+    }
+
+    /**
+     * Returns the feature info of each layer of the request. The lookups run
+     * on the render threads at the lowest priority and subject to the layer
+     * limits. Layers that don't answer within the render timeout are omitted.
+     * 
+     * @throws RenderRejectedException
+     *             if the render queue is full
+     */
+    Map<String, String> getInfos(final Date time, final WmsRequest request, final Point point,
+            final String mimeType) throws RenderRejectedException {
+        long deadline = renderTimeoutMs > 0 ? System.currentTimeMillis() + renderTimeoutMs
+                : Long.MAX_VALUE;
+        Map<String, Future<String>> futures = new LinkedHashMap<String, Future<String>>();
         for (String layerName : request.getLayers()) {
-            Layer layer = layers.getLayer(layerName);
+            final Layer layer = layers.getLayer(layerName);
             if (layer != null) {
-                String info = layer.getInfo(time, request, point, mimeType);
-                if (info != null)
-                    map.put(layerName, info);
+                try {
+                    futures.put(layerName, scheduler.submit(layerName,
+                            RenderPriority.FEATURE_INFO, new Callable<String>() {
+                                @Override
+                                public String call() {
+                                    return layer.getInfo(time, request, point, mimeType);
+                                }
+                            }));
+                } catch (RejectedExecutionException e) {
+                    for (Future<String> future : futures.values())
+                        future.cancel(true);
+                    throw new RenderRejectedException("render queue full, rejected info for "
+                            + request.getLayers());
+                }
             } else
                 log.warn("no getInfo implementation for layer: " + layerName);
         }
+        Map<String, String> map = new HashMap<String, String>();
+        for (Entry<String, Future<String>> entry : futures.entrySet()) {
+            Future<String> future = entry.getValue();
+            String info = get(future, deadline);
+            if (info != null)
+                map.put(entry.getKey(), info);
+            else if (future.isCancelled())
+                log.warn("no info from layer " + entry.getKey() + " in time");
+        }
         return map;
     }
 
+    /**
+     * Returns the result of the future or null if it fails or doesn't
+     * complete by the deadline (in which case it is cancelled so that it
+     * stops occupying a render thread).
+     */
+    private static <T> T get(Future<T> future, long deadline) {
+        try {
+            if (deadline == Long.MAX_VALUE)
+                return future.get();
+            else
+                return future.get(Math.max(0, deadline - System.currentTimeMillis()),
+                        TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            log.warn(e.getMessage(), e);
+            // restore the interrupt so the caller can stop too
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.error(e.getMessage(), e);
+        } catch (TimeoutException e) {
+            // handled by caller
+        } catch (CancellationException e) {
+            // handled by caller
+        }
+        future.cancel(true);
+        return null;
+    }
+
     private static final ImageObserver noActionImageObserver = new ImageObserver() {
         @Override
         public boolean imageUpdate(Image img, int infoflags, int x, int y, int width, int height) {
@@ -90,10 +329,11 @@ class LayerManager {
         RendererUtil.useAntialiasing(g);
     }
 
-    private MyGraphics createGraphics(WmsRequest request) {
+    private MyGraphics createGraphics(WmsRequest request, int imageType) {
         log.info("creating buffered image");
-        BufferedImage image = new BufferedImage(request.getWidth(), request.getHeight(),
-                BufferedImage.TYPE_INT_ARGB);
+        // pooled images are cleared so are indistinguishable from new ones
+        BufferedImage image = rasterPool.acquire(request.getWidth(), request.getHeight(),
+                imageType);
         Graphics2D g = (Graphics2D) image.getGraphics();
 
         // set rendering options
@@ -106,51 +346,299 @@ class LayerManager {
         return new MyGraphics(image, g);
     }
 
-    private void paintImage(final WmsRequest request, Graphics2D g) {
+    private boolean paintImage(final WmsRequest request, MyGraphics graphics,
+            boolean useLayerRasters, RenderScheduler.Job job, boolean admitted)
+            throws RenderRejectedException {
 
         log.info("painting layers " + request.getLayers());
 
+        Graphics2D g = graphics.graphics;
         if (DRAW_IN_PARALLEL) {
-            paintImageParallel(request, g);
+            return paintImageParallel(request, graphics, useLayerRasters, job, admitted);
         } else {
             // using only a single g2d seems to help with IE8 png transparency
             // bug (fixed in IE9).
-            for (final String layerName : request.getLayers()) {
-                paintLayer(g, layerName, layers, request);
+            for (int i : visibleLayers(request)) {
+                paintLayer(g, request.getLayers().get(i), layers, request);
             }
+            return true;
         }
     }
 
-    private void paintImageParallel(WmsRequest request, Graphics2D g) {
-        // create future for each worker (layer)
+    private boolean paintImageParallel(WmsRequest request, MyGraphics graphics,
+            boolean useLayerRasters, RenderScheduler.Job job, boolean admitted)
+            throws RenderRejectedException {
+        Graphics2D g = graphics.graphics;
+        long deadline = renderTimeoutMs > 0 ? System.currentTimeMillis() + renderTimeoutMs
+                : Long.MAX_VALUE;
+        // create future for each worker (layer or strip of a layer) in
+        // drawing order
         List<Future<BufferedImage>> futures = new ArrayList<Future<BufferedImage>>();
+        // rasters that are shared with the layer raster cache are not pooled
+        List<Boolean> pooled = new ArrayList<Boolean>();
+        // where to draw each raster and which layer it is part of
+        List<Integer> offsets = new ArrayList<Integer>();
+        List<Integer> layerIndexes = new ArrayList<Integer>();
+        // set by workers whose layer throws
+        AtomicBoolean failed = new AtomicBoolean();
 
-        for (final String layerName : request.getLayers()) {
-            // create a worker for layer
-            Callable<BufferedImage> worker = createWorker(layers, layerName, request);
-            // start the worker
-            Future<BufferedImage> submit = executor.submit(worker);
-            // record the worker in a list so we can paint the images in
-            // order later
-            futures.add(submit);
+        List<String> layerNames = request.getLayers();
+        List<WmsRequest> strips = strips(request);
+        for (int i : visibleLayers(request)) {
+            final String layerName = layerNames.get(i);
+            final boolean opaque = isOpaque(features(layerName));
+            final BufferedImage cached = useLayerRasters ? imageCache.getLayerRaster(request, i)
+                    : null;
+            if (cached != null) {
+                log.info("using cached raster for " + layerName);
+                futures.add(completed(cached));
+                pooled.add(false);
+                offsets.add(0);
+                layerIndexes.add(i);
+                continue;
+            }
+            int y = 0;
+            for (WmsRequest strip : strips) {
+                // create a worker for layer (strips of a layer are not
+                // offered to the layer raster cache)
+                Callable<BufferedImage> worker = createWorker(layers, layerName, strip,
+                        useLayerRasters && strips.size() == 1 ? i : -1, opaque, failed);
+                // start the worker
+                Future<BufferedImage> submit;
+                try {
+                    submit = scheduler.submit(layerName, job, admitted, worker);
+                } catch (RejectedExecutionException e) {
+                    cancel(futures);
+                    throw new RenderRejectedException("render queue full, rejected layers "
+                            + layerNames);
+                }
+                // record the worker in a list so we can paint the images in
+                // order later
+                futures.add(submit);
+                pooled.add(strips.size() > 1 || !useLayerRasters
+                        || !imageCache.cachesLayerRasters(layerName));
+                offsets.add(y);
+                layerIndexes.add(i);
+                y += strip.getHeight();
+            }
         }
         // wait for each image to complete in turn then draw it to the
         // everything graphics object
-        for (Future<BufferedImage> future : futures) {
-            drawImage(g, future);
+        boolean complete = true;
+        int placeholderLayer = -1;
+        for (int i = 0; i < futures.size(); i++) {
+            Future<BufferedImage> future = futures.get(i);
+            BufferedImage image = drawImage(graphics, future, deadline, offsets.get(i));
+            if (image == null) {
+                // the worker may still be painting so its raster is not
+                // pooled
+                complete = false;
+                if (placeholderLayer != layerIndexes.get(i)) {
+                    placeholderLayer = layerIndexes.get(i);
+                    paintPlaceholder(g, layerNames.get(placeholderLayer), request);
+                }
+            } else if (pooled.get(i))
+                rasterPool.release(image);
         }
+        return complete && !failed.get();
+    }
+
+    /**
+     * Returns the request split into horizontal strips from top to bottom if
+     * it is large enough to be rendered in strips, otherwise a list of just
+     * the request.
+     * 
+     * @param request
+     *            the WMS request
+     * @return strips
+     */
+    List<WmsRequest> strips(WmsRequest request) {
+        int height = request.getHeight();
+        int count = Math.min(stripCount, height / MIN_STRIP_HEIGHT);
+        if (count < 2 || (long) request.getWidth() * height < stripMinPixels)
+            return Collections.singletonList(request);
+        return split(request, count);
     }
 
+    /**
+     * Returns the request split into horizontal bands from top to bottom, each
+     * at most the given number of rows high.
+     * 
+     * @param request
+     *            the WMS request
+     * @param bandHeight
+     *            maximum height of each band in pixels
+     * @return bands
+     */
+    static List<WmsRequest> bands(WmsRequest request, int bandHeight) {
+        int count = (request.getHeight() + bandHeight - 1) / bandHeight;
+        if (count < 2)
+            return Collections.singletonList(request);
+        return split(request, count);
+    }
+
+    private static List<WmsRequest> split(WmsRequest request, int count) {
+        int height = request.getHeight();
+        ProjectorBounds b = request.getBounds();
+        double unitsPerPixel = b.getSizeY() / height;
+        List<WmsRequest> strips = new ArrayList<WmsRequest>(count);
+        int top = 0;
+        for (int i = 0; i < count; i++) {
+            int bottom = (int) ((long) height * (i + 1) / count);
+            // compute edges from the request's bounds so that adjacent strips
+            // share exactly the same edge values
+            double maxY = top == 0 ? b.getMaxY() : b.getMaxY() - top * unitsPerPixel;
+            double minY = bottom == height ? b.getMinY() : b.getMaxY() - bottom
+                    * unitsPerPixel;
+            strips.add(request.modifyBounds(
+                    new ProjectorBounds(b.getSrs(), b.getMinX(), minY, b.getMaxX(), maxY))
+                    .modifySize(request.getWidth(), bottom - top));
+            top = bottom;
+        }
+        return strips;
+    }
+
+    /**
+     * Returns the indexes in drawing order of the request's layers that need
+     * rendering. Layers whose extent doesn't overlap the request's bounds or
+     * whose scale range excludes the request's scale paint nothing, and
+     * layers beneath the top opaque layer are completely covered, so neither
+     * are rendered.
+     * 
+     * @param request
+     *            the WMS request
+     * @return indexes of layers to render
+     */
+    List<Integer> visibleLayers(WmsRequest request) {
+        List<String> layerNames = request.getLayers();
+        List<Integer> visible = new ArrayList<Integer>(layerNames.size());
+        // calculated when first needed
+        Double scale = null;
+        ProjectorBounds latLonBounds = null;
+        for (int i = 0; i < layerNames.size(); i++) {
+            LayerFeatures features = features(layerNames.get(i));
+            if (features != null) {
+                if (features.getExtent() != null) {
+                    // the extent is geographic so only the request's bounds
+                    // need converting, once for all layers
+                    if (latLonBounds == null)
+                        latLonBounds = WmsUtil.toLatLonBounds(request.getBounds());
+                    if (!WmsUtil.intersects(features.getExtent(), request.getBounds(),
+                            latLonBounds)) {
+                        log.info("skipping layer " + layerNames.get(i)
+                                + " outside request bounds");
+                        continue;
+                    }
+                }
+                if (features.hasScaleRange()) {
+                    if (scale == null)
+                        scale = scale(request);
+                    // an unknown (NaN) scale renders the layer
+                    if (scale < features.getMinScaleDenominator()
+                            || scale > features.getMaxScaleDenominator()) {
+                        log.info("skipping layer " + layerNames.get(i) + " outside scale range");
+                        continue;
+                    }
+                }
+                if (isOpaque(features) && !visible.isEmpty()) {
+                    log.info("skipping layers hidden by " + layerNames.get(i));
+                    visible.clear();
+                }
+            }
+            visible.add(i);
+        }
+        return visible;
+    }
+
+    private static double scale(WmsRequest request) {
+        try {
+            return WmsUtil.getScale(request);
+        } catch (RuntimeException e) {
+            log.warn("could not calculate scale of request: " + e.getMessage());
+            return Double.NaN;
+        }
+    }
+
+    private LayerFeatures features(String layerName) {
+        Layer layer = layers.getLayer(layerName);
+        return layer == null ? null : layer.getFeatures();
+    }
+
+    /**
+     * Returns true if the layer paints every pixel of every request opaquely.
+     * The opaque hint of a layer with an extent is ignored as the layer
+     * doesn't cover requests that extend beyond it.
+     */
+    private static boolean isOpaque(LayerFeatures features) {
+        return features != null && features.isOpaque() && features.getExtent() == null;
+    }
+
+    private static void cancel(List<Future<BufferedImage>> futures) {
+        for (Future<BufferedImage> future : futures)
+            future.cancel(true);
+    }
+
+    /**
+     * Marks where a layer that did not render in time would have been drawn.
+     */
+    private static void paintPlaceholder(Graphics2D g, String layerName, WmsRequest request) {
+        log.warn("layer " + layerName + " not rendered in time");
+        g.setColor(Color.black);
+        g.setFont(g.getFont().deriveFont(10f));
+        g.drawString(layerName + " timed out", request.getWidth() / 2 - 50,
+                request.getHeight() / 2 + 10);
+    }
+
+    private static Future<BufferedImage> completed(final BufferedImage image) {
+        FutureTask<BufferedImage> task = new FutureTask<BufferedImage>(
+                new Callable<BufferedImage>() {
+                    @Override
+                    public BufferedImage call() {
+                        return image;
+                    }
+                });
+        task.run();
+        return task;
+    }
+
+    /**
+     * Returns a worker that renders a layer.
+     * 
+     * @param layers
+     *            layers
+     * @param layerName
+     *            name of the layer to render
+     * @param request
+     *            the WMS request
+     * @param cacheIndex
+     *            index of the layer in the request's layers if the rendered
+     *            raster is to be offered to the cache, otherwise -1
+     * @param opaque
+     *            true if the layer paints every pixel opaquely
+     * @param failed
+     *            set if the layer throws
+     * @return worker
+     */
     private Callable<BufferedImage> createWorker(final Layers layers, final String layerName,
-            final WmsRequest request) {
+            final WmsRequest request, final int cacheIndex, final boolean opaque,
+            final AtomicBoolean failed) {
         return new Callable<BufferedImage>() {
             @Override
             public BufferedImage call() throws Exception {
-                final MyGraphics graphics = createGraphics(request);
+                // opaque layers cover every pixel so need no alpha channel
+                final MyGraphics graphics = createGraphics(request,
+                        opaque ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
                 try {
                     paintLayer(graphics.graphics, layerName, layers, request);
+
+                    // only successfully rendered rasters are cached
+                    if (cacheIndex >= 0)
+                        imageCache.putLayerRaster(request, cacheIndex, graphics.image);
                 } catch (Throwable t) {
                     log.warn(t.getMessage(), t);
+                    // the image is served with the error drawn on it but is
+                    // not cached
+                    failed.set(true);
                     Graphics2D g = graphics.graphics;
                     g.setColor(Color.black);
                     g.setFont(g.getFont().deriveFont(10f));
@@ -171,15 +659,31 @@ class LayerManager {
             log.warn("no paintImage implementation for layer: " + layerName);
     }
 
-    private void drawImage(Graphics2D g, Future<BufferedImage> future) {
-        try {
-            BufferedImage image = future.get();
-            g.drawImage(image, 0, 0, noActionImageObserver);
-        } catch (InterruptedException e) {
-            log.warn(e.getMessage(), e);
-        } catch (ExecutionException e) {
-            log.error(e.getMessage(), e);
-        }
+    /**
+     * Draws the layer image of the future when it completes and returns it,
+     * or returns null if it doesn't complete successfully by the deadline.
+     * Supported images are blended directly on their pixel arrays rather
+     * than through Java2D.
+     */
+    private BufferedImage drawImage(MyGraphics graphics, Future<BufferedImage> future,
+            long deadline, int y) {
+        BufferedImage image = get(future, deadline);
+        if (image == null)
+            return null;
+        if (Compositor.supports(graphics.image, image))
+            Compositor.drawOver(graphics.image, image, y);
+        else
+            graphics.graphics.drawImage(image, 0, y, noActionImageObserver);
+        return image;
+    }
+
+    /**
+     * Stops the render threads. Renders in progress are interrupted.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        rasterPool.clear();
     }
 
     private void paintBackground(WmsRequest request, Graphics2D g) {
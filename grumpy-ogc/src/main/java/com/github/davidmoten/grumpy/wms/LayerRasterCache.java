@@ -0,0 +1,91 @@
+package com.github.davidmoten.grumpy.wms;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+
+/**
+ * Caches the rendered raster of individual layers (keyed by
+ * {@link CacheKey#forLayer(WmsRequest, int)}) so that any combination or
+ * ordering of layers can be composited without re-rendering the layers that
+ * have already been rendered for the same bounds, size, style and CRS.
+ *
+ * <p>
+ * Cached rasters are shared and must not be modified.
+ */
+final class LayerRasterCache {
+
+    private final WeightedCache<CacheKey, Raster> cache;
+
+    private final LayerIndex layerIndex = new LayerIndex();
+
+    LayerRasterCache(long maxBytes) {
+        this.cache = new WeightedCache<CacheKey, Raster>(maxBytes, (int) Math.min(1 << 16,
+                Math.max(16, maxBytes / (256 * 256 * 4))), new WeightedCache.Weigher<Raster>() {
+            @Override
+            public int weigh(Raster raster) {
+                return raster.weight();
+            }
+        }, null, new WeightedCache.KeyObserver<CacheKey, Raster>() {
+            @Override
+            public void added(CacheKey key) {
+                layerIndex.add(key);
+            }
+
+            @Override
+            public void removed(CacheKey key) {
+                layerIndex.remove(key);
+            }
+
+            @Override
+            public void evicted(CacheKey key, Raster raster) {
+                // nothing to do
+            }
+        });
+    }
+
+    Raster get(CacheKey key) {
+        return cache.get(key);
+    }
+
+    void put(CacheKey key, BufferedImage image, long createdTime) {
+        cache.put(key, new Raster(image, createdTime));
+    }
+
+    void remove(CacheKey key) {
+        cache.remove(key);
+    }
+
+    List<CacheKey> keys(String layerName) {
+        return layerIndex.keys(layerName);
+    }
+
+    void clear() {
+        cache.clear();
+    }
+
+    int size() {
+        return cache.size();
+    }
+
+    long weightedSize() {
+        return cache.weightedSize();
+    }
+
+    static final class Raster {
+
+        final BufferedImage image;
+        final long createdTime;
+
+        Raster(BufferedImage image, long createdTime) {
+            this.image = image;
+            this.createdTime = createdTime;
+        }
+
+        int weight() {
+            // 4 bytes per pixel for the ARGB rasters produced by LayerManager
+            return (int) Math.min(Integer.MAX_VALUE,
+                    4L * image.getWidth() * image.getHeight());
+        }
+    }
+
+}
@@ -0,0 +1,99 @@
+package com.github.davidmoten.grumpy.wms;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.github.davidmoten.grumpy.projection.ProjectorBounds;
+
+/**
+ * Maps a request for a tile of a {@link TileGrid} to the request for the
+ * enclosing block of {@code size x size} tiles (the metatile) so that the
+ * block can be rendered once and sliced into tiles.
+ */
+final class Metatiler {
+
+    /**
+     * Maximum difference of a request's edges from the grid's tile edges as a
+     * proportion of the tile size for the request to be considered a tile.
+     */
+    static final double TOLERANCE = 1e-6;
+
+    private final TileGrid grid;
+    private final int size;
+
+    Metatiler(TileGrid grid, int size) {
+        if (size < 1)
+            throw new IllegalArgumentException("size must be at least 1");
+        this.grid = grid;
+        this.size = size;
+    }
+
+    TileGrid grid() {
+        return grid;
+    }
+
+    /**
+     * Returns the metatile enclosing the requested tile or null if the request
+     * is not for a tile of the grid.
+     *
+     * @param request
+     *            the WMS request
+     * @return metatile or null
+     */
+    Metatile metatile(WmsRequest request) {
+        int[] tile = grid.tileAt(request.getBounds(), request.getWidth(), request.getHeight(),
+                TOLERANCE);
+        if (tile == null)
+            return null;
+        int zoom = tile[0];
+        int minColumn = tile[1] / size * size;
+        int minRow = tile[2] / size * size;
+        int maxColumn = Math.min(minColumn + size, grid.columns(zoom)) - 1;
+        int maxRow = Math.min(minRow + size, grid.rows(zoom)) - 1;
+        ProjectorBounds topLeft = grid.tileBounds(zoom, minColumn, minRow);
+        ProjectorBounds bottomRight = grid.tileBounds(zoom, maxColumn, maxRow);
+        ProjectorBounds bounds = new ProjectorBounds(grid.srs(), topLeft.getMinX(),
+                bottomRight.getMinY(), bottomRight.getMaxX(), topLeft.getMaxY());
+        int tileSize = grid.tileSize();
+        WmsRequest metaRequest = request.modifyBounds(bounds).modifySize(
+                (maxColumn - minColumn + 1) * tileSize, (maxRow - minRow + 1) * tileSize);
+        List<Tile> tiles = new ArrayList<Tile>();
+        for (int row = minRow; row <= maxRow; row++)
+            for (int column = minColumn; column <= maxColumn; column++) {
+                // the requested tile keeps the request's own bounds (which may
+                // differ from the grid's within the tolerance) so that its
+                // cache key is unchanged
+                WmsRequest tileRequest = column == tile[1] && row == tile[2] ? request
+                        : request.modifyBounds(grid.tileBounds(zoom, column, row));
+                tiles.add(new Tile(tileRequest, (column - minColumn) * tileSize,
+                        (row - minRow) * tileSize));
+            }
+        return new Metatile(metaRequest, Collections.unmodifiableList(tiles));
+    }
+
+    static final class Metatile {
+
+        final WmsRequest request;
+        final List<Tile> tiles;
+
+        Metatile(WmsRequest request, List<Tile> tiles) {
+            this.request = request;
+            this.tiles = tiles;
+        }
+    }
+
+    static final class Tile {
+
+        final WmsRequest request;
+        final int x;
+        final int y;
+
+        Tile(WmsRequest request, int x, int y) {
+            this.request = request;
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+}
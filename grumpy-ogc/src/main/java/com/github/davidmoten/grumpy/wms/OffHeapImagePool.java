@@ -0,0 +1,200 @@
+package com.github.davidmoten.grumpy.wms;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Allocates encoded images in direct (off-heap) memory so that the bytes held
+ * by the {@link ImageCache} do not contribute to garbage collection pauses.
+ * 
+ * <p>
+ * Memory is reserved in slabs (allocated lazily up to the pool capacity) that
+ * are divided into fixed size blocks. An image occupies as many blocks as it
+ * needs, not necessarily contiguous, so the pool does not fragment. Blocks
+ * are returned to the free list when the last reference to an image is
+ * released.
+ */
+final class OffHeapImagePool {
+
+    static final int DEFAULT_BLOCK_BYTES = 8 * 1024;
+
+    static final int DEFAULT_SLAB_BYTES = 16 * 1024 * 1024;
+
+    private final int blockBytes;
+
+    private final int blocksPerSlab;
+
+    private final ByteBuffer[] slabs;
+
+    // guarded by this
+    private int slabCount;
+
+    // stack of free block numbers, guarded by this
+    private final int[] freeBlocks;
+
+    private int freeCount;
+
+    /**
+     * Constructor.
+     * 
+     * @param capacityBytes
+     *            maximum bytes of direct memory to use
+     * @param blockBytes
+     *            size of each block
+     * @param slabBytes
+     *            size of each slab (a multiple of blockBytes)
+     */
+    OffHeapImagePool(long capacityBytes, int blockBytes, int slabBytes) {
+        this.blockBytes = blockBytes;
+        this.blocksPerSlab = slabBytes / blockBytes;
+        long slabs = (capacityBytes + slabBytes - 1) / slabBytes;
+        if (slabs * blocksPerSlab > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("capacity too large: " + capacityBytes);
+        this.slabs = new ByteBuffer[(int) slabs];
+        this.freeBlocks = new int[(int) slabs * blocksPerSlab];
+    }
+
+    /**
+     * Returns the number of bytes that would be occupied by an image of the
+     * given length.
+     * 
+     * @param length
+     *            image length in bytes
+     * @return bytes occupied
+     */
+    int weigh(int length) {
+        return blocksFor(length) * blockBytes;
+    }
+
+    /**
+     * Copies the bytes into off-heap memory. The returned image has a single
+     * reference owned by the caller.
+     * 
+     * @param bytes
+     *            encoded image
+     * @param createdTime
+     *            time the image was rendered in epoch milliseconds
+     * @return image or null if the pool has insufficient free memory
+     */
+    CachedImage allocate(byte[] bytes, long createdTime) {
+        int[] blocks = take(blocksFor(bytes.length));
+        if (blocks == null)
+            return null;
+        int offset = 0;
+        for (int block : blocks) {
+            int n = Math.min(blockBytes, bytes.length - offset);
+            ByteBuffer b = slice(block);
+            b.put(bytes, offset, n);
+            offset += n;
+        }
+        return new OffHeapImage(blocks, bytes.length, createdTime,
+                CachedImage.contentHash(bytes));
+    }
+
+    private int blocksFor(int length) {
+        return Math.max(1, (length + blockBytes - 1) / blockBytes);
+    }
+
+    private synchronized int[] take(int n) {
+        while (freeCount < n && slabCount < slabs.length)
+            addSlab();
+        if (freeCount < n)
+            return null;
+        int[] blocks = new int[n];
+        for (int i = 0; i < n; i++)
+            blocks[i] = freeBlocks[--freeCount];
+        return blocks;
+    }
+
+    private void addSlab() {
+        int slab = slabCount++;
+        slabs[slab] = ByteBuffer.allocateDirect(blocksPerSlab * blockBytes);
+        // push in reverse so that blocks are handed out in address order
+        for (int i = blocksPerSlab - 1; i >= 0; i--)
+            freeBlocks[freeCount++] = slab * blocksPerSlab + i;
+    }
+
+    private synchronized void free(int[] blocks) {
+        for (int block : blocks)
+            freeBlocks[freeCount++] = block;
+    }
+
+    private ByteBuffer slice(int block) {
+        ByteBuffer b = slabs[block / blocksPerSlab].duplicate();
+        b.position((block % blocksPerSlab) * blockBytes);
+        return b;
+    }
+
+    private final class OffHeapImage extends CachedImage {
+
+        private final int[] blocks;
+        private final int length;
+        private final long contentHash;
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        OffHeapImage(int[] blocks, int length, long createdTime, long contentHash) {
+            super(createdTime);
+            this.blocks = blocks;
+            this.length = length;
+            this.contentHash = contentHash;
+        }
+
+        @Override
+        long contentHash() {
+            return contentHash;
+        }
+
+        @Override
+        int length() {
+            return length;
+        }
+
+        @Override
+        int weight() {
+            return blocks.length * blockBytes;
+        }
+
+        @Override
+        void writeTo(OutputStream out) throws IOException {
+            byte[] buffer = new byte[Math.min(length, blockBytes)];
+            int offset = 0;
+            for (int block : blocks) {
+                int n = Math.min(blockBytes, length - offset);
+                slice(block).get(buffer, 0, n);
+                out.write(buffer, 0, n);
+                offset += n;
+            }
+        }
+
+        @Override
+        byte[] toByteArray() {
+            byte[] bytes = new byte[length];
+            int offset = 0;
+            for (int block : blocks) {
+                int n = Math.min(blockBytes, length - offset);
+                slice(block).get(bytes, offset, n);
+                offset += n;
+            }
+            return bytes;
+        }
+
+        @Override
+        boolean retain() {
+            while (true) {
+                int n = references.get();
+                if (n == 0)
+                    return false;
+                if (references.compareAndSet(n, n + 1))
+                    return true;
+            }
+        }
+
+        @Override
+        void release() {
+            if (references.decrementAndGet() == 0)
+                free(blocks);
+        }
+    }
+}
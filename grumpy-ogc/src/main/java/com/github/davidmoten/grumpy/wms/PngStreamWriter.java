@@ -0,0 +1,234 @@
+package com.github.davidmoten.grumpy.wms;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes a PNG image a band of rows at a time and writes each compressed
+ * chunk to the output stream as soon as it is produced, so that the memory
+ * used is bounded by the size of a band rather than the size of the image.
+ * Each row is filtered with the PNG filter that minimises the sum of absolute
+ * differences (the heuristic recommended by the PNG specification).
+ *
+ * <p>
+ * Images are written as 8 bit RGBA or, if not transparent, 8 bit RGB.
+ */
+final class PngStreamWriter implements Closeable {
+
+    private static final byte[] SIGNATURE = { (byte) 137, 80, 78, 71, 13, 10, 26, 10 };
+
+    private static final int COLOR_TYPE_RGB = 2;
+    private static final int COLOR_TYPE_RGBA = 6;
+
+    /**
+     * Maximum size of the data of each IDAT chunk.
+     */
+    private static final int CHUNK_BYTES = 64 * 1024;
+
+    private static final int FILTERS = 5;
+
+    private final DataOutputStream out;
+    private final int width;
+    private final int height;
+    private final int bytesPerPixel;
+    private final Deflater deflater;
+
+    /**
+     * Filter type byte followed by the filtered row, for each filter type.
+     */
+    private final byte[][] filtered;
+    private byte[] previous;
+    private byte[] current;
+    private final byte[] chunk = new byte[CHUNK_BYTES];
+    private int rows;
+
+    /**
+     * Writes the PNG header.
+     *
+     * @param out
+     *            stream to write to, not closed by this
+     * @param width
+     *            image width in pixels
+     * @param height
+     *            image height in pixels
+     * @param transparent
+     *            if true an alpha channel is written
+     * @param compressionLevel
+     *            deflate level 0 to 9
+     * @throws IOException
+     *             on write failure
+     */
+    PngStreamWriter(OutputStream out, int width, int height, boolean transparent,
+            int compressionLevel) throws IOException {
+        this.out = new DataOutputStream(out);
+        this.width = width;
+        this.height = height;
+        this.bytesPerPixel = transparent ? 4 : 3;
+        this.deflater = new Deflater(compressionLevel);
+        int rowBytes = width * bytesPerPixel;
+        this.filtered = new byte[FILTERS][rowBytes + 1];
+        this.previous = new byte[rowBytes];
+        this.current = new byte[rowBytes];
+        this.out.write(SIGNATURE);
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8;
+        header[9] = (byte) (transparent ? COLOR_TYPE_RGBA : COLOR_TYPE_RGB);
+        // compression, filter and interlace methods are all 0
+        writeChunk("IHDR", header, header.length);
+    }
+
+    /**
+     * Encodes the rows of the band, which are the next rows of the image.
+     *
+     * @param band
+     *            image of the full width and any height
+     * @throws IOException
+     *             on write failure
+     */
+    void write(BufferedImage band) throws IOException {
+        if (band.getWidth() != width)
+            throw new IllegalArgumentException("band width " + band.getWidth()
+                    + " does not match image width " + width);
+        if (rows + band.getHeight() > height)
+            throw new IllegalArgumentException("too many rows");
+        int[] argb = new int[width];
+        for (int y = 0; y < band.getHeight(); y++) {
+            band.getRGB(0, y, width, 1, argb, 0, width);
+            int i = 0;
+            for (int x = 0; x < width; x++) {
+                int p = argb[x];
+                current[i++] = (byte) (p >> 16);
+                current[i++] = (byte) (p >> 8);
+                current[i++] = (byte) p;
+                if (bytesPerPixel == 4)
+                    current[i++] = (byte) (p >>> 24);
+            }
+            byte[] row = filter();
+            deflater.setInput(row);
+            deflate(false);
+            byte[] t = previous;
+            previous = current;
+            current = t;
+            rows++;
+        }
+        out.flush();
+    }
+
+    /**
+     * Returns the filter byte and filtered row with the smallest sum of
+     * absolute values (as signed bytes).
+     */
+    private byte[] filter() {
+        int n = current.length;
+        long best = Long.MAX_VALUE;
+        byte[] result = null;
+        for (int type = 0; type < FILTERS; type++) {
+            byte[] f = filtered[type];
+            f[0] = (byte) type;
+            long sum = 0;
+            for (int i = 0; i < n; i++) {
+                int x = current[i] & 0xff;
+                int a = i >= bytesPerPixel ? current[i - bytesPerPixel] & 0xff : 0;
+                int b = previous[i] & 0xff;
+                int c = i >= bytesPerPixel ? previous[i - bytesPerPixel] & 0xff : 0;
+                int v;
+                switch (type) {
+                case 0:
+                    v = x;
+                    break;
+                case 1:
+                    v = x - a;
+                    break;
+                case 2:
+                    v = x - b;
+                    break;
+                case 3:
+                    v = x - ((a + b) >> 1);
+                    break;
+                default:
+                    v = x - paeth(a, b, c);
+                }
+                f[i + 1] = (byte) v;
+                sum += Math.abs((byte) v);
+            }
+            if (sum < best) {
+                best = sum;
+                result = f;
+            }
+        }
+        return result;
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc)
+            return a;
+        else if (pb <= pc)
+            return b;
+        else
+            return c;
+    }
+
+    /**
+     * Writes compressed data as IDAT chunks until all input is consumed or, if
+     * finishing, until the compressed stream is complete.
+     */
+    private void deflate(boolean finishing) throws IOException {
+        while (true) {
+            int n = deflater.deflate(chunk);
+            if (n > 0)
+                writeChunk("IDAT", chunk, n);
+            if (finishing ? deflater.finished() : n == 0 && deflater.needsInput())
+                return;
+        }
+    }
+
+    /**
+     * Completes the image. All rows must have been written.
+     *
+     * @throws IOException
+     *             on write failure or if rows are missing
+     */
+    void finish() throws IOException {
+        if (rows != height)
+            throw new IOException("only " + rows + " of " + height + " rows written");
+        deflater.finish();
+        deflate(true);
+        writeChunk("IEND", chunk, 0);
+        out.flush();
+    }
+
+    @Override
+    public void close() {
+        deflater.end();
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private static void putInt(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >>> 24);
+        b[offset + 1] = (byte) (value >>> 16);
+        b[offset + 2] = (byte) (value >>> 8);
+        b[offset + 3] = (byte) value;
+    }
+
+}
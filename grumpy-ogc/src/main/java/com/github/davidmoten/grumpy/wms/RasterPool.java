@@ -0,0 +1,185 @@
+package com.github.davidmoten.grumpy.wms;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Pool of {@code TYPE_INT_ARGB} and {@code TYPE_INT_RGB} images keyed by type
+ * and size so that the large pixel arrays of the images rendered for each
+ * request are reused across requests rather than allocated (as humongous
+ * objects for large images under G1) and collected every time. The pool
+ * retains at most a given number of bytes of pixels; when full the least
+ * recently released images are dropped.
+ *
+ * <p>
+ * Images are cleared (to transparent or black) when acquired. An image must
+ * only be released when nothing references it (or a subimage of it) any more.
+ */
+final class RasterPool {
+
+    private static final int BYTES_PER_PIXEL = 4;
+
+    private final long maxBytes;
+
+    /**
+     * Released images by type and size, most recently released last.
+     */
+    private final Map<Key, ArrayDeque<BufferedImage>> images = new HashMap<Key, ArrayDeque<BufferedImage>>();
+
+    /**
+     * All released images in release order (identity keyed) with their key,
+     * used to drop the least recently released when full.
+     */
+    private final LinkedHashMap<BufferedImage, Key> order = new LinkedHashMap<BufferedImage, Key>();
+
+    private long bytes;
+
+    /**
+     * Constructor.
+     *
+     * @param maxBytes
+     *            maximum number of bytes of pixels retained, 0 to disable
+     *            pooling
+     */
+    RasterPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns a cleared (fully transparent) {@code TYPE_INT_ARGB} image of the
+     * given size, reusing a released image if available.
+     *
+     * @param width
+     *            width in pixels
+     * @param height
+     *            height in pixels
+     * @return image
+     */
+    BufferedImage acquire(int width, int height) {
+        return acquire(width, height, BufferedImage.TYPE_INT_ARGB);
+    }
+
+    /**
+     * Returns a cleared image of the given size and type, reusing a released
+     * image if available.
+     *
+     * @param width
+     *            width in pixels
+     * @param height
+     *            height in pixels
+     * @param type
+     *            {@code TYPE_INT_ARGB} or {@code TYPE_INT_RGB}
+     * @return image
+     */
+    BufferedImage acquire(int width, int height, int type) {
+        if (!isPoolable(type))
+            throw new IllegalArgumentException("unsupported image type " + type);
+        BufferedImage image = poll(new Key(width, height, type));
+        if (image == null)
+            return new BufferedImage(width, height, type);
+        Arrays.fill(((DataBufferInt) image.getRaster().getDataBuffer()).getData(), 0);
+        return image;
+    }
+
+    private synchronized BufferedImage poll(Key key) {
+        ArrayDeque<BufferedImage> deque = images.get(key);
+        if (deque == null)
+            return null;
+        BufferedImage image = deque.pollLast();
+        if (image == null)
+            return null;
+        order.remove(image);
+        bytes -= weight(image);
+        return image;
+    }
+
+    /**
+     * Returns the image to the pool. Images that are not {@code TYPE_INT_ARGB}
+     * or {@code TYPE_INT_RGB} or are subimages are ignored.
+     *
+     * @param image
+     *            image no longer referenced by the caller
+     */
+    synchronized void release(BufferedImage image) {
+        long weight = weight(image);
+        if (!isPoolable(image.getType()) || image.getRaster().getParent() != null
+                || weight > maxBytes || order.containsKey(image))
+            return;
+        Key key = new Key(image.getWidth(), image.getHeight(), image.getType());
+        ArrayDeque<BufferedImage> deque = images.get(key);
+        if (deque == null) {
+            deque = new ArrayDeque<BufferedImage>();
+            images.put(key, deque);
+        }
+        deque.addLast(image);
+        order.put(image, key);
+        bytes += weight;
+        // drop the least recently released images
+        Iterator<Map.Entry<BufferedImage, Key>> it = order.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            Map.Entry<BufferedImage, Key> entry = it.next();
+            ArrayDeque<BufferedImage> d = images.get(entry.getValue());
+            // the least recently released of all is the first of its key
+            d.pollFirst();
+            if (d.isEmpty())
+                images.remove(entry.getValue());
+            bytes -= weight(entry.getKey());
+            it.remove();
+        }
+    }
+
+    synchronized int size() {
+        return order.size();
+    }
+
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    synchronized void clear() {
+        images.clear();
+        order.clear();
+        bytes = 0;
+    }
+
+    private static boolean isPoolable(int type) {
+        return type == BufferedImage.TYPE_INT_ARGB || type == BufferedImage.TYPE_INT_RGB;
+    }
+
+    private static long weight(BufferedImage image) {
+        return (long) image.getWidth() * image.getHeight() * BYTES_PER_PIXEL;
+    }
+
+    private static final class Key {
+
+        private final int width;
+        private final int height;
+        private final int type;
+
+        Key(int width, int height, int type) {
+            this.width = width;
+            this.height = height;
+            this.type = type;
+        }
+
+        @Override
+        public int hashCode() {
+            return (31 * width + height) * 31 + type;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key))
+                return false;
+            Key other = (Key) obj;
+            return width == other.width && height == other.height && type == other.type;
+        }
+    }
+
+}
@@ -0,0 +1,24 @@
+package com.github.davidmoten.grumpy.wms;
+
+/**
+ * Priority classes of layer work scheduled by {@link RenderScheduler}, highest
+ * first.
+ */
+enum RenderPriority {
+
+    /**
+     * GetMap requests from clients waiting for the image.
+     */
+    INTERACTIVE,
+
+    /**
+     * Seeding of the image cache and background refresh of expired images.
+     */
+    BACKGROUND,
+
+    /**
+     * GetFeatureInfo lookups.
+     */
+    FEATURE_INFO;
+
+}
@@ -0,0 +1,18 @@
+package com.github.davidmoten.grumpy.wms;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a render is refused because the render queue is full so that
+ * the server can shed load (for example with HTTP 503) rather than queue work
+ * without limit.
+ */
+public class RenderRejectedException extends IOException {
+
+    private static final long serialVersionUID = 4829372641906523781L;
+
+    public RenderRejectedException(String message) {
+        super(message);
+    }
+
+}
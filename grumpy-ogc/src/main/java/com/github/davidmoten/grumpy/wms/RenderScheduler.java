@@ -0,0 +1,407 @@
+package com.github.davidmoten.grumpy.wms;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Dispatches layer work to render threads in priority order (see
+ * {@link RenderPriority}) while limiting the number of concurrent tasks of
+ * each layer (a bulkhead) so that an expensive layer cannot occupy every
+ * render thread. A task of a layer at its limit waits without holding a
+ * thread and the next eligible task is dispatched instead. Tasks of the same
+ * priority are dispatched in submission order.
+ *
+ * <p>
+ * The tasks of one render share a {@link Job} whose priority is raised when a
+ * caller of higher priority joins the render. Waiting tasks age: each
+ * {@code agingMs} a task waits raises its priority by one class, so that
+ * lower classes still make progress under a steady load of higher priority
+ * work.
+ *
+ * <p>
+ * The number of waiting tasks is bounded; further submissions are rejected.
+ * Half of the queue is reserved for {@link RenderPriority#INTERACTIVE} tasks
+ * so that background and feature info work cannot cause interactive requests
+ * to be rejected.
+ */
+final class RenderScheduler {
+
+    /**
+     * Default time a task waits before its priority is raised by one class.
+     */
+    static final long DEFAULT_AGING_MS = 1000;
+
+    private final ExecutorService executor;
+
+    private final int maxRunning;
+
+    private final int maxPending;
+
+    /**
+     * Maximum waiting tasks submitted below
+     * {@link RenderPriority#INTERACTIVE}.
+     */
+    private final int maxPendingLower;
+
+    private final long agingMs;
+
+    /**
+     * Maximum concurrent tasks by layer name, layers not present are only
+     * limited by {@link #maxRunning}.
+     */
+    private final Map<String, Integer> layerLimits;
+
+    private final Object lock = new Object();
+
+    /**
+     * Waiting tasks in submission order. Guarded by lock.
+     */
+    private final ArrayDeque<Task<?>> pending = new ArrayDeque<Task<?>>();
+
+    /**
+     * Waiting tasks submitted below {@link RenderPriority#INTERACTIVE}.
+     * Guarded by lock.
+     */
+    private int pendingLower;
+
+    private int running;
+
+    /**
+     * Running tasks by layer name. Guarded by lock.
+     */
+    private final Map<String, Integer> runningByLayer = new HashMap<String, Integer>();
+
+    private RenderScheduler(ExecutorService executor, int maxRunning, int maxPending,
+            long agingMs, Map<String, Integer> layerLimits) {
+        this.executor = executor;
+        this.maxRunning = maxRunning;
+        this.maxPending = maxPending;
+        this.maxPendingLower = Math.max(1, maxPending / 2);
+        this.agingMs = agingMs;
+        this.layerLimits = new HashMap<String, Integer>(layerLimits);
+    }
+
+    /**
+     * Returns a scheduler.
+     *
+     * @param threads
+     *            number of render threads, ignored if virtual threads
+     * @param queueSize
+     *            maximum number of waiting tasks (and of running tasks if
+     *            virtual threads)
+     * @param virtualThreads
+     *            if true each task runs on its own virtual thread, which the
+     *            runtime must support (see {@link VirtualThreads#isSupported()})
+     * @param layerLimits
+     *            maximum concurrent tasks by layer name
+     * @return scheduler
+     */
+    static RenderScheduler create(int threads, int queueSize, boolean virtualThreads,
+            Map<String, Integer> layerLimits) {
+        return create(threads, queueSize, virtualThreads, DEFAULT_AGING_MS, layerLimits);
+    }
+
+    /**
+     * Returns a scheduler.
+     *
+     * @param threads
+     *            number of render threads, ignored if virtual threads
+     * @param queueSize
+     *            maximum number of waiting tasks (and of running tasks if
+     *            virtual threads)
+     * @param virtualThreads
+     *            if true each task runs on its own virtual thread, which the
+     *            runtime must support (see {@link VirtualThreads#isSupported()})
+     * @param agingMs
+     *            time a task waits before its priority is raised by one class
+     * @param layerLimits
+     *            maximum concurrent tasks by layer name
+     * @return scheduler
+     */
+    static RenderScheduler create(int threads, int queueSize, boolean virtualThreads,
+            long agingMs, Map<String, Integer> layerLimits) {
+        if (virtualThreads)
+            // blocking layers (for example waiting on a database) only hold
+            // a cheap virtual thread so don't starve the other layers
+            return new RenderScheduler(VirtualThreads.newThreadPerTaskExecutor("wms-render-"),
+                    queueSize, queueSize, agingMs, layerLimits);
+        final AtomicInteger count = new AtomicInteger();
+        // at most maxRunning tasks are given to the pool so its own queue
+        // stays empty and the scheduler decides the order
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "wms-render-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        return new RenderScheduler(executor, threads, queueSize, agingMs, layerLimits);
+    }
+
+    /**
+     * Schedules the task as a job of its own.
+     *
+     * @param layerName
+     *            layer the task is for
+     * @param priority
+     *            priority class
+     * @param callable
+     *            work
+     * @return future of the task, cancelling a waiting task removes it
+     * @throws RejectedExecutionException
+     *             if too many tasks are waiting or the scheduler is shut down
+     */
+    <T> Future<T> submit(String layerName, RenderPriority priority, Callable<T> callable) {
+        return submit(layerName, new Job(priority), false, callable);
+    }
+
+    /**
+     * Schedules the task.
+     *
+     * @param layerName
+     *            layer the task is for
+     * @param job
+     *            the job the task is part of, decides its priority
+     * @param admitted
+     *            if true the task continues work that has already been
+     *            admitted (for example a later band of a streamed image) and
+     *            is not rejected when too many tasks are waiting
+     * @param callable
+     *            work
+     * @return future of the task, cancelling a waiting task removes it
+     * @throws RejectedExecutionException
+     *             if not admitted and too many tasks are waiting or if the
+     *             scheduler is shut down
+     */
+    <T> Future<T> submit(String layerName, Job job, boolean admitted, Callable<T> callable) {
+        boolean lower = job.priority() != RenderPriority.INTERACTIVE;
+        Task<T> task = new Task<T>(layerName, job, lower, callable);
+        synchronized (lock) {
+            if (executor.isShutdown())
+                throw new RejectedExecutionException("render scheduler is shut down");
+            if (!admitted && pending.size() >= maxPending)
+                throw new RejectedExecutionException("render queue full");
+            if (!admitted && lower && pendingLower >= maxPendingLower)
+                throw new RejectedExecutionException("render queue full for " + job.priority()
+                        + " work");
+            task.submitted = System.currentTimeMillis();
+            pending.addLast(task);
+            if (lower)
+                pendingLower++;
+        }
+        dispatch();
+        return task;
+    }
+
+    /**
+     * Starts the waiting tasks that are eligible to run.
+     */
+    private void dispatch() {
+        while (true) {
+            Task<?> next;
+            synchronized (lock) {
+                if (running >= maxRunning)
+                    return;
+                next = nextEligible(System.currentTimeMillis());
+                if (next == null)
+                    return;
+                pending.remove(next);
+                if (next.lower)
+                    pendingLower--;
+                running++;
+                increment(next.layerName, 1);
+                next.dispatched = true;
+            }
+            try {
+                executor.execute(next);
+            } catch (RejectedExecutionException e) {
+                // shut down meanwhile
+                next.cancel(false);
+                finished(next);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the oldest waiting task of the highest effective priority whose
+     * layer is below its limit or null if none. Must hold lock.
+     */
+    private Task<?> nextEligible(long now) {
+        Task<?> best = null;
+        int bestRank = Integer.MAX_VALUE;
+        // in submission order so the first of a rank is the oldest
+        Iterator<Task<?>> it = pending.iterator();
+        while (it.hasNext() && bestRank > 0) {
+            Task<?> task = it.next();
+            int rank = task.rank(now, agingMs);
+            if (rank < bestRank && hasCapacity(task.layerName)) {
+                best = task;
+                bestRank = rank;
+            }
+        }
+        return best;
+    }
+
+    private boolean hasCapacity(String layerName) {
+        Integer limit = layerLimits.get(layerName);
+        if (limit == null)
+            return true;
+        Integer count = runningByLayer.get(layerName);
+        return count == null || count < limit;
+    }
+
+    private void increment(String layerName, int delta) {
+        Integer count = runningByLayer.get(layerName);
+        int n = (count == null ? 0 : count) + delta;
+        if (n == 0)
+            runningByLayer.remove(layerName);
+        else
+            runningByLayer.put(layerName, n);
+    }
+
+    private void finished(Task<?> task) {
+        synchronized (lock) {
+            running--;
+            increment(task.layerName, -1);
+        }
+        dispatch();
+    }
+
+    private void cancelled(Task<?> task) {
+        synchronized (lock) {
+            if (task.dispatched)
+                // counts are decremented when run returns
+                return;
+            if (pending.remove(task) && task.lower)
+                pendingLower--;
+        }
+    }
+
+    /**
+     * Cancels waiting tasks and interrupts running tasks.
+     */
+    void shutdownNow() {
+        List<Task<?>> waiting;
+        synchronized (lock) {
+            executor.shutdownNow();
+            waiting = new ArrayList<Task<?>>(pending);
+            pending.clear();
+            pendingLower = 0;
+        }
+        for (Task<?> task : waiting)
+            task.cancel(false);
+    }
+
+    int pendingCount() {
+        synchronized (lock) {
+            return pending.size();
+        }
+    }
+
+    int runningCount() {
+        synchronized (lock) {
+            return running;
+        }
+    }
+
+    /**
+     * The priority shared by the tasks of one render. The priority can be
+     * raised while the tasks wait, for example when a request of higher
+     * priority joins a render already in flight so that it doesn't wait at
+     * the lower priority.
+     */
+    static final class Job {
+
+        private volatile RenderPriority priority;
+
+        Job(RenderPriority priority) {
+            this.priority = priority;
+        }
+
+        RenderPriority priority() {
+            return priority;
+        }
+
+        /**
+         * Raises the priority of the job to the given priority if that is
+         * higher.
+         *
+         * @param p
+         *            priority
+         */
+        synchronized void raise(RenderPriority p) {
+            if (p.ordinal() < priority.ordinal())
+                priority = p;
+        }
+    }
+
+    private final class Task<T> extends FutureTask<T> {
+
+        final String layerName;
+        final Job job;
+
+        /**
+         * True if submitted below {@link RenderPriority#INTERACTIVE} (and
+         * so counted against the lower classes' share of the queue).
+         */
+        final boolean lower;
+
+        /**
+         * Guarded by lock.
+         */
+        long submitted;
+
+        /**
+         * Guarded by lock.
+         */
+        boolean dispatched;
+
+        Task(String layerName, Job job, boolean lower, Callable<T> callable) {
+            super(callable);
+            this.layerName = layerName;
+            this.job = job;
+            this.lower = lower;
+        }
+
+        /**
+         * Returns the ordinal of the task's priority less one for each
+         * {@code agingMs} it has waited, 0 being the highest.
+         */
+        int rank(long now, long agingMs) {
+            int rank = job.priority().ordinal();
+            if (rank > 0 && agingMs > 0)
+                rank = (int) Math.max(0, rank - (now - submitted) / agingMs);
+            return rank;
+        }
+
+        @Override
+        public void run() {
+            try {
+                super.run();
+            } finally {
+                finished(this);
+            }
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled())
+                cancelled(this);
+        }
+    }
+
+}
@@ -0,0 +1,231 @@
+package com.github.davidmoten.grumpy.wms;
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import com.github.davidmoten.grumpy.projection.ProjectorBounds;
+
+/**
+ * Describes the tiles to render into the {@link ImageCache} ahead of client
+ * requests (see {@link WmsRequestProcessor#seed(SeedRequest)}).
+ */
+public final class SeedRequest {
+
+    private final WmsRequest template;
+    private final TileGrid grid;
+    private final ProjectorBounds region;
+    private final int minZoom;
+    private final int maxZoom;
+    private final int threads;
+    private final double maxTilesPerSecond;
+
+    private SeedRequest(WmsRequest template, TileGrid grid, ProjectorBounds region, int minZoom,
+            int maxZoom, int threads, double maxTilesPerSecond) {
+        this.template = template;
+        this.grid = grid;
+        this.region = region;
+        this.minZoom = minZoom;
+        this.maxZoom = maxZoom;
+        this.threads = threads;
+        this.maxTilesPerSecond = maxTilesPerSecond;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+
+        private List<String> layers = new ArrayList<String>();
+        private List<String> styles = Collections.emptyList();
+        private String format = "image/png";
+        private boolean transparent = true;
+        private WmsRequest template;
+        private TileGrid grid = TileGrid.epsg3857();
+        private ProjectorBounds region;
+        private int minZoom = 0;
+        private int maxZoom = 0;
+        private int threads = 1;
+        private double maxTilesPerSecond = 0;
+
+        private Builder() {
+        }
+
+        public Builder layers(String... layers) {
+            this.layers = Arrays.asList(layers);
+            return this;
+        }
+
+        public Builder layers(List<String> layers) {
+            this.layers = layers;
+            return this;
+        }
+
+        public Builder styles(List<String> styles) {
+            this.styles = styles;
+            return this;
+        }
+
+        public Builder format(String format) {
+            this.format = format;
+            return this;
+        }
+
+        public Builder transparent(boolean transparent) {
+            this.transparent = transparent;
+            return this;
+        }
+
+        /**
+         * Sets the request whose parameters (other than bounds and size) are
+         * used for every tile. Use this so that seeded images have the same
+         * cache key as the requests clients will make (for example the same
+         * vendor parameters or background colour). Overrides
+         * {@link #layers(List)}, {@link #styles(List)}, {@link #format(String)}
+         * and {@link #transparent(boolean)}.
+         *
+         * @param template
+         *            request to copy
+         * @return this
+         */
+        public Builder template(WmsRequest template) {
+            this.template = template;
+            return this;
+        }
+
+        public Builder grid(TileGrid grid) {
+            this.grid = grid;
+            return this;
+        }
+
+        /**
+         * Sets the region to seed in the srs of the grid. Defaults to the
+         * extent of the grid.
+         *
+         * @param region
+         *            region to seed
+         * @return this
+         */
+        public Builder region(ProjectorBounds region) {
+            this.region = region;
+            return this;
+        }
+
+        /**
+         * Sets the range of zoom levels to seed (inclusive). The maximum must
+         * not exceed the {@link TileGrid#maxZoom() maximum zoom level} of the
+         * grid.
+         *
+         * @param minZoom
+         *            minimum zoom level
+         * @param maxZoom
+         *            maximum zoom level
+         * @return this
+         */
+        public Builder zoom(int minZoom, int maxZoom) {
+            this.minZoom = minZoom;
+            this.maxZoom = maxZoom;
+            return this;
+        }
+
+        /**
+         * Sets the number of tiles rendered concurrently. Defaults to 1.
+         *
+         * @param threads
+         *            number of seeding threads
+         * @return this
+         */
+        public Builder threads(int threads) {
+            this.threads = threads;
+            return this;
+        }
+
+        /**
+         * Limits the rate at which tiles are rendered so that seeding doesn't
+         * starve client requests. Defaults to unlimited.
+         *
+         * @param maxTilesPerSecond
+         *            maximum tiles per second, non-positive for unlimited
+         * @return this
+         */
+        public Builder maxTilesPerSecond(double maxTilesPerSecond) {
+            this.maxTilesPerSecond = maxTilesPerSecond;
+            return this;
+        }
+
+        public SeedRequest build() {
+            if (minZoom < 0 || maxZoom < minZoom)
+                throw new IllegalArgumentException("invalid zoom range " + minZoom + ".."
+                        + maxZoom);
+            if (maxZoom > grid.maxZoom())
+                throw new IllegalArgumentException("maxZoom " + maxZoom
+                        + " exceeds the maximum zoom level " + grid.maxZoom() + " of " + grid);
+            if (threads <= 0)
+                throw new IllegalArgumentException("threads must be positive");
+            WmsRequest t = template;
+            if (t == null) {
+                if (layers.isEmpty())
+                    throw new IllegalArgumentException("layers must be specified");
+                t = new WmsRequest(layers, Collections.<String> emptyList(), styles,
+                        grid.extent(), format, grid.tileSize(), grid.tileSize(), transparent,
+                        Color.white, "1.1.1", null, new HashMap<String, String>(), null);
+            }
+            return new SeedRequest(t, grid, region == null ? grid.extent() : region, minZoom,
+                    maxZoom, threads, maxTilesPerSecond);
+        }
+    }
+
+    /**
+     * Returns the request for a tile.
+     *
+     * @param zoom
+     *            zoom level
+     * @param column
+     *            column of the tile
+     * @param row
+     *            row of the tile
+     * @return request
+     */
+    WmsRequest tileRequest(int zoom, int column, int row) {
+        return template.modifyBounds(grid.tileBounds(zoom, column, row)).modifySize(
+                grid.tileSize(), grid.tileSize());
+    }
+
+    List<String> getLayers() {
+        return template.getLayers();
+    }
+
+    TileGrid getGrid() {
+        return grid;
+    }
+
+    ProjectorBounds getRegion() {
+        return region;
+    }
+
+    int getMinZoom() {
+        return minZoom;
+    }
+
+    int getMaxZoom() {
+        return maxZoom;
+    }
+
+    int getThreads() {
+        return threads;
+    }
+
+    double getMaxTilesPerSecond() {
+        return maxTilesPerSecond;
+    }
+
+    @Override
+    public String toString() {
+        return "SeedRequest [layers=" + template.getLayers() + ", grid=" + grid + ", zoom="
+                + minZoom + ".." + maxZoom + "]";
+    }
+}
@@ -0,0 +1,247 @@
+package com.github.davidmoten.grumpy.wms;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Progress of, and control over, a running {@link SeedRequest}. Tiles are
+ * rendered by low priority daemon threads that finish when all tiles have
+ * been visited or the task is cancelled.
+ */
+public final class SeedTask {
+
+    private static Logger log = LoggerFactory.getLogger(SeedTask.class);
+
+    /**
+     * Renders and caches the image for a tile request.
+     */
+    interface TileLoader {
+        /**
+         * Ensures the image for the request is cached.
+         *
+         * @param request
+         *            tile request
+         * @return true if rendered, false if already cached
+         * @throws Exception
+         *             if the render fails
+         */
+        boolean load(WmsRequest request) throws Exception;
+    }
+
+    private final SeedRequest request;
+    private final TileLoader loader;
+    private final long total;
+    private final AtomicLong rendered = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final CountDownLatch finished;
+    private final AtomicInteger running;
+    private volatile boolean cancelled;
+
+    // tile cursor, guarded by this
+    private int zoom;
+    private int column;
+    private int row;
+    private int[] range;
+
+    // throttle, guarded by this
+    private long nextTileNanos;
+
+    private SeedTask(SeedRequest request, TileLoader loader) {
+        this.request = request;
+        this.loader = loader;
+        this.total = countTiles(request);
+        this.finished = new CountDownLatch(1);
+        this.running = new AtomicInteger(request.getThreads());
+        this.zoom = request.getMinZoom() - 1;
+    }
+
+    static SeedTask start(SeedRequest request, TileLoader loader) {
+        SeedTask task = new SeedTask(request, loader);
+        log.info("seeding " + task.total + " tiles for " + request);
+        for (int i = 0; i < request.getThreads(); i++) {
+            Thread thread = new Thread(task.worker(), "wms-seed-" + i);
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.start();
+        }
+        return task;
+    }
+
+    private static long countTiles(SeedRequest request) {
+        long count = 0;
+        for (int z = request.getMinZoom(); z <= request.getMaxZoom(); z++) {
+            int[] r = request.getGrid().tileRange(z, request.getRegion());
+            if (r != null)
+                count += (long) (r[2] - r[0] + 1) * (r[3] - r[1] + 1);
+        }
+        return count;
+    }
+
+    private Runnable worker() {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    WmsRequest tile;
+                    while (!cancelled && (tile = nextTile()) != null) {
+                        throttle();
+                        if (cancelled)
+                            break;
+                        try {
+                            if (loader.load(tile))
+                                rendered.incrementAndGet();
+                            else
+                                skipped.incrementAndGet();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            break;
+                        } catch (Exception e) {
+                            failed.incrementAndGet();
+                            log.warn("seeding failed for " + tile.getBounds() + ": "
+                                    + e.getMessage(), e);
+                        }
+                    }
+                } finally {
+                    if (running.decrementAndGet() == 0) {
+                        log.info("seeding finished " + SeedTask.this);
+                        finished.countDown();
+                    }
+                }
+            }
+        };
+    }
+
+    private synchronized WmsRequest nextTile() {
+        while (true) {
+            if (range != null) {
+                if (column < range[2])
+                    column++;
+                else if (row < range[3]) {
+                    column = range[0];
+                    row++;
+                } else
+                    range = null;
+            }
+            if (range != null)
+                return request.tileRequest(zoom, column, row);
+            if (zoom >= request.getMaxZoom())
+                return null;
+            zoom++;
+            range = request.getGrid().tileRange(zoom, request.getRegion());
+            if (range != null) {
+                column = range[0];
+                row = range[1];
+                return request.tileRequest(zoom, column, row);
+            }
+        }
+    }
+
+    private void throttle() {
+        if (request.getMaxTilesPerSecond() <= 0)
+            return;
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / request.getMaxTilesPerSecond());
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (nextTileNanos - now < 0)
+                nextTileNanos = now;
+            wait = nextTileNanos - now;
+            nextTileNanos += interval;
+        }
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancelled = true;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of tiles in the request.
+     *
+     * @return total tiles
+     */
+    public long total() {
+        return total;
+    }
+
+    /**
+     * Returns the number of tiles rendered into the cache.
+     *
+     * @return rendered tiles
+     */
+    public long rendered() {
+        return rendered.get();
+    }
+
+    /**
+     * Returns the number of tiles that were already cached.
+     *
+     * @return skipped tiles
+     */
+    public long skipped() {
+        return skipped.get();
+    }
+
+    public long failed() {
+        return failed.get();
+    }
+
+    /**
+     * Returns the proportion of tiles visited (rendered, skipped or failed)
+     * between 0 and 1.
+     *
+     * @return progress
+     */
+    public double progress() {
+        return total == 0 ? 1.0 : (double) (rendered() + skipped() + failed()) / total;
+    }
+
+    /**
+     * Stops seeding after the tiles currently being rendered.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public boolean isDone() {
+        return finished.getCount() == 0;
+    }
+
+    /**
+     * Waits for seeding to finish.
+     *
+     * @param timeout
+     *            maximum time to wait
+     * @param unit
+     *            unit of timeout
+     * @return true if finished, false if the timeout elapsed
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return finished.await(timeout, unit);
+    }
+
+    public void await() throws InterruptedException {
+        finished.await();
+    }
+
+    @Override
+    public String toString() {
+        return "SeedTask [total=" + total + ", rendered=" + rendered() + ", skipped="
+                + skipped() + ", failed=" + failed() + ", cancelled=" + cancelled + "]";
+    }
+}
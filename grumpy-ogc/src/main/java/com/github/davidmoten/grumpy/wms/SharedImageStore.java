@@ -0,0 +1,233 @@
+package com.github.davidmoten.grumpy.wms;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores encoded images as individual files in a directory tree that may be
+ * shared by several servers (for example on NFS) so that an image rendered by
+ * one server is served by all of them. Files are addressed by the 128 bit
+ * hash of the {@link CacheKey} ({@code <dir>/<first 2 hex chars>/<hex>.img}).
+ *
+ * <p>
+ * Writers write to a uniquely named temporary file in the same directory and
+ * atomically rename it into place, so readers need no locks and never see a
+ * partially written file. Concurrent writes of the same key are harmless
+ * because they hold equivalent images.
+ *
+ * <p>
+ * File layout: magic (int), image creation time (long), key length (int), key
+ * (see {@link CacheKey#writeTo(ByteBuffer)}), encoded image.
+ */
+final class SharedImageStore implements ImageStore {
+
+    private static final Logger log = LoggerFactory.getLogger(SharedImageStore.class);
+
+    private static final int MAGIC = 0x47524d46;
+
+    private static final int HEADER_BYTES = 16;
+
+    private static final String SUFFIX = ".img";
+
+    private static final int MAX_KEY_BYTES = 1024 * 1024;
+
+    private final File directory;
+
+    private SharedImageStore(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Opens the store in the given directory, creating it if required.
+     *
+     * @param directory
+     *            root of the directory tree
+     * @return store
+     * @throws IOException
+     *             if the directory cannot be created
+     */
+    static SharedImageStore open(File directory) throws IOException {
+        if (!directory.exists() && !directory.mkdirs() && !directory.exists())
+            throw new IOException("could not create directory " + directory);
+        return new SharedImageStore(directory);
+    }
+
+    private File file(CacheKey key) {
+        String hex = key.toHex();
+        return new File(new File(directory, hex.substring(0, 2)), hex + SUFFIX);
+    }
+
+    @Override
+    public CachedImage get(CacheKey key) {
+        File file = file(key);
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(file.toPath());
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            log.warn("could not read " + file + ": " + e.getMessage());
+            return null;
+        }
+        try {
+            ByteBuffer b = ByteBuffer.wrap(bytes);
+            if (b.getInt() != MAGIC)
+                throw new IllegalArgumentException("bad magic");
+            long createdTime = b.getLong();
+            int keyLength = b.getInt();
+            if (keyLength < 0 || keyLength > MAX_KEY_BYTES || keyLength > b.remaining())
+                throw new IllegalArgumentException("bad key length " + keyLength);
+            ByteBuffer keyBuffer = b.slice();
+            keyBuffer.limit(keyLength);
+            if (!key.equals(CacheKey.readFrom(keyBuffer)))
+                throw new IllegalArgumentException("key mismatch");
+            int offset = HEADER_BYTES + keyLength;
+            byte[] image = new byte[bytes.length - offset];
+            System.arraycopy(bytes, offset, image, 0, image.length);
+            return CachedImage.onHeap(image, createdTime);
+        } catch (RuntimeException e) {
+            log.warn("ignoring invalid file " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public void put(CacheKey key, CachedImage image) {
+        File file = file(key);
+        File parent = file.getParentFile();
+        File temp = new File(parent, file.getName() + "." + UUID.randomUUID() + ".tmp");
+        try {
+            if (!parent.exists() && !parent.mkdirs() && !parent.exists())
+                throw new IOException("could not create directory " + parent);
+            byte[] keyBytes = new byte[key.serializedLength()];
+            key.writeTo(ByteBuffer.wrap(keyBytes));
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC);
+            header.putLong(image.createdTime());
+            header.putInt(keyBytes.length);
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                out.write(header.array());
+                out.write(keyBytes);
+                image.writeTo(out);
+            } finally {
+                out.close();
+            }
+            move(temp, file);
+        } catch (IOException e) {
+            log.warn("could not write " + file + ": " + e.getMessage());
+            if (temp.exists() && !temp.delete())
+                log.warn("could not delete " + temp);
+        }
+    }
+
+    private static void move(File from, File to) throws IOException {
+        try {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            // rename within a directory is atomic on POSIX filesystems anyway
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @Override
+    public void remove(CacheKey key) {
+        File file = file(key);
+        if (file.exists() && !file.delete() && file.exists())
+            log.warn("could not delete " + file);
+    }
+
+    /**
+     * Returns the keys of the images that include the layer. This reads the
+     * header of every file in the store so is only suitable for infrequent
+     * invalidation.
+     */
+    @Override
+    public List<CacheKey> keys(String layerName) {
+        List<CacheKey> keys = new ArrayList<CacheKey>();
+        File[] dirs = directory.listFiles();
+        if (dirs == null)
+            return keys;
+        for (File dir : dirs) {
+            File[] files = dir.listFiles();
+            if (files == null)
+                continue;
+            for (File file : files) {
+                if (!file.getName().endsWith(SUFFIX))
+                    continue;
+                CacheKey key = readKey(file);
+                if (key != null && key.getLayers().contains(layerName))
+                    keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    private static CacheKey readKey(File file) {
+        try {
+            // read just the header and key
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC)
+                    return null;
+                in.readLong();
+                int keyLength = in.readInt();
+                if (keyLength < 0 || keyLength > MAX_KEY_BYTES)
+                    return null;
+                byte[] keyBytes = new byte[keyLength];
+                in.readFully(keyBytes);
+                return CacheKey.readFrom(ByteBuffer.wrap(keyBytes));
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // deleted by another server meanwhile
+            return null;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void clear() {
+        File[] dirs = directory.listFiles();
+        if (dirs == null)
+            return;
+        for (File dir : dirs) {
+            File[] files = dir.listFiles();
+            if (files == null)
+                continue;
+            for (File file : files)
+                if (file.getName().endsWith(SUFFIX) && !file.delete() && file.exists())
+                    log.warn("could not delete " + file);
+        }
+    }
+
+    @Override
+    public void close() {
+        // no resources held
+    }
+
+    @Override
+    public String toString() {
+        return "SharedImageStore [directory=" + directory + "]";
+    }
+
+}
@@ -0,0 +1,117 @@
+package com.github.davidmoten.grumpy.wms;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Coalesces concurrent calls for the same key so that only the first caller
+ * (the leader) runs the computation and any callers arriving while it is in
+ * flight wait for and share its result. Nothing is retained once the
+ * computation completes.
+ *
+ * <p>
+ * A call may carry the {@link RenderScheduler.Job} of its render work. A
+ * caller joining a flight raises the priority of the flight's job to its own
+ * so that it doesn't wait for work scheduled at a lower priority.
+ *
+ * @param <K>
+ *            key type
+ * @param <V>
+ *            result type
+ */
+final class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<K, Flight<V>> inFlight = new ConcurrentHashMap<K, Flight<V>>();
+
+    /**
+     * Returns the result of {@code callable} or, if a call for the same key is
+     * already in flight, the result of that call.
+     *
+     * @param key
+     *            identifies equivalent calls
+     * @param callable
+     *            computation to run if this caller is the leader
+     * @return result
+     * @throws IOException
+     *             if the computation threw an IOException or the wait was
+     *             interrupted
+     */
+    V get(K key, Callable<V> callable) throws IOException {
+        return get(key, null, callable);
+    }
+
+    /**
+     * Returns the result of {@code callable} or, if a call for the same key is
+     * already in flight, the result of that call after raising the priority
+     * of its job to the priority of {@code job}.
+     *
+     * @param key
+     *            identifies equivalent calls
+     * @param job
+     *            job of the render work of {@code callable}, may be null
+     * @param callable
+     *            computation to run if this caller is the leader
+     * @return result
+     * @throws IOException
+     *             if the computation threw an IOException or the wait was
+     *             interrupted
+     */
+    V get(K key, RenderScheduler.Job job, Callable<V> callable) throws IOException {
+        Flight<V> flight = new Flight<V>(job, callable);
+        Flight<V> existing = inFlight.putIfAbsent(key, flight);
+        if (existing == null) {
+            try {
+                flight.run();
+            } finally {
+                inFlight.remove(key, flight);
+            }
+            return getResult(flight);
+        } else {
+            if (job != null && existing.job != null)
+                existing.job.raise(job.priority());
+            return getResult(existing);
+        }
+    }
+
+    /**
+     * Returns the number of computations currently in flight.
+     *
+     * @return number in flight
+     */
+    int size() {
+        return inFlight.size();
+    }
+
+    private static final class Flight<V> extends FutureTask<V> {
+
+        final RenderScheduler.Job job;
+
+        Flight(RenderScheduler.Job job, Callable<V> callable) {
+            super(callable);
+            this.job = job;
+        }
+    }
+
+    private static <V> V getResult(FutureTask<V> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for image");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            else if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            else if (cause instanceof Error)
+                throw (Error) cause;
+            else
+                throw new RuntimeException(cause);
+        }
+    }
+}
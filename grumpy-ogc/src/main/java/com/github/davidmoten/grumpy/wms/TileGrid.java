@@ -0,0 +1,251 @@
+package com.github.davidmoten.grumpy.wms;
+
+import com.github.davidmoten.grumpy.projection.ProjectorBounds;
+
+/**
+ * A tile pyramid over a rectangular extent of a CRS. Zoom level 0 has
+ * {@code columns0 x rows0} tiles and each subsequent zoom level doubles the
+ * number of tiles in each direction. Tiles are square in pixels, columns are
+ * numbered from the west edge and rows from the north edge of the extent (as
+ * in the common XYZ and WMTS schemes).
+ */
+public final class TileGrid {
+
+    private static final double WEB_MERCATOR_HALF_WIDTH = 20037508.342789244;
+
+    /**
+     * Highest zoom level of any grid. Grids with many tiles at zoom level 0
+     * may have a lower maximum (see {@link #maxZoom()}).
+     */
+    public static final int MAX_ZOOM = 24;
+
+    private final ProjectorBounds extent;
+    private final int tileSize;
+    private final int columns0;
+    private final int rows0;
+    private final int maxZoom;
+
+    /**
+     * Constructor.
+     *
+     * @param extent
+     *            extent of the grid (the srs of the extent is the srs of the
+     *            tiles)
+     * @param tileSize
+     *            width and height of each tile in pixels
+     * @param columns0
+     *            number of columns at zoom level 0
+     * @param rows0
+     *            number of rows at zoom level 0
+     */
+    public TileGrid(ProjectorBounds extent, int tileSize, int columns0, int rows0) {
+        if (tileSize <= 0 || columns0 <= 0 || rows0 <= 0)
+            throw new IllegalArgumentException("tileSize, columns0 and rows0 must be positive");
+        this.extent = extent;
+        this.tileSize = tileSize;
+        this.columns0 = columns0;
+        this.rows0 = rows0;
+        // the number of columns and rows at every zoom level must fit in an
+        // int
+        this.maxZoom = Math.min(MAX_ZOOM,
+                Integer.numberOfLeadingZeros(Math.max(columns0, rows0)) - 1);
+    }
+
+    /**
+     * Returns the grid of 256 pixel tiles over the whole world in
+     * {@code EPSG:4326} with two tiles (west and east hemispheres) at zoom
+     * level 0.
+     *
+     * @return grid
+     */
+    public static TileGrid epsg4326() {
+        return new TileGrid(new ProjectorBounds("EPSG:4326", -180, -90, 180, 90), 256, 2, 1);
+    }
+
+    /**
+     * Returns the grid of 256 pixel tiles in spherical mercator
+     * ({@code EPSG:3857}) used by Google, OpenStreetMap and Bing with one tile
+     * at zoom level 0.
+     *
+     * @return grid
+     */
+    public static TileGrid epsg3857() {
+        return new TileGrid(new ProjectorBounds("EPSG:3857", -WEB_MERCATOR_HALF_WIDTH,
+                -WEB_MERCATOR_HALF_WIDTH, WEB_MERCATOR_HALF_WIDTH, WEB_MERCATOR_HALF_WIDTH), 256,
+                1, 1);
+    }
+
+    public ProjectorBounds extent() {
+        return extent;
+    }
+
+    public String srs() {
+        return extent.getSrs();
+    }
+
+    public int tileSize() {
+        return tileSize;
+    }
+
+    /**
+     * Returns the highest zoom level of the grid, at most {@link #MAX_ZOOM}.
+     *
+     * @return maximum zoom level
+     */
+    public int maxZoom() {
+        return maxZoom;
+    }
+
+    public int columns(int zoom) {
+        checkZoom(zoom);
+        return columns0 << zoom;
+    }
+
+    public int rows(int zoom) {
+        checkZoom(zoom);
+        return rows0 << zoom;
+    }
+
+    /**
+     * Returns the width of a tile in CRS units at the given zoom level.
+     *
+     * @param zoom
+     *            zoom level
+     * @return tile width in CRS units
+     */
+    public double tileWidth(int zoom) {
+        return extent.getSizeX() / columns(zoom);
+    }
+
+    /**
+     * Returns the height of a tile in CRS units at the given zoom level.
+     *
+     * @param zoom
+     *            zoom level
+     * @return tile height in CRS units
+     */
+    public double tileHeight(int zoom) {
+        return extent.getSizeY() / rows(zoom);
+    }
+
+    /**
+     * Returns the bounds of a tile.
+     *
+     * @param zoom
+     *            zoom level
+     * @param column
+     *            column from the west edge
+     * @param row
+     *            row from the north edge
+     * @return tile bounds
+     */
+    public ProjectorBounds tileBounds(int zoom, int column, int row) {
+        double w = tileWidth(zoom);
+        double h = tileHeight(zoom);
+        // compute edges from the extent rather than accumulating so that
+        // adjacent tiles share exactly the same edge values
+        double minX = column == 0 ? extent.getMinX() : extent.getMinX() + column * w;
+        double maxX = column + 1 == columns(zoom) ? extent.getMaxX() : extent.getMinX()
+                + (column + 1) * w;
+        double maxY = row == 0 ? extent.getMaxY() : extent.getMaxY() - row * h;
+        double minY = row + 1 == rows(zoom) ? extent.getMinY() : extent.getMaxY() - (row + 1)
+                * h;
+        return new ProjectorBounds(extent.getSrs(), minX, minY, maxX, maxY);
+    }
+
+    /**
+     * Returns the range of tiles at a zoom level that intersect a region as
+     * {minColumn, minRow, maxColumn, maxRow} (inclusive) or null if the region
+     * does not intersect the grid.
+     *
+     * @param zoom
+     *            zoom level
+     * @param region
+     *            region in the srs of the grid
+     * @return tile range or null
+     */
+    public int[] tileRange(int zoom, ProjectorBounds region) {
+        checkSrs(region);
+        double w = tileWidth(zoom);
+        double h = tileHeight(zoom);
+        int minColumn = clamp((int) Math.floor((region.getMinX() - extent.getMinX()) / w),
+                columns(zoom));
+        int maxColumn = clamp((int) Math.ceil((region.getMaxX() - extent.getMinX()) / w) - 1,
+                columns(zoom));
+        int minRow = clamp((int) Math.floor((extent.getMaxY() - region.getMaxY()) / h),
+                rows(zoom));
+        int maxRow = clamp((int) Math.ceil((extent.getMaxY() - region.getMinY()) / h) - 1,
+                rows(zoom));
+        if (region.getMaxX() <= extent.getMinX() || region.getMinX() >= extent.getMaxX()
+                || region.getMaxY() <= extent.getMinY() || region.getMinY() >= extent.getMaxY()
+                || minColumn > maxColumn || minRow > maxRow)
+            return null;
+        return new int[] { minColumn, minRow, maxColumn, maxRow };
+    }
+
+    /**
+     * Returns the tile {zoom, column, row} whose bounds match the given bounds
+     * (to within a tolerance) and whose size matches the given size, or null
+     * if there is no such tile.
+     *
+     * @param bounds
+     *            bounds of a request
+     * @param width
+     *            width of the request in pixels
+     * @param height
+     *            height of the request in pixels
+     * @param tolerance
+     *            maximum difference of each edge as a proportion of the tile
+     *            width or height
+     * @return {zoom, column, row} or null
+     */
+    public int[] tileAt(ProjectorBounds bounds, int width, int height, double tolerance) {
+        if (width != tileSize || height != tileSize || bounds.getSrs() == null
+                || !bounds.getSrs().equalsIgnoreCase(extent.getSrs()) || bounds.getSizeX() <= 0)
+            return null;
+        double ratio = extent.getSizeX() / columns0 / bounds.getSizeX();
+        int zoom = (int) Math.round(Math.log(ratio) / Math.log(2));
+        if (zoom < 0 || zoom > maxZoom)
+            return null;
+        double w = tileWidth(zoom);
+        double h = tileHeight(zoom);
+        int column = (int) Math.round((bounds.getMinX() - extent.getMinX()) / w);
+        int row = (int) Math.round((extent.getMaxY() - bounds.getMaxY()) / h);
+        if (column < 0 || column >= columns(zoom) || row < 0 || row >= rows(zoom))
+            return null;
+        ProjectorBounds tile = tileBounds(zoom, column, row);
+        double dx = tolerance * w;
+        double dy = tolerance * h;
+        if (Math.abs(tile.getMinX() - bounds.getMinX()) <= dx
+                && Math.abs(tile.getMaxX() - bounds.getMaxX()) <= dx
+                && Math.abs(tile.getMinY() - bounds.getMinY()) <= dy
+                && Math.abs(tile.getMaxY() - bounds.getMaxY()) <= dy)
+            return new int[] { zoom, column, row };
+        else
+            return null;
+    }
+
+    private void checkZoom(int zoom) {
+        if (zoom < 0 || zoom > maxZoom)
+            throw new IllegalArgumentException("zoom " + zoom + " is not between 0 and "
+                    + maxZoom);
+    }
+
+    private void checkSrs(ProjectorBounds region) {
+        if (region.getSrs() == null || !region.getSrs().equalsIgnoreCase(extent.getSrs()))
+            throw new IllegalArgumentException("region srs " + region.getSrs()
+                    + " does not match grid srs " + extent.getSrs());
+    }
+
+    private static int clamp(int index, int size) {
+        return Math.max(0, Math.min(size - 1, index));
+    }
+
+    @Override
+    public String toString() {
+        return "TileGrid [srs=" + extent.getSrs() + ", extent=" + extent.getMinX() + ","
+                + extent.getMinY() + "," + extent.getMaxX() + "," + extent.getMaxY()
+                + ", tileSize=" + tileSize + ", columns0=" + columns0 + ", rows0=" + rows0 + "]";
+    }
+
+}
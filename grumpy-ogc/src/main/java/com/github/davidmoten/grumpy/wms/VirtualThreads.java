@@ -0,0 +1,71 @@
+package com.github.davidmoten.grumpy.wms;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates executors that run each task on its own virtual thread when the
+ * runtime supports them (Java 21 and later). This library targets Java 8 so
+ * the virtual thread API is looked up reflectively. There is no fallback to
+ * a thread per task on platform threads because a thread per queued render
+ * (up to the render queue size) would be far too many; callers check
+ * {@link #isSupported()} and otherwise use a fixed pool.
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() {
+        // prevent instantiation
+    }
+
+    /**
+     * Returns true if the runtime supports virtual threads.
+     *
+     * @return true if supported
+     */
+    static boolean isSupported() {
+        return virtualThreadFactory("probe") != null;
+    }
+
+    /**
+     * Returns an executor that starts a new virtual thread for each task.
+     *
+     * @param name
+     *            prefix of thread names
+     * @return executor
+     * @throws UnsupportedOperationException
+     *             if the runtime does not support virtual threads
+     */
+    static ExecutorService newThreadPerTaskExecutor(final String name) {
+        ThreadFactory factory = virtualThreadFactory(name);
+        if (factory == null)
+            throw new UnsupportedOperationException(
+                    "virtual threads not supported by this runtime");
+        // virtual threads are cheap so are not kept for reuse
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 0, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), factory);
+    }
+
+    /**
+     * Returns {@code Thread.ofVirtual().name(name, 1).factory()} or null if
+     * virtual threads are not supported.
+     */
+    private static ThreadFactory virtualThreadFactory(String name) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Method nameMethod = builderClass.getMethod("name", String.class, long.class);
+            builder = nameMethod.invoke(builder, name, 1L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        } catch (RuntimeException e) {
+            // for example UnsupportedOperationException if preview disabled
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,527 @@
+package com.github.davidmoten.grumpy.wms;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A concurrent cache bounded by total weight that uses the W-TinyLFU policy.
+ *
+ * <p>
+ * New entries enter a small LRU admission window (1% of the maximum weight).
+ * Entries overflowing the window become candidates for the main space, a
+ * segmented LRU of probation and protected queues. When the cache is over
+ * weight a candidate is only admitted if its estimated frequency (from a
+ * {@link FrequencySketch}) beats that of the main space's victim, so one-off
+ * keys cannot flush popular entries.
+ *
+ * <p>
+ * Reads never block: the lookup is a {@link ConcurrentHashMap} get and the
+ * access is recorded in a lossy buffer that is replayed against the policy
+ * by whichever thread next holds the eviction lock. Writes take the eviction
+ * lock. All policy operations are O(1).
+ *
+ * @param <K>
+ *            key type
+ * @param <V>
+ *            value type
+ */
+final class WeightedCache<K, V> {
+
+    /**
+     * Calculates the weight (for instance the size in bytes) of a value.
+     *
+     * @param <V>
+     *            value type
+     */
+    interface Weigher<V> {
+        int weigh(V value);
+    }
+
+    /**
+     * Notified of entries leaving the cache, either evicted by the policy
+     * (including values too heavy to be admitted at all), explicitly removed
+     * or replaced. Called by the writing thread after the eviction lock is
+     * released.
+     *
+     * @param <K>
+     *            key type
+     * @param <V>
+     *            value type
+     */
+    interface RemovalListener<K, V> {
+        void removed(K key, V value, boolean evicted);
+    }
+
+    /**
+     * Maintains a secondary index of the keys in the cache. Called with the
+     * eviction lock held so must be quick.
+     *
+     * @param <K>
+     *            key type
+     * @param <V>
+     *            value type
+     */
+    interface KeyObserver<K, V> {
+        void added(K key);
+
+        void removed(K key);
+
+        /**
+         * Called for each entry evicted by the policy (including values too
+         * heavy to be admitted at all) before {@link #removed(Object)} and
+         * before the removal listener is notified, so that work the listener
+         * will do for the entry can be registered atomically with the
+         * eviction.
+         *
+         * @param key
+         *            key
+         * @param value
+         *            value
+         */
+        void evicted(K key, V value);
+    }
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+    private static final int DEAD = 3;
+
+    private static final int READ_BUFFER_MAX = 256;
+    private static final int READ_BUFFER_DRAIN_THRESHOLD = 32;
+
+    private final ConcurrentHashMap<K, Node<K, V>> map = new ConcurrentHashMap<K, Node<K, V>>();
+
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    private final Queue<Node<K, V>> readBuffer = new ConcurrentLinkedQueue<Node<K, V>>();
+
+    private final AtomicInteger readBufferSize = new AtomicInteger();
+
+    private final Weigher<? super V> weigher;
+
+    private final RemovalListener<? super K, ? super V> removalListener;
+
+    private final KeyObserver<? super K, ? super V> keyObserver;
+
+    private final long maximumWeight;
+
+    private final long windowMaximum;
+
+    private final long protectedMaximum;
+
+    // the fields below are guarded by evictionLock
+
+    private final FrequencySketch sketch;
+
+    private final AccessOrderQueue<K, V> window = new AccessOrderQueue<K, V>();
+
+    private final AccessOrderQueue<K, V> probation = new AccessOrderQueue<K, V>();
+
+    private final AccessOrderQueue<K, V> protectedQueue = new AccessOrderQueue<K, V>();
+
+    private long windowWeight;
+
+    private long protectedWeight;
+
+    private volatile long weightedSize;
+
+    private final List<Node<K, V>> removed = new ArrayList<Node<K, V>>();
+
+    /**
+     * Constructor.
+     *
+     * @param maximumWeight
+     *            the maximum total weight of entries held
+     * @param expectedEntries
+     *            approximate maximum number of entries, used to size the
+     *            frequency sketch
+     * @param weigher
+     *            calculates the weight of each value
+     */
+    WeightedCache(long maximumWeight, int expectedEntries, Weigher<? super V> weigher) {
+        this(maximumWeight, expectedEntries, weigher, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maximumWeight
+     *            the maximum total weight of entries held
+     * @param expectedEntries
+     *            approximate maximum number of entries, used to size the
+     *            frequency sketch
+     * @param weigher
+     *            calculates the weight of each value
+     * @param removalListener
+     *            notified of removals, may be null
+     */
+    WeightedCache(long maximumWeight, int expectedEntries, Weigher<? super V> weigher,
+            RemovalListener<? super K, ? super V> removalListener) {
+        this(maximumWeight, expectedEntries, weigher, removalListener, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maximumWeight
+     *            the maximum total weight of entries held
+     * @param expectedEntries
+     *            approximate maximum number of entries, used to size the
+     *            frequency sketch
+     * @param weigher
+     *            calculates the weight of each value
+     * @param removalListener
+     *            notified of removals, may be null
+     * @param keyObserver
+     *            maintains a secondary index of keys, may be null
+     */
+    WeightedCache(long maximumWeight, int expectedEntries, Weigher<? super V> weigher,
+            RemovalListener<? super K, ? super V> removalListener,
+            KeyObserver<? super K, ? super V> keyObserver) {
+        this.keyObserver = keyObserver;
+        this.maximumWeight = Math.max(0, maximumWeight);
+        this.windowMaximum = Math.max(1, this.maximumWeight / 100);
+        this.protectedMaximum = (this.maximumWeight - windowMaximum) * 4 / 5;
+        this.weigher = weigher;
+        this.removalListener = removalListener;
+        this.sketch = new FrequencySketch(expectedEntries);
+    }
+
+
+    /**
+     * Returns the value for the key or null if not present. Does not block.
+     *
+     * @param key
+     *            key
+     * @return value or null
+     */
+    V get(K key) {
+        Node<K, V> node = map.get(key);
+        if (node == null)
+            return null;
+        afterRead(node);
+        return node.value;
+    }
+
+    /**
+     * Returns the value for the key or null if not present without recording
+     * an access (so the eviction order and popularity are unaffected).
+     *
+     * @param key
+     *            key
+     * @return value or null
+     */
+    V peek(K key) {
+        Node<K, V> node = map.get(key);
+        return node == null ? null : node.value;
+    }
+
+    /**
+     * Adds the value to the cache, possibly evicting other entries (or the
+     * new entry itself if it is not considered worth admitting).
+     *
+     * @param key
+     *            key
+     * @param value
+     *            value
+     */
+    void put(K key, V value) {
+        int weight = weigher.weigh(value);
+        List<Node<K, V>> removedNodes;
+        evictionLock.lock();
+        try {
+            drainReadBuffer();
+            sketch.increment(key.hashCode());
+            Node<K, V> existing = map.remove(key);
+            if (existing != null)
+                removeEntry(existing, false);
+            if (weight > maximumWeight) {
+                Node<K, V> node = new Node<K, V>(key, value, weight);
+                node.evicted = true;
+                if (keyObserver != null)
+                    keyObserver.evicted(key, value);
+                removed.add(node);
+            } else {
+                Node<K, V> node = new Node<K, V>(key, value, weight);
+                map.put(key, node);
+                if (keyObserver != null)
+                    keyObserver.added(key);
+                node.queue = WINDOW;
+                window.addLast(node);
+                windowWeight += weight;
+                weightedSize += weight;
+                evict();
+            }
+            removedNodes = drainRemoved();
+        } finally {
+            evictionLock.unlock();
+        }
+        notifyRemoved(removedNodes);
+    }
+
+    private List<Node<K, V>> drainRemoved() {
+        if (removed.isEmpty())
+            return null;
+        List<Node<K, V>> list = new ArrayList<Node<K, V>>(removed);
+        removed.clear();
+        return list;
+    }
+
+    private void notifyRemoved(List<Node<K, V>> nodes) {
+        if (nodes != null && removalListener != null)
+            for (Node<K, V> node : nodes)
+                removalListener.removed(node.key, node.value, node.evicted);
+    }
+
+    /**
+     * Removes the entry for the key.
+     *
+     * @param key
+     *            key
+     * @return true if an entry was removed
+     */
+    boolean remove(K key) {
+        List<Node<K, V>> removedNodes;
+        evictionLock.lock();
+        try {
+            Node<K, V> node = map.remove(key);
+            if (node == null)
+                return false;
+            removeEntry(node, false);
+            removedNodes = drainRemoved();
+        } finally {
+            evictionLock.unlock();
+        }
+        notifyRemoved(removedNodes);
+        return true;
+    }
+
+    /**
+     * Removes all entries.
+     */
+    void clear() {
+        List<Node<K, V>> removedNodes;
+        evictionLock.lock();
+        try {
+            for (Node<K, V> node : map.values())
+                removeEntry(node, false);
+            map.clear();
+            readBuffer.clear();
+            readBufferSize.set(0);
+            removedNodes = drainRemoved();
+        } finally {
+            evictionLock.unlock();
+        }
+        notifyRemoved(removedNodes);
+    }
+
+    /**
+     * Returns a snapshot of the keys currently held.
+     *
+     * @return keys
+     */
+    List<K> keys() {
+        return new ArrayList<K>(map.keySet());
+    }
+
+    int size() {
+        return map.size();
+    }
+
+    long weightedSize() {
+        return weightedSize;
+    }
+
+    long maximumWeight() {
+        return maximumWeight;
+    }
+
+    private void afterRead(Node<K, V> node) {
+        if (readBufferSize.get() < READ_BUFFER_MAX) {
+            readBufferSize.incrementAndGet();
+            readBuffer.offer(node);
+        }
+        // otherwise drop the access record, the policy is approximate anyway
+        if (readBufferSize.get() >= READ_BUFFER_DRAIN_THRESHOLD && evictionLock.tryLock()) {
+            try {
+                drainReadBuffer();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    private void drainReadBuffer() {
+        Node<K, V> node;
+        while ((node = readBuffer.poll()) != null) {
+            readBufferSize.decrementAndGet();
+            onAccess(node);
+        }
+    }
+
+    private void onAccess(Node<K, V> node) {
+        if (node.queue == DEAD)
+            return;
+        sketch.increment(node.key.hashCode());
+        if (node.queue == WINDOW) {
+            window.moveToBack(node);
+        } else if (node.queue == PROBATION) {
+            // promote to protected
+            probation.remove(node);
+            node.queue = PROTECTED;
+            protectedQueue.addLast(node);
+            protectedWeight += node.weight;
+            // demote the least recently used protected entries if needed
+            while (protectedWeight > protectedMaximum) {
+                Node<K, V> demoted = protectedQueue.pollFirst();
+                protectedWeight -= demoted.weight;
+                demoted.queue = PROBATION;
+                probation.addLast(demoted);
+            }
+        } else {
+            protectedQueue.moveToBack(node);
+        }
+    }
+
+    private void evict() {
+        // move entries overflowing the window to probation as candidates
+        Node<K, V> candidate = null;
+        while (windowWeight > windowMaximum && window.peekFirst() != null) {
+            Node<K, V> node = window.pollFirst();
+            windowWeight -= node.weight;
+            node.queue = PROBATION;
+            probation.addLast(node);
+            if (candidate == null)
+                candidate = node;
+        }
+        // duel candidates against victims until we are within weight
+        while (weightedSize > maximumWeight) {
+            Node<K, V> victim = probation.peekFirst();
+            if (victim == null)
+                victim = protectedQueue.peekFirst();
+            if (victim == null)
+                victim = window.peekFirst();
+            if (candidate == null) {
+                evictEntry(victim);
+            } else if (candidate == victim) {
+                candidate = candidate.next;
+                evictEntry(victim);
+            } else if (admit(candidate, victim)) {
+                evictEntry(victim);
+            } else {
+                Node<K, V> rejected = candidate;
+                candidate = candidate.next;
+                evictEntry(rejected);
+            }
+        }
+    }
+
+    private boolean admit(Node<K, V> candidate, Node<K, V> victim) {
+        return sketch.frequency(candidate.key.hashCode()) > sketch
+                .frequency(victim.key.hashCode());
+    }
+
+    private void evictEntry(Node<K, V> node) {
+        map.remove(node.key, node);
+        removeEntry(node, true);
+    }
+
+    private void removeEntry(Node<K, V> node, boolean evicted) {
+        unlink(node);
+        if (keyObserver != null) {
+            if (evicted)
+                keyObserver.evicted(node.key, node.value);
+            keyObserver.removed(node.key);
+        }
+        if (removalListener != null) {
+            node.evicted = evicted;
+            removed.add(node);
+        }
+    }
+
+    private void unlink(Node<K, V> node) {
+        if (node.queue == WINDOW) {
+            window.remove(node);
+            windowWeight -= node.weight;
+        } else if (node.queue == PROBATION) {
+            probation.remove(node);
+        } else if (node.queue == PROTECTED) {
+            protectedQueue.remove(node);
+            protectedWeight -= node.weight;
+        } else {
+            return;
+        }
+        weightedSize -= node.weight;
+        node.queue = DEAD;
+    }
+
+    private static final class Node<K, V> {
+        final K key;
+        final V value;
+        final int weight;
+        int queue;
+        boolean evicted;
+        Node<K, V> prev;
+        Node<K, V> next;
+
+        Node(K key, V value, int weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Intrusive doubly linked list of nodes, least recently used first.
+     */
+    private static final class AccessOrderQueue<K, V> {
+        private Node<K, V> head;
+        private Node<K, V> tail;
+
+        Node<K, V> peekFirst() {
+            return head;
+        }
+
+        Node<K, V> pollFirst() {
+            Node<K, V> node = head;
+            if (node != null)
+                remove(node);
+            return node;
+        }
+
+        void addLast(Node<K, V> node) {
+            node.prev = tail;
+            node.next = null;
+            if (tail == null)
+                head = node;
+            else
+                tail.next = node;
+            tail = node;
+        }
+
+        void remove(Node<K, V> node) {
+            if (node.prev == null)
+                head = node.next;
+            else
+                node.prev.next = node.next;
+            if (node.next == null)
+                tail = node.prev;
+            else
+                node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+        }
+
+        void moveToBack(Node<K, V> node) {
+            if (node != tail) {
+                remove(node);
+                addLast(node);
+            }
+        }
+    }
+}
@@ -41,6 +41,7 @@ public class WmsRequest {
     private final String infoFormat;
     private final Map<String, String> parameters;
     private final Date time;
+    private volatile CacheKey cacheKey;
 
     public WmsRequest(List<String> layers, List<String> queryLayers, List<String> styles,
             ProjectorBounds bounds, String format, int width, int height, boolean transparent,
@@ -328,4 +329,19 @@ public class WmsRequest {
         return time;
     }
 
+    /**
+     * Returns the canonical key of the image for this request. The key is
+     * built on first use and reused thereafter.
+     * 
+     * @return cache key
+     */
+    CacheKey getCacheKey() {
+        CacheKey key = cacheKey;
+        if (key == null) {
+            key = CacheKey.from(this);
+            cacheKey = key;
+        }
+        return key;
+    }
+
 }
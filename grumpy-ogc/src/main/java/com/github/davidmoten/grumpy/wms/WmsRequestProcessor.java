@@ -4,14 +4,31 @@ import java.awt.Point;
 import java.awt.image.BufferedImage;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -22,7 +39,7 @@ import org.slf4j.LoggerFactory;
  * Processes a WMS {@link HttpServletRequest} and returns a
  * {@link HttpServletResponse}.
  */
-public class WmsRequestProcessor {
+public class WmsRequestProcessor implements Closeable {
 
     private static org.slf4j.Logger log = LoggerFactory.getLogger(WmsRequestProcessor.class);
 
@@ -32,6 +49,82 @@ public class WmsRequestProcessor {
 
     private final ImageWriter imageWriter;
 
+    /**
+     * Coalesce concurrent renders of the same image. Renders that will be
+     * cached are kept apart from those that won't so that the leader's
+     * decision to cache applies to all of its followers.
+     */
+    private final SingleFlight<CacheKey, byte[]> cachedRenders = new SingleFlight<CacheKey, byte[]>();
+
+    private final SingleFlight<CacheKey, byte[]> uncachedRenders = new SingleFlight<CacheKey, byte[]>();
+
+    /**
+     * Coalesce concurrent renders of the same metatile. The result maps the
+     * cache keys of the tiles encoded by the render to their bytes.
+     */
+    private final SingleFlight<CacheKey, Map<CacheKey, byte[]>> metatileRenders = new SingleFlight<CacheKey, Map<CacheKey, byte[]>>();
+
+    /**
+     * Metatile grids by upper case srs.
+     */
+    private final Map<String, Metatiler> metatilers;
+
+    /**
+     * Grids that cacheable request bounds are snapped to by upper case srs.
+     */
+    private final Map<String, GridSnapper> snappers;
+
+    /**
+     * Policy for cached layers without their own policy, may be null.
+     */
+    private final CachePolicy cachePolicy;
+
+    /**
+     * Policies by layer name.
+     */
+    private final Map<String, CachePolicy> layerCachePolicies;
+
+    /**
+     * Encodes images on platform threads when layers are rendered on virtual
+     * threads, otherwise null (images are encoded on the calling thread).
+     */
+    private final ExecutorService encodeExecutor;
+
+    /**
+     * Minimum number of pixels of a PNG request streamed in bands, 0 if
+     * requests are never streamed.
+     */
+    private final long streamingMinPixels;
+
+    private final int streamingBandHeight;
+
+    private static final int REFRESH_THREADS = 2;
+
+    private static final int DEFAULT_STREAMING_BAND_HEIGHT = 256;
+
+    private static final String PNG = "image/png";
+
+    /**
+     * Re-renders expired cached images in the background.
+     */
+    private final ExecutorService refreshExecutor = Executors.newFixedThreadPool(REFRESH_THREADS,
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "wms-cache-refresh");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            });
+
+    /**
+     * Keys of images being refreshed so that an expired image is only
+     * re-rendered once however often it is requested meanwhile.
+     */
+    private final Set<CacheKey> refreshing = Collections
+            .newSetFromMap(new ConcurrentHashMap<CacheKey, Boolean>());
+
     /**
      * Constructor.
      * 
@@ -40,9 +133,50 @@ public class WmsRequestProcessor {
      * @param imageWriter
      */
     public WmsRequestProcessor(Layers layers, ImageCache imageCache, ImageWriter imageWriter) {
-        this.imageCache = imageCache;
-        this.imageWriter = imageWriter;
-        this.layerManager = new LayerManager(layers);
+        this(builder().layers(layers).imageCache(imageCache).imageWriter(imageWriter));
+    }
+
+    private WmsRequestProcessor(Builder builder) {
+        this.imageCache = builder.imageCache;
+        this.imageWriter = builder.imageWriter;
+        boolean virtualThreads = builder.virtualThreads && VirtualThreads.isSupported();
+        if (builder.virtualThreads && !virtualThreads)
+            log.warn("virtual threads requested but not supported by this runtime (Java 21 "
+                    + "or later is required), rendering on " + builder.renderThreads
+                    + " platform threads instead");
+        this.layerManager = new LayerManager(builder.layers, imageCache,
+                builder.rasterPoolMaxBytes, RenderScheduler.create(builder.renderThreads,
+                        builder.renderQueueSize, virtualThreads,
+                        builder.maxConcurrentRenders), builder.renderTimeoutMs,
+                builder.stripCount, builder.stripMinPixels);
+        this.encodeExecutor = virtualThreads ? Executors.newFixedThreadPool(
+                builder.encodeThreads, daemonThreadFactory("wms-encode-")) : null;
+        this.metatilers = new HashMap<String, Metatiler>();
+        for (Metatiler metatiler : builder.metatilers)
+            this.metatilers.put(srsKey(metatiler.grid()), metatiler);
+        this.snappers = new HashMap<String, GridSnapper>();
+        for (GridSnapper snapper : builder.snappers)
+            this.snappers.put(srsKey(snapper.grid()), snapper);
+        this.cachePolicy = builder.cachePolicy;
+        this.layerCachePolicies = new HashMap<String, CachePolicy>(builder.layerCachePolicies);
+        this.streamingMinPixels = builder.streamingMinPixels;
+        this.streamingBandHeight = builder.streamingBandHeight;
+    }
+
+    private static ThreadFactory daemonThreadFactory(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    private static String srsKey(TileGrid grid) {
+        return grid.srs().toUpperCase(Locale.ENGLISH);
     }
 
     public static Builder builder() {
@@ -57,14 +191,308 @@ public class WmsRequestProcessor {
         private final List<String> layersToCache = new ArrayList<String>();
         private ImageWriter imageWriter = new ImageWriterDefault();
         private Integer imageCacheSize;
+        private Long imageCacheMaxBytes;
+        private final List<Metatiler> metatilers = new ArrayList<Metatiler>();
+        private final List<GridSnapper> snappers = new ArrayList<GridSnapper>();
+        private CachePolicy cachePolicy;
+        private final Map<String, CachePolicy> layerCachePolicies = new HashMap<String, CachePolicy>();
+        private long rasterPoolMaxBytes = LayerManager.DEFAULT_RASTER_POOL_BYTES;
+        private int renderThreads = LayerManager.DEFAULT_RENDER_THREADS;
+        private int renderQueueSize = LayerManager.DEFAULT_RENDER_QUEUE_SIZE;
+        private long renderTimeoutMs;
+        private boolean virtualThreads;
+        private int encodeThreads = Runtime.getRuntime().availableProcessors();
+        private final Map<String, Integer> maxConcurrentRenders = new HashMap<String, Integer>();
+        private int stripCount = 1;
+        private long stripMinPixels;
+        private long streamingMinPixels;
+        private int streamingBandHeight = DEFAULT_STREAMING_BAND_HEIGHT;
 
         private Builder() {
         }
 
+        /**
+         * Sets the number of threads that render layers. Defaults to the
+         * number of processors plus one.
+         * 
+         * @param threads
+         *            number of render threads
+         * @return this
+         */
+        public Builder renderThreads(int threads) {
+            if (threads < 1)
+                throw new IllegalArgumentException("threads must be at least 1");
+            this.renderThreads = threads;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of layer renders waiting for a render
+         * thread. When the queue is full requests fail fast with a
+         * {@link RenderRejectedException} (HTTP 503 from
+         * {@link WmsServletRequestProcessor}) rather than queueing without
+         * limit. Background (seeding and refresh) and GetFeatureInfo work may
+         * use at most half of the queue so that it cannot cause GetMap
+         * requests to be rejected. Defaults to 1000.
+         * 
+         * @param size
+         *            maximum queued layer renders
+         * @return this
+         */
+        public Builder renderQueueSize(int size) {
+            if (size < 1)
+                throw new IllegalArgumentException("size must be at least 1");
+            this.renderQueueSize = size;
+            return this;
+        }
+
+        /**
+         * Sets the maximum time to wait for the layers of a request. Layers
+         * not rendered by then are cancelled and a placeholder is drawn in
+         * their place. Images with placeholders are not cached. By default
+         * there is no limit.
+         * 
+         * @param duration
+         *            render deadline, non-positive for no limit
+         * @param unit
+         *            unit of duration
+         * @return this
+         */
+        public Builder renderTimeout(long duration, TimeUnit unit) {
+            this.renderTimeoutMs = Math.max(0, unit.toMillis(duration));
+            return this;
+        }
+
+        /**
+         * Renders each layer of requests of at least the given number of
+         * pixels (for example large print requests) in horizontal strips
+         * concurrently and stitches the strips together, so that even a
+         * single layer request uses several processors. Each strip is rendered
+         * as a request for its own bounds so layers that draw across the
+         * edges of the request (for example labels) are clipped at the strip
+         * edges. Strips are not offered to the layer raster cache.
+         * 
+         * @param strips
+         *            number of strips (for example the number of processors)
+         * @param minPixels
+         *            minimum width times height of a request rendered in
+         *            strips (for example 2048 * 2048)
+         * @return this
+         */
+        public Builder stripRendering(int strips, long minPixels) {
+            if (strips < 1)
+                throw new IllegalArgumentException("strips must be at least 1");
+            this.stripCount = strips;
+            this.stripMinPixels = minPixels;
+            return this;
+        }
+
+        /**
+         * Streams PNG requests of at least the given number of pixels (for
+         * example very large exports) rather than encoding them in memory.
+         * The map is rendered a band of rows at a time and each band is PNG
+         * encoded and written to the output stream before the next is
+         * rendered, so memory used is bounded by the band size rather than
+         * the image size. Streamed images are never cached and, because the
+         * response has started, a failure part way through truncates the
+         * image rather than returning an error status. Each band is rendered
+         * as a request for its own bounds so layers that draw across the band
+         * edges (for example labels) are clipped at them.
+         * 
+         * @param minPixels
+         *            minimum width times height of a request that is
+         *            streamed (for example 4096 * 4096)
+         * @param bandHeight
+         *            maximum height in pixels of each band
+         * @return this
+         */
+        public Builder streamingExport(long minPixels, int bandHeight) {
+            if (minPixels <= 0)
+                throw new IllegalArgumentException("minPixels must be positive");
+            if (bandHeight < 1)
+                throw new IllegalArgumentException("bandHeight must be at least 1");
+            this.streamingMinPixels = minPixels;
+            this.streamingBandHeight = bandHeight;
+            return this;
+        }
+
+        /**
+         * As {@link #streamingExport(long, int)} with bands of 256 rows.
+         * 
+         * @param minPixels
+         *            minimum width times height of a request that is
+         *            streamed
+         * @return this
+         */
+        public Builder streamingExport(long minPixels) {
+            return streamingExport(minPixels, DEFAULT_STREAMING_BAND_HEIGHT);
+        }
+
+        /**
+         * Limits the number of concurrent renders of the layer (a bulkhead) so
+         * that an expensive layer cannot occupy every render thread and delay
+         * cheaper layers. Renders of the layer beyond the limit wait without
+         * holding a thread. Layer work is otherwise dispatched in priority
+         * order: client GetMap requests, then seeding and background
+         * refreshes, then GetFeatureInfo lookups.
+         * 
+         * @param layerName
+         *            name of the WMS layer
+         * @param max
+         *            maximum concurrent renders of the layer
+         * @return this
+         */
+        public Builder maxConcurrentRenders(String layerName, int max) {
+            if (max < 1)
+                throw new IllegalArgumentException("max must be at least 1");
+            maxConcurrentRenders.put(layerName, max);
+            return this;
+        }
+
+        /**
+         * Renders each layer on its own virtual thread (Java 21 and later)
+         * so that layers that block (for example on database reads) don't
+         * starve other layers of render threads. {@link #renderThreads(int)}
+         * is then ignored and {@link #renderQueueSize(int)} limits both the
+         * number of layer renders in progress and waiting. Encoding of images
+         * stays on a pool of {@link #encodeThreads(int)} platform threads
+         * because it is CPU bound. On runtimes without virtual threads a
+         * warning is logged and layers are rendered on the
+         * {@link #renderThreads(int)} platform threads as usual.
+         * 
+         * @return this
+         */
+        public Builder virtualThreads() {
+            this.virtualThreads = true;
+            return this;
+        }
+
+        /**
+         * Sets the number of platform threads that encode images when
+         * {@link #virtualThreads()} is enabled. Defaults to the number of
+         * processors.
+         * 
+         * @param threads
+         *            number of encoding threads
+         * @return this
+         */
+        public Builder encodeThreads(int threads) {
+            if (threads < 1)
+                throw new IllegalArgumentException("threads must be at least 1");
+            this.encodeThreads = threads;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of bytes of pixels of rendered images that
+         * are kept for reuse by later requests of the same size rather than
+         * allocated afresh. Defaults to 64MB.
+         * 
+         * @param maxBytes
+         *            maximum bytes retained, 0 to disable reuse
+         * @return this
+         */
+        public Builder rasterPoolMaxBytes(long maxBytes) {
+            this.rasterPoolMaxBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * Decides on the server which requests for cached layers have their
+         * images cached, rather than relying on the client's
+         * {@code cacheImage} parameter (which is then ignored). A request is
+         * cached only if all of its layers are cached layers and it is
+         * admitted by the policy of each of its layers (see
+         * {@link #cachePolicy(String, CachePolicy)}) or otherwise by this
+         * policy.
+         * 
+         * @param policy
+         *            policy for cached layers without their own policy
+         * @return this
+         */
+        public Builder cachePolicy(CachePolicy policy) {
+            this.cachePolicy = policy;
+            return this;
+        }
+
+        /**
+         * Sets the policy deciding which requests that include the layer are
+         * cached (see {@link #cachePolicy(CachePolicy)}).
+         * 
+         * @param layerName
+         *            name of the WMS layer
+         * @param policy
+         *            policy for the layer
+         * @return this
+         */
+        public Builder cachePolicy(String layerName, CachePolicy policy) {
+            layerCachePolicies.put(layerName, policy);
+            return this;
+        }
+
+        /**
+         * Enables metatiling for requests for tiles of the given grid (one
+         * grid per CRS). When a cacheable tile is not in the cache the
+         * enclosing block of {@code size x size} tiles is rendered in one pass,
+         * sliced, and every tile of the block is encoded and cached. Clients
+         * typically request the neighbouring tiles next.
+         * 
+         * @param grid
+         *            tile grid
+         * @param size
+         *            number of tiles along each side of a metatile (for
+         *            example 4)
+         * @return this
+         */
+        public Builder metatile(TileGrid grid, int size) {
+            return metatile(new Metatiler(grid, size));
+        }
+
+        Builder metatile(Metatiler metatiler) {
+            metatilers.add(metatiler);
+            return this;
+        }
+
+        /**
+         * Snaps the bounds of cacheable requests that are within the given
+         * tolerance of a tile of the grid (one grid per CRS) to the exact
+         * bounds of the tile before looking up the cache, so that requests
+         * that differ only by floating point noise share cached images. Only
+         * requests whose width and height are the grid's tile size are
+         * snapped. The size is never snapped because the image returned must
+         * be the size requested, and an image of another size has a
+         * different scale so is not a tile of the grid.
+         * 
+         * @param grid
+         *            tile grid
+         * @param tolerancePixels
+         *            maximum difference of each edge from the tile's edge in
+         *            pixels (for example 0.5)
+         * @return this
+         */
+        public Builder snapToGrid(TileGrid grid, double tolerancePixels) {
+            return snapToGrid(new GridSnapper(grid, tolerancePixels));
+        }
+
+        Builder snapToGrid(GridSnapper snapper) {
+            snappers.add(snapper);
+            return this;
+        }
+
         public Builder imageCache(int size) {
             this.imageCacheSize = size;
             return this;
         }
+
+        public Builder imageCacheMaxBytes(long maxBytes) {
+            this.imageCacheMaxBytes = maxBytes;
+            return this;
+        }
+
+        public Builder imageCache(ImageCache imageCache) {
+            this.imageCache = imageCache;
+            return this;
+        }
         
         public Builder addCachedLayer(Layer layer) {
             return addCachedLayer(layer.getFeatures().getName(), layer);
@@ -100,61 +528,514 @@ public class WmsRequestProcessor {
         }
 
         public WmsRequestProcessor build() {
-            if (imageCacheSize != null)
+            if (imageCacheMaxBytes != null)
+                imageCache = ImageCache.createWithMaxBytes(imageCacheMaxBytes);
+            else if (imageCacheSize != null)
                 imageCache = new ImageCache(imageCacheSize);
             for (String layer : layersToCache)
                 imageCache.add(layer);
             if (layers == null)
                 layers = layersBuilder.build();
-            return new WmsRequestProcessor(layers, imageCache, imageWriter);
+            return new WmsRequestProcessor(this);
         }
     }
 
-    public void writeImage(WmsRequest wmsRequest, boolean cacheImage, OutputStream out)
+    /**
+     * Writes the image for the request to the output stream. Only requests
+     * that are cacheable (see {@link #isCacheable(WmsRequest, boolean)}) are
+     * read from and put in the image cache, an image rendered for a request
+     * with {@code cacheImage} false is not cached.
+     * 
+     * @param wmsRequest
+     *            the WMS request
+     * @param cacheImage
+     *            true if the client asked for the image to be cached
+     * @param out
+     *            stream to write to
+     * @throws IOException
+     *             if the render or write fails
+     */
+    public void writeImage(final WmsRequest wmsRequest, final boolean cacheImage, OutputStream out)
             throws IOException {
-        final byte[] bytes;
+        if (isStreamed(wmsRequest)) {
+            writeImageStreamed(wmsRequest, out);
+            return;
+        }
+        CachedImage result = getImage(wmsRequest, isCacheable(wmsRequest, cacheImage));
+        try {
+            writeImage(wmsRequest, result, out);
+        } finally {
+            result.release();
+        }
+    }
+
+    /**
+     * Returns true if the request is large enough to be streamed (see
+     * {@link Builder#streamingExport(long, int)}).
+     * 
+     * @param wmsRequest
+     *            the WMS request
+     * @return true if streamed
+     */
+    boolean isStreamed(WmsRequest wmsRequest) {
+        return streamingMinPixels > 0 && PNG.equalsIgnoreCase(wmsRequest.getFormat())
+                && (long) wmsRequest.getWidth() * wmsRequest.getHeight() >= streamingMinPixels;
+    }
+
+    /**
+     * Renders the PNG image for the request a band of rows at a time, writing
+     * each band to the output stream as it is encoded. The image is not
+     * cached. Nothing is written until the first band has rendered so that
+     * the request can still be rejected with a {@link RenderRejectedException}
+     * when the render queue is full. The later bands are never rejected.
+     * 
+     * @param wmsRequest
+     *            the WMS request
+     * @param out
+     *            stream to write to
+     * @throws IOException
+     *             if a band could not be rendered or written
+     */
+    void writeImageStreamed(WmsRequest wmsRequest, OutputStream out) throws IOException {
+        log.info("streaming image for layers " + wmsRequest.getLayers());
+        long t = System.currentTimeMillis();
+        List<WmsRequest> bands = LayerManager.bands(wmsRequest, streamingBandHeight);
+        LayerManager.Rendered rendered = layerManager.render(bands.get(0), false,
+                RenderPriority.INTERACTIVE);
+        PngStreamWriter writer;
+        try {
+            writer = new PngStreamWriter(out, wmsRequest.getWidth(), wmsRequest.getHeight(),
+                    wmsRequest.isTransparent(), Deflater.DEFAULT_COMPRESSION);
+        } catch (IOException e) {
+            layerManager.release(rendered.image);
+            throw e;
+        }
+        try {
+            for (int i = 1;; i++) {
+                try {
+                    writer.write(rendered.image);
+                } finally {
+                    layerManager.release(rendered.image);
+                }
+                if (i == bands.size())
+                    break;
+                // the response is committed so the band must not be rejected
+                rendered = layerManager.render(bands.get(i), false,
+                        new RenderScheduler.Job(RenderPriority.INTERACTIVE), true);
+            }
+            writer.finish();
+        } finally {
+            writer.close();
+        }
+        log.info("streamedImageTimeMs=" + (System.currentTimeMillis() - t));
+    }
+
+    /**
+     * Returns true if the image for the request is to be obtained from and
+     * put in the cache. If a cache policy is set (see
+     * {@link Builder#cachePolicy(CachePolicy)}) the policy decides and the
+     * client's request is ignored.
+     * 
+     * @param wmsRequest
+     *            the WMS request
+     * @param cacheImageRequested
+     *            true if the client asked for the image to be cached
+     * @return true if the image is cacheable
+     */
+    boolean isCacheable(WmsRequest wmsRequest, boolean cacheImageRequested) {
+        if (cachePolicy == null && layerCachePolicies.isEmpty())
+            return cacheImageRequested;
+        if (!imageCache.isCacheable(wmsRequest.getLayers()))
+            return false;
+        // a policy shared by several layers is evaluated once and the scale
+        // is calculated at most once
+        Set<CachePolicy> evaluated = Collections
+                .newSetFromMap(new IdentityHashMap<CachePolicy, Boolean>());
+        Double scale = null;
+        for (String layer : wmsRequest.getLayers()) {
+            CachePolicy policy = layerCachePolicies.get(layer);
+            if (policy == null)
+                policy = cachePolicy;
+            if (policy == null || !evaluated.add(policy))
+                continue;
+            if (scale == null && policy.usesScale())
+                scale = CachePolicy.scale(wmsRequest);
+            if (!policy.admits(wmsRequest, scale == null ? Double.NaN : scale))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the encoded image for the request from the cache or by
+     * rendering it. The result has been retained and the caller must
+     * {@link CachedImage#release() release} it when finished.
+     * 
+     * @param wmsRequest
+     *            the WMS request
+     * @param cacheImage
+     *            true if the image may be obtained from and put in the cache
+     * @return retained image
+     * @throws IOException
+     *             if the render fails
+     */
+    CachedImage getImage(WmsRequest wmsRequest, boolean cacheImage) throws IOException {
+        final CachedImage cached;
         if (cacheImage) {
+            wmsRequest = snap(wmsRequest);
             // check the cache for the bytes of the image converted to the
             // appropriate format. Note that the critical bottleneck is
             // ImageIO.write rather than the layerManager.getImage call
-            bytes = imageCache.get(wmsRequest);
+            cached = imageCache.getImage(wmsRequest);
         } else {
-            bytes = null;
+            cached = null;
         }
-        final byte[] result;
-        if (bytes == null) {
+        final CachedImage result;
+        if (cached == null) {
             log.info("image cache empty");
-
-            BufferedImage image = null;
-            // dynamic layers should clear the imageCache in a separate thread
-            // (for example, using a quartz job)
-            image = layerManager.getImage(wmsRequest);
-            // Note that we write the image to memory first to avoid this JRE
-            // bug:
-            // http://bugs.sun.com/bugdatabase/view_bug.do;jsessionid=dc84943191e06dffffffffdf200f5210dd319?bug_id=6967419
-            // which is commented on further in JIRA ER-95
-            log.info("writing image to memory for layers " + wmsRequest.getLayers());
-            ByteArrayOutputStream byteOs = new ByteArrayOutputStream();
-            String imageType = wmsRequest.getFormat()
-                    .substring(wmsRequest.getFormat().indexOf('/') + 1);
-            // This call is slow!!
-            long t = System.currentTimeMillis();
-            imageWriter.writeImage(image, byteOs, imageType);
-            log.info("ImageIoWriteTimeMs=" + (System.currentTimeMillis() - t));
-            result = byteOs.toByteArray();
-            imageCache.put(wmsRequest, result);
+            result = CachedImage.onHeap(render(wmsRequest, cacheImage,
+                    RenderPriority.INTERACTIVE));
         } else {
-            result = bytes;
+            result = cached;
             log.info("obtained image from cache for layers " + wmsRequest.getLayers());
+            if (imageCache.isExpired(wmsRequest, cached))
+                refresh(wmsRequest);
         }
+        return result;
+    }
 
+    /**
+     * Writes an image obtained from {@link #getImage(WmsRequest, boolean)} to
+     * the output stream.
+     * 
+     * @param wmsRequest
+     *            the WMS request
+     * @param result
+     *            retained image
+     * @param out
+     *            stream to write to
+     * @throws IOException
+     *             on write failure
+     */
+    void writeImage(WmsRequest wmsRequest, CachedImage result, OutputStream out)
+            throws IOException {
         log.info("writing image to http output stream for layers " + wmsRequest.getLayers());
-        out.write(result);
+        // off-heap images are copied straight from direct memory to the
+        // stream without an intermediate byte[] of the whole image
+        result.writeTo(out);
         out.flush();
-        log.info("imageSizeK=" + new DecimalFormat("0.000").format(result.length / 1000.0)
+        log.info("imageSizeK=" + new DecimalFormat("0.000").format(result.length() / 1000.0)
                 + " for layers " + wmsRequest.getLayers());
     }
 
+    /**
+     * Renders the image for the request, sharing the render with concurrent
+     * identical requests, and caches it if requested.
+     * 
+     * @param wmsRequest
+     *            the WMS request
+     * @param cacheImage
+     *            true if the image is to be cached
+     * @param priority
+     *            priority of the layer renders (a render shared with a later
+     *            request of higher priority is raised to that priority)
+     * @return bytes of the encoded image
+     * @throws IOException
+     *             if the render fails
+     */
+    private byte[] render(final WmsRequest wmsRequest, final boolean cacheImage,
+            RenderPriority priority) throws IOException {
+        final RenderScheduler.Job job = new RenderScheduler.Job(priority);
+        if (cacheImage) {
+            Metatiler.Metatile metatile = metatile(wmsRequest);
+            if (metatile != null) {
+                byte[] bytes = renderMetatile(metatile, job).get(
+                        wmsRequest.getCacheKey());
+                // the tile may have been cached before the metatile was
+                // rendered in which case we fall through to the cache
+                if (bytes != null)
+                    return bytes;
+            }
+        }
+        // concurrent identical requests (for example many clients loading
+        // the same tile) wait for a single render and share its bytes
+        SingleFlight<CacheKey, byte[]> renders = cacheImage ? cachedRenders : uncachedRenders;
+        return renders.get(wmsRequest.getCacheKey(), job, new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                if (cacheImage) {
+                    // a flight for this key may have completed between
+                    // our cache miss and becoming leader
+                    CachedImage cached = imageCache.getImage(wmsRequest, false);
+                    if (cached != null) {
+                        try {
+                            return cached.toByteArray();
+                        } finally {
+                            cached.release();
+                        }
+                    }
+                }
+                long t = System.nanoTime();
+                Encoded encoded = renderImage(wmsRequest, cacheImage, job);
+                // put before the flight completes so that requests
+                // arriving afterwards find the image in the cache
+                if (cacheImage && encoded.complete) {
+                    imageCache.recordLoad(System.nanoTime() - t);
+                    imageCache.put(wmsRequest, encoded.bytes);
+                }
+                return encoded.bytes;
+            }
+        });
+    }
+
+    private WmsRequest snap(WmsRequest wmsRequest) {
+        if (snappers.isEmpty() || wmsRequest.getBounds().getSrs() == null)
+            return wmsRequest;
+        GridSnapper snapper = snappers.get(wmsRequest.getBounds().getSrs()
+                .toUpperCase(Locale.ENGLISH));
+        return snapper == null ? wmsRequest : snapper.snap(wmsRequest);
+    }
+
+    private Metatiler.Metatile metatile(WmsRequest wmsRequest) {
+        if (metatilers.isEmpty() || wmsRequest.getBounds().getSrs() == null
+                || !imageCache.isCacheable(wmsRequest.getLayers()))
+            return null;
+        Metatiler metatiler = metatilers.get(wmsRequest.getBounds().getSrs()
+                .toUpperCase(Locale.ENGLISH));
+        return metatiler == null ? null : metatiler.metatile(wmsRequest);
+    }
+
+    /**
+     * Renders the metatile once, slices it into tiles and encodes and caches
+     * the tiles that aren't already cached.
+     * 
+     * @param metatile
+     *            metatile
+     * @param job
+     *            decides the priority of the layer renders
+     * @return encoded tiles by cache key
+     * @throws IOException
+     *             if the render fails
+     */
+    private Map<CacheKey, byte[]> renderMetatile(final Metatiler.Metatile metatile,
+            final RenderScheduler.Job job) throws IOException {
+        return metatileRenders.get(metatile.request.getCacheKey(), job,
+                new Callable<Map<CacheKey, byte[]>>() {
+                    @Override
+                    public Map<CacheKey, byte[]> call() throws IOException {
+                        long t = System.nanoTime();
+                        log.info("rendering metatile " + metatile.request.getBounds()
+                                + " for layers " + metatile.request.getLayers());
+                        // the metatile's layer rasters are never requested
+                        // again so are not offered to the layer raster cache
+                        LayerManager.Rendered rendered = layerManager.render(metatile.request,
+                                false, job, false);
+                        BufferedImage image = rendered.image;
+                        Map<CacheKey, byte[]> tiles = new HashMap<CacheKey, byte[]>();
+                        try {
+                            for (Metatiler.Tile tile : metatile.tiles) {
+                                CachedImage cached = imageCache.getImage(tile.request, false);
+                                if (cached != null) {
+                                    cached.release();
+                                    continue;
+                                }
+                                byte[] bytes = encode(image.getSubimage(tile.x, tile.y,
+                                        tile.request.getWidth(), tile.request.getHeight()),
+                                        tile.request);
+                                if (rendered.complete)
+                                    imageCache.put(tile.request, bytes);
+                                tiles.put(tile.request.getCacheKey(), bytes);
+                            }
+                        } finally {
+                            // the subimages share the metatile's pixels
+                            layerManager.release(image);
+                        }
+                        imageCache.recordLoad(System.nanoTime() - t);
+                        return tiles;
+                    }
+                });
+    }
+
+    /**
+     * Re-renders the image for the request in the background and replaces the
+     * expired image in the cache.
+     * 
+     * @param wmsRequest
+     *            request whose cached image has expired
+     */
+    private void refresh(final WmsRequest wmsRequest) {
+        final CacheKey key = wmsRequest.getCacheKey();
+        if (!refreshing.add(key))
+            return;
+        try {
+            refreshExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        long t = System.nanoTime();
+                        Encoded encoded = renderImage(wmsRequest, true,
+                                new RenderScheduler.Job(RenderPriority.BACKGROUND));
+                        if (encoded.complete) {
+                            imageCache.recordLoad(System.nanoTime() - t);
+                            imageCache.put(wmsRequest, encoded.bytes);
+                            log.info("refreshed expired image for layers "
+                                    + wmsRequest.getLayers());
+                        } else
+                            // the expired image is served until a refresh
+                            // completes (or the stale-while-revalidate time
+                            // passes)
+                            log.warn("incomplete refresh of expired image for layers "
+                                    + wmsRequest.getLayers());
+                    } catch (IOException e) {
+                        log.warn("could not refresh expired image for layers "
+                                + wmsRequest.getLayers(), e);
+                    } catch (RuntimeException e) {
+                        log.warn("could not refresh expired image for layers "
+                                + wmsRequest.getLayers(), e);
+                    } finally {
+                        refreshing.remove(key);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            refreshing.remove(key);
+            throw e;
+        }
+    }
+
+    private Encoded renderImage(WmsRequest wmsRequest, boolean useLayerRasters,
+            RenderScheduler.Job job) throws IOException {
+        // dynamic layers either clear the imageCache in a separate thread
+        // (for example, using a quartz job) or set a time to live on the
+        // imageCache so that expired images are re-rendered
+        LayerManager.Rendered rendered = layerManager.render(wmsRequest, useLayerRasters, job,
+                false);
+        try {
+            return new Encoded(encode(rendered.image, wmsRequest), rendered.complete);
+        } finally {
+            layerManager.release(rendered.image);
+        }
+    }
+
+    private static final class Encoded {
+
+        final byte[] bytes;
+
+        /**
+         * False if a layer did not render in time in which case the image is
+         * not cached.
+         */
+        final boolean complete;
+
+        Encoded(byte[] bytes, boolean complete) {
+            this.bytes = bytes;
+            this.complete = complete;
+        }
+    }
+
+    private byte[] encode(final BufferedImage image, final WmsRequest wmsRequest)
+            throws IOException {
+        if (encodeExecutor == null)
+            return encodeNow(image, wmsRequest);
+        // encoding is CPU bound so is limited to a few platform threads
+        // however many virtual threads are rendering
+        Future<byte[]> future = encodeExecutor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                return encodeNow(image, wmsRequest);
+            }
+        });
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while encoding image");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            else if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            else if (cause instanceof Error)
+                throw (Error) cause;
+            else
+                throw new RuntimeException(cause);
+        }
+    }
+
+    private byte[] encodeNow(BufferedImage image, WmsRequest wmsRequest) throws IOException {
+        // Note that we write the image to memory first to avoid this JRE
+        // bug:
+        // http://bugs.sun.com/bugdatabase/view_bug.do;jsessionid=dc84943191e06dffffffffdf200f5210dd319?bug_id=6967419
+        // which is commented on further in JIRA ER-95
+        log.info("writing image to memory for layers " + wmsRequest.getLayers());
+        ByteArrayOutputStream byteOs = new ByteArrayOutputStream();
+        String imageType = wmsRequest.getFormat()
+                .substring(wmsRequest.getFormat().indexOf('/') + 1);
+        // This call is slow!!
+        long t = System.currentTimeMillis();
+        imageWriter.writeImage(image, byteOs, imageType);
+        log.info("ImageIoWriteTimeMs=" + (System.currentTimeMillis() - t));
+        return byteOs.toByteArray();
+    }
+
+    /**
+     * Starts rendering the tiles described by the request into the image cache
+     * on low priority background threads so that the cache is warm before
+     * clients request the tiles. Tiles already cached are skipped.
+     * 
+     * @param request
+     *            tiles to seed
+     * @return task for monitoring progress and cancelling
+     * @throws IllegalArgumentException
+     *             if not all of the request's layers are cached
+     */
+    public SeedTask seed(SeedRequest request) {
+        if (!imageCache.isCacheable(request.getLayers()))
+            throw new IllegalArgumentException("layers are not all enabled for caching: "
+                    + request.getLayers());
+        return SeedTask.start(request, new SeedTask.TileLoader() {
+            @Override
+            public boolean load(WmsRequest tile) throws IOException {
+                CachedImage cached = imageCache.getImage(tile, false);
+                if (cached != null) {
+                    cached.release();
+                    return false;
+                }
+                render(tile, true, RenderPriority.BACKGROUND);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Returns a snapshot of the statistics of the image cache.
+     * 
+     * @return statistics
+     */
+    public ImageCacheStats imageCacheStats() {
+        return imageCache.stats();
+    }
+
+    /**
+     * Stops the render and background refresh threads and closes the
+     * {@link ImageCache} (writing its snapshot if it has one). Renders in
+     * progress are interrupted.
+     */
+    @Override
+    public void close() {
+        refreshExecutor.shutdownNow();
+        if (encodeExecutor != null)
+            encodeExecutor.shutdownNow();
+        layerManager.close();
+        try {
+            imageCache.close();
+        } catch (IOException e) {
+            log.warn("could not close image cache: " + e.getMessage(), e);
+        }
+    }
+
     public void writeFeatureInfo(int i, int j, WmsRequest wmsRequest, OutputStream out)
             throws IOException {
         BufferedOutputStream bos = new BufferedOutputStream(out);
@@ -1,10 +1,13 @@
 package com.github.davidmoten.grumpy.wms;
 
 import java.io.IOException;
-import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -24,11 +27,19 @@ public class WmsServletRequestProcessor {
     private static final String PARAMETER_REQUEST = "REQUEST";
     private static final Object REQUEST_GET_CAPABILITIES = "GetCapabilities";
     private static final Object REQUEST_GET_FEATURE_INFO = "GetFeatureInfo";
+    private static final Object REQUEST_GET_CACHE_STATS = "GetCacheStats";
 
     private final CapabilitiesProvider capabilitiesProvider;
 
     private WmsRequestProcessor processor;
 
+    private final boolean cacheStatsRequestEnabled;
+
+    /**
+     * Cache-Control max-age in seconds by layer name.
+     */
+    private final Map<String, Long> maxAgeSeconds;
+
     /**
      * Constructor.
      * 
@@ -39,8 +50,28 @@ public class WmsServletRequestProcessor {
      */
     public WmsServletRequestProcessor(CapabilitiesProvider capabilitiesProvider,
             WmsRequestProcessor processor) {
+        this(capabilitiesProvider, processor, false, new HashMap<String, Long>());
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param capabilitiesProvider
+     * @param processor
+     * @param cacheStatsRequestEnabled
+     *            if true then {@code REQUEST=GetCacheStats} returns the image
+     *            cache statistics as plain text
+     * @param maxAgeSeconds
+     *            Cache-Control max-age in seconds of GetMap responses by
+     *            layer name
+     */
+    public WmsServletRequestProcessor(CapabilitiesProvider capabilitiesProvider,
+            WmsRequestProcessor processor, boolean cacheStatsRequestEnabled,
+            Map<String, Long> maxAgeSeconds) {
         this.capabilitiesProvider = capabilitiesProvider;
         this.processor = processor;
+        this.cacheStatsRequestEnabled = cacheStatsRequestEnabled;
+        this.maxAgeSeconds = new HashMap<String, Long>(maxAgeSeconds);
     }
 
     public static Builder builder() {
@@ -56,6 +87,13 @@ public class WmsServletRequestProcessor {
         private final List<String> layersToCache = new ArrayList<String>();
         private ImageWriter imageWriter = new ImageWriterDefault();
         private Integer imageCacheSize;
+        private Long imageCacheMaxBytes;
+        private boolean cacheStatsRequestEnabled;
+        private final Map<String, Long> maxAgeSeconds = new HashMap<String, Long>();
+        private final List<Metatiler> metatilers = new ArrayList<Metatiler>();
+        private final List<GridSnapper> snappers = new ArrayList<GridSnapper>();
+        private CachePolicy cachePolicy;
+        private final Map<String, CachePolicy> layerCachePolicies = new HashMap<String, CachePolicy>();
 
         private Builder() {
         }
@@ -80,6 +118,16 @@ public class WmsServletRequestProcessor {
             return this;
         }
 
+        public Builder imageCacheMaxBytes(long maxBytes) {
+            this.imageCacheMaxBytes = maxBytes;
+            return this;
+        }
+
+        public Builder imageCache(ImageCache imageCache) {
+            this.imageCache = imageCache;
+            return this;
+        }
+
         public Builder addCachedLayer(Layer layer) {
             return addCachedLayer(layer.getFeatures().getName(), layer);
         }
@@ -142,16 +190,120 @@ public class WmsServletRequestProcessor {
             return this;
         }
 
+        /**
+         * Enables {@code REQUEST=GetCacheStats} which returns the image cache
+         * statistics as plain text. Not enabled by default.
+         * 
+         * @return this
+         */
+        public Builder enableCacheStatsRequest() {
+            this.cacheStatsRequestEnabled = true;
+            return this;
+        }
+
+        /**
+         * Allows browsers and shared caches (like a CDN) to reuse GetMap
+         * responses that include the given layer for the given time without
+         * revalidating. A response for more than one layer uses the smallest
+         * max-age of its layers and is not cacheable if one of its layers has
+         * no max-age.
+         * 
+         * @param layerName
+         *            name of the WMS layer
+         * @param duration
+         *            max-age
+         * @param unit
+         *            unit of duration
+         * @return this
+         */
+        public Builder maxAge(String layerName, long duration, TimeUnit unit) {
+            maxAgeSeconds.put(layerName, unit.toSeconds(duration));
+            return this;
+        }
+
+        /**
+         * Enables metatiling for requests for tiles of the given grid (see
+         * {@link WmsRequestProcessor.Builder#metatile(TileGrid, int)}).
+         * 
+         * @param grid
+         *            tile grid
+         * @param size
+         *            number of tiles along each side of a metatile
+         * @return this
+         */
+        public Builder metatile(TileGrid grid, int size) {
+            metatilers.add(new Metatiler(grid, size));
+            return this;
+        }
+
+        /**
+         * Snaps the bounds of cacheable requests near a tile of the grid to
+         * the tile's bounds (see
+         * {@link WmsRequestProcessor.Builder#snapToGrid(TileGrid, double)}).
+         * 
+         * @param grid
+         *            tile grid
+         * @param tolerancePixels
+         *            maximum difference of each edge from the tile's edge in
+         *            pixels
+         * @return this
+         */
+        public Builder snapToGrid(TileGrid grid, double tolerancePixels) {
+            snappers.add(new GridSnapper(grid, tolerancePixels));
+            return this;
+        }
+
+        /**
+         * Decides on the server which requests for cached layers are cached
+         * (see {@link WmsRequestProcessor.Builder#cachePolicy(CachePolicy)}).
+         * 
+         * @param policy
+         *            policy for cached layers without their own policy
+         * @return this
+         */
+        public Builder cachePolicy(CachePolicy policy) {
+            this.cachePolicy = policy;
+            return this;
+        }
+
+        /**
+         * Sets the policy deciding which requests that include the layer are
+         * cached (see
+         * {@link WmsRequestProcessor.Builder#cachePolicy(String, CachePolicy)}).
+         * 
+         * @param layerName
+         *            name of the WMS layer
+         * @param policy
+         *            policy for the layer
+         * @return this
+         */
+        public Builder cachePolicy(String layerName, CachePolicy policy) {
+            layerCachePolicies.put(layerName, policy);
+            return this;
+        }
+
         public WmsServletRequestProcessor build() {
-            if (imageCacheSize != null)
+            if (imageCacheMaxBytes != null)
+                imageCache = ImageCache.createWithMaxBytes(imageCacheMaxBytes);
+            else if (imageCacheSize != null)
                 imageCache = new ImageCache(imageCacheSize);
             for (String layer : layersToCache)
                 imageCache.add(layer);
             if (layers == null)
                 layers = layersBuilder.build();
-            WmsRequestProcessor processor = new WmsRequestProcessor(layers, imageCache,
-                    imageWriter);
-            return new WmsServletRequestProcessor(capabilitiesProvider, processor);
+            WmsRequestProcessor.Builder b = WmsRequestProcessor.builder().layers(layers)
+                    .imageCache(imageCache).imageWriter(imageWriter);
+            for (Metatiler metatiler : metatilers)
+                b.metatile(metatiler);
+            for (GridSnapper snapper : snappers)
+                b.snapToGrid(snapper);
+            if (cachePolicy != null)
+                b.cachePolicy(cachePolicy);
+            for (Map.Entry<String, CachePolicy> entry : layerCachePolicies.entrySet())
+                b.cachePolicy(entry.getKey(), entry.getValue());
+            WmsRequestProcessor processor = b.build();
+            return new WmsServletRequestProcessor(capabilitiesProvider, processor,
+                    cacheStatsRequestEnabled, maxAgeSeconds);
         }
     }
 
@@ -162,13 +314,17 @@ public class WmsServletRequestProcessor {
             log.info("httpGetUrl=" + request.getRequestURL() + "?" + request.getQueryString());
             log.info("requestedByIP = ip " + request.getRemoteAddr());
             String req = request.getParameter(PARAMETER_REQUEST);
-            setNoCacheParameters(response);
+            // GetMap sets its own caching headers
+            if (!REQUEST_GET_MAP.equals(req))
+                setNoCacheParameters(response);
             if (REQUEST_GET_CAPABILITIES.equals(req)) {
                 writeCapabilities(request, response);
             } else if (REQUEST_GET_MAP.equals(req)) {
                 writeImage(request, response);
             } else if (REQUEST_GET_FEATURE_INFO.equals(req)) {
                 writeFeatureInfo(request, response);
+            } else if (cacheStatsRequestEnabled && REQUEST_GET_CACHE_STATS.equals(req)) {
+                writeCacheStats(response);
             } else
                 throw new UnknownParameterException("Unrecognized REQUEST parameter: " + req);
             // flush everything so timer below is realistic for delivery to
@@ -180,6 +336,20 @@ public class WmsServletRequestProcessor {
         } catch (MissingMandatoryParameterException e) {
             log.warn(e.getMessage(), e);
             throw new ServletException(e);
+        } catch (RenderRejectedException e) {
+            if (response.isCommitted()) {
+                // part of the image has been sent with a success status, fail
+                // the request so that the container aborts the connection
+                // rather than the client taking a truncated image as complete
+                log.warn(e.getMessage());
+                throw new ServletException(e);
+            }
+            // overloaded so ask the client to come back later, the error
+            // must not be stored by caches
+            log.warn(e.getMessage());
+            setNoCacheParameters(response);
+            response.setHeader("Retry-After", "1");
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
         } catch (Exception e) {
             handleException(e);
         } finally {
@@ -189,6 +359,14 @@ public class WmsServletRequestProcessor {
         }
     }
 
+    /**
+     * Stops the threads of the {@link WmsRequestProcessor} and closes its
+     * {@link ImageCache}. Call from the servlet's {@code destroy} method.
+     */
+    public void close() {
+        processor.close();
+    }
+
     private void handleException(Exception e) throws ServletException {
         if (e.getClass().getName().contains("ClientAbortException")
                 || e.getMessage() != null && e.getMessage().contains("Broken pipe")
@@ -216,11 +394,84 @@ public class WmsServletRequestProcessor {
             throws MissingMandatoryParameterException, IOException {
         log.info("getting image");
         WmsRequest wmsRequest = new WmsRequest(request);
-        OutputStream out = response.getOutputStream();
-        response.setContentType(wmsRequest.getFormat());
-        boolean cacheImage = "true".equalsIgnoreCase(request.getParameter("cacheImage"));
+        if (processor.isStreamed(wmsRequest)) {
+            // the length and ETag are not known until the whole image is
+            // written so the image is sent chunked and never cached
+            setNoCacheParameters(response);
+            response.setContentType(wmsRequest.getFormat());
+            processor.writeImageStreamed(wmsRequest, response.getOutputStream());
+            return;
+        }
+        boolean cacheImage = processor.isCacheable(wmsRequest,
+                "true".equalsIgnoreCase(request.getParameter("cacheImage")));
+        Long maxAge = maxAgeSeconds(wmsRequest.getLayers());
+
+        CachedImage image = processor.getImage(wmsRequest, cacheImage);
+        try {
+            // caching headers are only set once the image is obtained so that
+            // an error response (for example a rejected render) is never
+            // given a freshness lifetime
+            if (maxAge != null)
+                response.setHeader("Cache-Control", "public, max-age=" + maxAge);
+            else if (cacheImage)
+                // clients may store the image but must revalidate it (using
+                // the ETag) before each use
+                response.setHeader("Cache-Control", "no-cache");
+            else
+                setNoCacheParameters(response);
+            // only responses that clients may store are revalidated so one-off
+            // images don't pay for hashing the whole image
+            if (maxAge != null || cacheImage) {
+                String etag = image.etag();
+                response.setHeader("ETag", etag);
+                if (matches(request.getHeader("If-None-Match"), etag)) {
+                    log.info("image not modified for layers " + wmsRequest.getLayers());
+                    response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                    return;
+                }
+            }
+            response.setContentType(wmsRequest.getFormat());
+            response.setContentLength(image.length());
+            processor.writeImage(wmsRequest, image, response.getOutputStream());
+        } finally {
+            image.release();
+        }
+    }
 
-        processor.writeImage(wmsRequest, cacheImage, out);
+    private Long maxAgeSeconds(List<String> layers) {
+        if (maxAgeSeconds.isEmpty() || layers.isEmpty())
+            return null;
+        long min = Long.MAX_VALUE;
+        for (String layer : layers) {
+            Long seconds = maxAgeSeconds.get(layer);
+            if (seconds == null)
+                return null;
+            min = Math.min(min, seconds);
+        }
+        return min;
+    }
+
+    /**
+     * Returns true if the If-None-Match header value matches the entity tag.
+     * 
+     * @param ifNoneMatch
+     *            header value, may be null
+     * @param etag
+     *            quoted entity tag
+     * @return true if matches
+     */
+    static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null)
+            return false;
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            // weak comparison as per RFC 7232
+            if (tag.startsWith("W/"))
+                tag = tag.substring(2);
+            if (tag.equals("*") || tag.equals(etag))
+                return true;
+        }
+        return false;
     }
 
     private void writeFeatureInfo(HttpServletRequest request, HttpServletResponse response)
@@ -233,6 +484,12 @@ public class WmsServletRequestProcessor {
         processor.writeFeatureInfo(i, j, wmsRequest, response.getOutputStream());
     }
 
+    private void writeCacheStats(HttpServletResponse response) throws IOException {
+        response.setContentType("text/plain; charset=UTF-8");
+        response.getOutputStream().write(
+                processor.imageCacheStats().toString().getBytes(StandardCharsets.UTF_8));
+    }
+
     private int getJ(HttpServletRequest request) {
         if (request.getParameter("J") != null)
             return Math.round(Float.parseFloat(request.getParameter("J")));
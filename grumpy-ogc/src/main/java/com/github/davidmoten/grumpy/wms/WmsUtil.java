@@ -6,9 +6,15 @@ import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
 import org.geotools.renderer.lite.RendererUtilities;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.TransformException;
 
 import com.github.davidmoten.grumpy.core.Position;
 import com.github.davidmoten.grumpy.projection.FeatureUtil;
@@ -52,6 +58,224 @@ public class WmsUtil {
                 Collections.emptyMap());
     }
 
+    /**
+     * Number of points sampled along each edge of bounds when finding their
+     * geographic envelope.
+     */
+    private static final int EDGE_SAMPLES = 16;
+
+    private static final ProjectorBounds WORLD = new ProjectorBounds(FeatureUtil.EPSG_4326, -180,
+            -90, 180, 90);
+
+    /**
+     * Transforms from EPSG:4326 to each CRS by srs. Finding a transform is
+     * expensive (and synchronizes on the CRS cache of {@link FeatureUtil}) so
+     * each is found once and then used for all points.
+     */
+    private static final Map<String, MathTransform> fromLatLonTransforms = new ConcurrentHashMap<String, MathTransform>();
+
+    /**
+     * Returns true if the two bounds may overlap. Bounds in the same CRS are
+     * compared in that CRS (EPSG:4326 bounds reaching beyond longitude
+     * &plusmn;180 are first widened to all longitudes). Otherwise the bounds
+     * are compared as conservative geographic (EPSG:4326) envelopes (see
+     * {@link #toLatLonBounds(ProjectorBounds)}). If either cannot be converted
+     * the bounds are assumed to overlap.
+     * 
+     * @param a
+     *            bounds
+     * @param b
+     *            bounds
+     * @return false only if the bounds definitely don't overlap
+     */
+    public static boolean intersects(ProjectorBounds a, ProjectorBounds b) {
+        if (sameSrs(a, b))
+            return overlapsInSrs(a, b);
+        else
+            return overlaps(toLatLonBounds(a), toLatLonBounds(b));
+    }
+
+    /**
+     * As {@link #intersects(ProjectorBounds, ProjectorBounds)} but with the
+     * geographic envelope of <code>b</code> already found, so that comparing
+     * many bounds with <code>b</code> converts <code>b</code> only once.
+     * 
+     * @param a
+     *            bounds
+     * @param b
+     *            bounds
+     * @param latLonB
+     *            the result of {@link #toLatLonBounds(ProjectorBounds)} for
+     *            <code>b</code>
+     * @return false only if the bounds definitely don't overlap
+     */
+    static boolean intersects(ProjectorBounds a, ProjectorBounds b, ProjectorBounds latLonB) {
+        if (sameSrs(a, b))
+            return overlapsInSrs(a, b);
+        else
+            return overlaps(toLatLonBounds(a), latLonB);
+    }
+
+    private static boolean sameSrs(ProjectorBounds a, ProjectorBounds b) {
+        return a.getSrs() != null && a.getSrs().equalsIgnoreCase(b.getSrs());
+    }
+
+    private static boolean overlapsInSrs(ProjectorBounds a, ProjectorBounds b) {
+        if (FeatureUtil.EPSG_4326.equalsIgnoreCase(a.getSrs()))
+            // no transform needed, only wrapping around the world
+            return overlaps(toLatLonBounds(a), toLatLonBounds(b));
+        else
+            return overlaps(a, b);
+    }
+
+    private static boolean overlaps(ProjectorBounds a, ProjectorBounds b) {
+        return a.getMinX() <= b.getMaxX() && b.getMinX() <= a.getMaxX()
+                && a.getMinY() <= b.getMaxY() && b.getMinY() <= a.getMaxY();
+    }
+
+    /**
+     * Returns a geographic (EPSG:4326, x is longitude) envelope containing the
+     * given bounds. Points are sampled densely along the edges of the bounds.
+     * The envelope is widened conservatively rather than risk being too
+     * small:
+     * <ul>
+     * <li>to all longitudes if the edges cross the antimeridian or reach
+     * beyond longitude &plusmn;180 (for example EPSG:3857 beyond
+     * &plusmn;20037508)</li>
+     * <li>to the pole and all longitudes if the bounds contain a pole</li>
+     * <li>to the whole world if a point cannot be converted to a finite
+     * position</li>
+     * </ul>
+     * 
+     * @param b
+     *            bounds in any supported CRS
+     * @return geographic bounds
+     */
+    public static ProjectorBounds toLatLonBounds(ProjectorBounds b) {
+        if (FeatureUtil.EPSG_4326.equalsIgnoreCase(b.getSrs())) {
+            if (b.getMinX() < -180 || b.getMaxX() > 180)
+                return new ProjectorBounds(FeatureUtil.EPSG_4326, -180, b.getMinY(), 180,
+                        b.getMaxY());
+            else
+                return b;
+        }
+        // x, y of each point
+        double[] points = new double[2 * 4 * EDGE_SAMPLES];
+        int n = 0;
+        // walk anticlockwise around the edges
+        for (int i = 0; i < EDGE_SAMPLES; i++)
+            n = sample(points, n, b, (double) i / EDGE_SAMPLES, 0);
+        for (int i = 0; i < EDGE_SAMPLES; i++)
+            n = sample(points, n, b, 1, (double) i / EDGE_SAMPLES);
+        for (int i = 0; i < EDGE_SAMPLES; i++)
+            n = sample(points, n, b, 1 - (double) i / EDGE_SAMPLES, 1);
+        for (int i = 0; i < EDGE_SAMPLES; i++)
+            n = sample(points, n, b, 0, 1 - (double) i / EDGE_SAMPLES);
+        boolean containsNorthPole;
+        boolean containsSouthPole;
+        try {
+            MathTransform fromLatLon = fromLatLonTransform(b.getSrs());
+            // transform all the points at once (to lon, lat)
+            fromLatLon.inverse().transform(points, 0, points, 0, points.length / 2);
+            containsNorthPole = contains(b, fromLatLon, 90);
+            containsSouthPole = contains(b, fromLatLon, -90);
+        } catch (FactoryException e) {
+            return WORLD;
+        } catch (TransformException e) {
+            return WORLD;
+        } catch (RuntimeException e) {
+            return WORLD;
+        }
+        List<Position> ring = new ArrayList<Position>(points.length / 2 + 1);
+        for (int i = 0; i < points.length; i += 2)
+            ring.add(new Position(points[i + 1], points[i]));
+        ring.add(ring.get(0));
+        return toLatLonBounds(ring, containsNorthPole, containsSouthPole);
+    }
+
+    private static MathTransform fromLatLonTransform(String srs) throws FactoryException {
+        MathTransform transform = fromLatLonTransforms.get(srs);
+        if (transform == null) {
+            transform = CRS.findMathTransform(FeatureUtil.getCrs(FeatureUtil.EPSG_4326),
+                    FeatureUtil.getCrs(srs));
+            fromLatLonTransforms.put(srs, transform);
+        }
+        return transform;
+    }
+
+    /**
+     * Returns the geographic envelope of a closed ring of positions sampled
+     * around bounds, widened as described in
+     * {@link #toLatLonBounds(ProjectorBounds)}.
+     * 
+     * @param ring
+     *            positions around the edges of the bounds, the last equal to
+     *            the first
+     * @param containsNorthPole
+     *            true if the bounds contain the north pole
+     * @param containsSouthPole
+     *            true if the bounds contain the south pole
+     * @return geographic bounds
+     */
+    static ProjectorBounds toLatLonBounds(List<Position> ring, boolean containsNorthPole,
+            boolean containsSouthPole) {
+        double minLat = containsSouthPole ? -90 : Double.MAX_VALUE;
+        double maxLat = containsNorthPole ? 90 : -Double.MAX_VALUE;
+        double minLon = Double.MAX_VALUE;
+        double maxLon = -Double.MAX_VALUE;
+        boolean allLongitudes = containsNorthPole || containsSouthPole;
+        Position previous = null;
+        for (Position p : ring) {
+            if (p == null || Double.isNaN(p.getLat()) || Double.isInfinite(p.getLat())
+                    || Double.isNaN(p.getLon()) || Double.isInfinite(p.getLon()))
+                return WORLD;
+            minLat = Math.min(minLat, p.getLat());
+            maxLat = Math.max(maxLat, p.getLat());
+            minLon = Math.min(minLon, p.getLon());
+            maxLon = Math.max(maxLon, p.getLon());
+            if (previous != null && Math.abs(p.getLon() - previous.getLon()) > 180)
+                // crossed the antimeridian
+                allLongitudes = true;
+            previous = p;
+        }
+        if (allLongitudes || minLon < -180 || maxLon > 180) {
+            minLon = -180;
+            maxLon = 180;
+        }
+        return new ProjectorBounds(FeatureUtil.EPSG_4326, minLon, Math.max(-90, minLat), maxLon,
+                Math.min(90, maxLat));
+    }
+
+    /**
+     * Writes the x, y of the point the given fractions across and up the
+     * bounds to <code>points</code> at index <code>n</code> and returns the
+     * index of the next point.
+     */
+    private static int sample(double[] points, int n, ProjectorBounds b, double fractionX,
+            double fractionY) {
+        points[n] = b.getMinX() + b.getSizeX() * fractionX;
+        points[n + 1] = b.getMinY() + b.getSizeY() * fractionY;
+        return n + 2;
+    }
+
+    /**
+     * Returns true if the bounds contain the pole at the given latitude. A
+     * pole that cannot be projected (for example in Mercator) is not
+     * contained.
+     */
+    private static boolean contains(ProjectorBounds b, MathTransform fromLatLon, double poleLat) {
+        double[] p = new double[] { 0, poleLat };
+        try {
+            fromLatLon.transform(p, 0, p, 0, 1);
+        } catch (TransformException e) {
+            return false;
+        } catch (RuntimeException e) {
+            return false;
+        }
+        return p[0] >= b.getMinX() && p[0] <= b.getMaxX() && p[1] >= b.getMinY()
+                && p[1] <= b.getMaxY();
+    }
+
     public static Rectangle toTargetRectangle(Projector projector) {
         ProjectorTarget t = projector.getTarget();
         return new Rectangle(0, 0, t.getWidth(), t.getHeight());
@@ -0,0 +1,57 @@
+package com.github.davidmoten.grumpy.wms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class CacheKeyTest {
+
+    @Test
+    public void testParameterCaseOrderAndVolatileParametersIgnored() {
+        Map<String, String> p1 = new HashMap<String, String>();
+        p1.put("foo", "bar");
+        p1.put("_OLSALT", "1");
+        p1.put("cacheImage", "true");
+        Map<String, String> p2 = new HashMap<String, String>();
+        p2.put("FOO", "bar");
+        p2.put("_OLSALT", "2");
+        assertEquals(request("-180,-90,0,90", p1).getCacheKey(),
+                request("-180.0,-90.00,0,9e1", p2).getCacheKey());
+    }
+
+    @Test
+    public void testDifferentBboxGivesDifferentKey() {
+        Map<String, String> p = new HashMap<String, String>();
+        assertNotEquals(request("-180,-90,0,90", p).getCacheKey(),
+                request("-180,-90,0,89", p).getCacheKey());
+    }
+
+    @Test
+    public void testVendorParameterValueChangesKey() {
+        Map<String, String> p1 = new HashMap<String, String>();
+        p1.put("foo", "bar");
+        Map<String, String> p2 = new HashMap<String, String>();
+        p2.put("foo", "baz");
+        assertNotEquals(request("-180,-90,0,90", p1).getCacheKey(),
+                request("-180,-90,0,90", p2).getCacheKey());
+    }
+
+    @Test
+    public void testLayerKeyIndependentOfOtherLayersAndFormat() {
+        Map<String, String> p = new HashMap<String, String>();
+        WmsRequest r1 = request("-180,-90,0,90", p);
+        WmsRequest r2 = new WmsRequest("Darkness", null, "", "EPSG:4326", null, "-180,-90,0,90",
+                "image/jpeg", "256", "256", "true", null, "1.1.1", null, p, null);
+        assertEquals(CacheKey.forLayer(r1, 1), CacheKey.forLayer(r2, 0));
+        assertNotEquals(CacheKey.forLayer(r1, 0), CacheKey.forLayer(r2, 0));
+    }
+
+    private static WmsRequest request(String bbox, Map<String, String> parameters) {
+        return new WmsRequest("Custom,Darkness", null, "", "EPSG:4326", null, bbox, "image/png",
+                "256", "256", "true", null, "1.1.1", null, parameters, null);
+    }
+}
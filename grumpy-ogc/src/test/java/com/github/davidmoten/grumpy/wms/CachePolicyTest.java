@@ -0,0 +1,71 @@
+package com.github.davidmoten.grumpy.wms;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+
+import org.junit.Test;
+
+public class CachePolicyTest {
+
+    @Test
+    public void testPolicyWithoutLimitsAdmitsEverything() {
+        CachePolicy policy = CachePolicy.builder().build();
+        assertFalse(policy.usesScale());
+        assertTrue(policy.admits(request("EPSG:4326", "-180,-90,180,90", 4096)));
+    }
+
+    @Test
+    public void testMaxSize() {
+        CachePolicy policy = CachePolicy.builder().maxSize(256, 512).build();
+        assertTrue(policy.admits(request("EPSG:4326", "0,0,1,1", 256)));
+        assertFalse(policy.admits(request("EPSG:4326", "0,0,1,1", 257)));
+    }
+
+    @Test
+    public void testSrsComparedIgnoringCase() {
+        CachePolicy policy = CachePolicy.builder().srs("epsg:4326").build();
+        assertTrue(policy.admits(request("EPSG:4326", "0,0,1,1", 256)));
+        assertFalse(policy.admits(request("EPSG:3857", "0,0,1,1", 256)));
+    }
+
+    @Test
+    public void testScaleRange() {
+        CachePolicy policy = CachePolicy.builder().scaleRange(1000000, 10000000).build();
+        assertTrue(policy.usesScale());
+        // about 1:1,500,000
+        assertTrue(policy.admits(request("EPSG:4326", "0,0,1,1", 256)));
+        // about 1:500,000,000
+        assertFalse(policy.admits(request("EPSG:4326", "-180,-90,180,90", 256)));
+    }
+
+    @Test
+    public void testPrecalculatedScale() {
+        CachePolicy policy = CachePolicy.builder().scaleRange(1000, 2000).build();
+        WmsRequest request = request("EPSG:4326", "0,0,1,1", 256);
+        assertTrue(policy.admits(request, 1500));
+        assertTrue(policy.admits(request, 1000));
+        assertTrue(policy.admits(request, 2000));
+        assertFalse(policy.admits(request, 2001));
+        // unknown scale is not admitted
+        assertFalse(policy.admits(request, Double.NaN));
+        // ignored without a scale range
+        assertTrue(CachePolicy.builder().build().admits(request, Double.NaN));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvertedScaleRangeRejected() {
+        CachePolicy.builder().scaleRange(2000, 1000);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonPositiveSizeRejected() {
+        CachePolicy.builder().maxSize(0, 256);
+    }
+
+    private static WmsRequest request(String srs, String bbox, int width) {
+        return new WmsRequest("A", null, "", srs, null, bbox, "image/png", String.valueOf(width),
+                "256", "true", null, "1.1.1", null, new HashMap<String, String>(), null);
+    }
+}
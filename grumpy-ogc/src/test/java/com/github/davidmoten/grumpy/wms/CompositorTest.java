@@ -0,0 +1,63 @@
+package com.github.davidmoten.grumpy.wms;
+
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class CompositorTest {
+
+    @Test
+    public void testMatchesGraphicsDrawImageForTranslucentSource() {
+        checkMatchesGraphics(BufferedImage.TYPE_INT_ARGB);
+    }
+
+    @Test
+    public void testMatchesGraphicsDrawImageForOpaqueSource() {
+        checkMatchesGraphics(BufferedImage.TYPE_INT_RGB);
+    }
+
+    private static void checkMatchesGraphics(int sourceType) {
+        Random random = new Random(1);
+        BufferedImage dst = randomImage(200, 150, BufferedImage.TYPE_INT_ARGB, random);
+        BufferedImage src = randomImage(200, 100, sourceType, random);
+        BufferedImage expected = copy(dst);
+        Graphics2D g = expected.createGraphics();
+        g.drawImage(src, 0, 30, null);
+        g.dispose();
+        Compositor.drawOver(dst, src, 30);
+        for (int y = 0; y < dst.getHeight(); y++)
+            for (int x = 0; x < dst.getWidth(); x++) {
+                int e = expected.getRGB(x, y);
+                int a = dst.getRGB(x, y);
+                assertTrue(Math.abs((e >>> 24) - (a >>> 24)) <= 1);
+                // colours of nearly transparent pixels are imprecise
+                if ((e >>> 24) > 64)
+                    for (int shift = 0; shift < 24; shift += 8)
+                        assertTrue(Math.abs(((e >> shift) & 0xff) - ((a >> shift) & 0xff)) <= 2);
+            }
+    }
+
+    private static BufferedImage randomImage(int width, int height, int type, Random random) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++) {
+                // mostly fully transparent or opaque pixels like map layers
+                int kind = random.nextInt(4);
+                int alpha = kind == 0 ? 0 : kind == 1 ? 255 : random.nextInt(256);
+                image.setRGB(x, y, (alpha << 24) | (random.nextInt() & 0xffffff));
+            }
+        return image;
+    }
+
+    private static BufferedImage copy(BufferedImage image) {
+        BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(),
+                image.getType());
+        copy.setData(image.getData());
+        return copy;
+    }
+
+}
@@ -0,0 +1,135 @@
+package com.github.davidmoten.grumpy.wms;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DiskImageStoreTest {
+
+    private static final int SEGMENT_BYTES = DiskImageStore.MIN_SEGMENT_BYTES;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testPutGetAndReopen() throws IOException {
+        File directory = folder.newFolder();
+        DiskImageStore store = DiskImageStore.open(directory, 4 * SEGMENT_BYTES, SEGMENT_BYTES);
+        store.put(key(1), CachedImage.onHeap(bytes(1, 100), 123));
+        CachedImage image = store.get(key(1));
+        assertArrayEquals(bytes(1, 100), image.toByteArray());
+        assertEquals(123, image.createdTime());
+        assertNull(store.get(key(2)));
+        store.close();
+
+        store = DiskImageStore.open(directory, 4 * SEGMENT_BYTES, SEGMENT_BYTES);
+        assertArrayEquals(bytes(1, 100), store.get(key(1)).toByteArray());
+        assertEquals(Collections.singletonList(key(1)), store.keys("Custom"));
+        store.close();
+    }
+
+    @Test
+    public void testRemoveSurvivesReopen() throws IOException {
+        File directory = folder.newFolder();
+        DiskImageStore store = DiskImageStore.open(directory, 4 * SEGMENT_BYTES, SEGMENT_BYTES);
+        store.put(key(1), CachedImage.onHeap(bytes(1, 100), 1));
+        store.put(key(2), CachedImage.onHeap(bytes(2, 100), 1));
+        store.remove(key(1));
+        assertNull(store.get(key(1)));
+        store.close();
+
+        store = DiskImageStore.open(directory, 4 * SEGMENT_BYTES, SEGMENT_BYTES);
+        assertNull(store.get(key(1)));
+        assertNotNull(store.get(key(2)));
+        assertEquals(Collections.singletonList(key(2)), store.keys("Custom"));
+        store.close();
+    }
+
+    @Test
+    public void testSegmentIdsNotReusedAfterClear() throws IOException {
+        File directory = folder.newFolder();
+        DiskImageStore store = DiskImageStore.open(directory, 4 * SEGMENT_BYTES, SEGMENT_BYTES);
+        store.put(key(1), CachedImage.onHeap(bytes(1, 100), 1));
+        List<Integer> before = segmentIds(directory);
+        store.clear();
+        assertNull(store.get(key(1)));
+        store.put(key(2), CachedImage.onHeap(bytes(2, 100), 1));
+        List<Integer> after = segmentIds(directory);
+        assertEquals(1, after.size());
+        assertTrue(after.get(0) > before.get(before.size() - 1));
+        assertNull(store.get(key(1)));
+        assertArrayEquals(bytes(2, 100), store.get(key(2)).toByteArray());
+        store.close();
+    }
+
+    @Test
+    public void testOldestSegmentDroppedWhenFull() throws IOException {
+        File directory = folder.newFolder();
+        DiskImageStore store = DiskImageStore.open(directory, 2 * SEGMENT_BYTES, SEGMENT_BYTES);
+        // each image fills most of a segment so every put rolls
+        int size = SEGMENT_BYTES * 3 / 4;
+        for (int i = 1; i <= 3; i++)
+            store.put(key(i), CachedImage.onHeap(bytes(i, size), 1));
+        assertEquals(2, segmentIds(directory).size());
+        assertNull(store.get(key(1)));
+        assertArrayEquals(bytes(2, size), store.get(key(2)).toByteArray());
+        assertArrayEquals(bytes(3, size), store.get(key(3)).toByteArray());
+        store.close();
+    }
+
+    @Test
+    public void testSegmentSizeReducedToHalfOfMaximum() throws IOException {
+        File directory = folder.newFolder();
+        DiskImageStore store = DiskImageStore.open(directory, 2 * SEGMENT_BYTES,
+                DiskImageStore.DEFAULT_SEGMENT_BYTES);
+        store.put(key(1), CachedImage.onHeap(bytes(1, 100), 1));
+        store.close();
+        File[] files = directory.listFiles();
+        assertEquals(1, files.length);
+        assertEquals(SEGMENT_BYTES, files[0].length());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMaximumSmallerThanTwoSegmentsRejected() throws IOException {
+        DiskImageStore.open(folder.newFolder(), 2 * SEGMENT_BYTES - 1, SEGMENT_BYTES);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSegmentSizeTooSmallRejected() throws IOException {
+        DiskImageStore.open(folder.newFolder(), 4 * SEGMENT_BYTES, SEGMENT_BYTES - 1);
+    }
+
+    private static List<Integer> segmentIds(File directory) {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (String name : directory.list())
+            ids.add(Integer.parseInt(name.replaceAll("\\D", "")));
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private static byte[] bytes(int seed, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+            bytes[i] = (byte) (seed + i);
+        return bytes;
+    }
+
+    private static CacheKey key(int i) {
+        return new WmsRequest("Custom", null, "", "EPSG:4326", null, "-180,-90," + i + ",90",
+                "image/png", "256", "256", "true", null, "1.1.1", null,
+                new HashMap<String, String>(), null).getCacheKey();
+    }
+}
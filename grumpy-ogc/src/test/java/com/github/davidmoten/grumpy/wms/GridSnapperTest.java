@@ -0,0 +1,48 @@
+package com.github.davidmoten.grumpy.wms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import com.github.davidmoten.grumpy.projection.ProjectorBounds;
+
+public class GridSnapperTest {
+
+    private final GridSnapper snapper = new GridSnapper(TileGrid.epsg4326(), 0.5);
+
+    @Test
+    public void testBoundsNearTileSnappedToTile() {
+        WmsRequest snapped = snapper.snap(ImageCacheTest.request("A",
+                "0.01,-0.01,45.01,44.99"));
+        ProjectorBounds b = snapped.getBounds();
+        assertEquals(0, b.getMinX(), 0);
+        assertEquals(0, b.getMinY(), 0);
+        assertEquals(45, b.getMaxX(), 0);
+        assertEquals(45, b.getMaxY(), 0);
+        assertEquals("EPSG:4326", b.getSrs());
+        assertEquals(256, snapped.getWidth());
+        assertEquals(256, snapped.getHeight());
+        // requests differing by noise share a cache key
+        assertEquals(ImageCacheTest.request("A", "0,0,45,45").getCacheKey(),
+                snapped.getCacheKey());
+    }
+
+    @Test
+    public void testBoundsNotNearTileUnchanged() {
+        WmsRequest request = ImageCacheTest.request("A", "0.5,0,45.5,45");
+        assertSame(request, snapper.snap(request));
+    }
+
+    @Test
+    public void testRequestNotOfTileSizeUnchanged() {
+        WmsRequest request = ImageCacheTest.request("A", "0.01,0,45.01,45").modifySize(512,
+                512);
+        assertSame(request, snapper.snap(request));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeToleranceRejected() {
+        new GridSnapper(TileGrid.epsg4326(), -1);
+    }
+}
@@ -0,0 +1,209 @@
+package com.github.davidmoten.grumpy.wms;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.davidmoten.grumpy.projection.ProjectorBounds;
+
+public class ImageCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSnapshotWrittenOnCloseAndLoadedOnBuild() throws IOException {
+        File snapshot = new File(folder.getRoot(), "snapshot");
+        ImageCache cache = ImageCache.builder().snapshot(snapshot).build().add("A");
+        cache.put(request("A", "0,0,10,10"), new byte[] { 1, 2, 3 });
+        cache.put(request("A", "10,0,20,10"), new byte[] { 4, 5 });
+        cache.close();
+        // a second close doesn't write the snapshot again
+        cache.close();
+
+        ImageCache loaded = ImageCache.builder().snapshot(snapshot).build().add("A");
+        assertArrayEquals(new byte[] { 1, 2, 3 }, loaded.get(request("A", "0,0,10,10")));
+        assertArrayEquals(new byte[] { 4, 5 }, loaded.get(request("A", "10,0,20,10")));
+        assertNull(loaded.get(request("A", "20,0,30,10")));
+        // deleted once loaded
+        assertFalse(snapshot.exists());
+        loaded.close();
+    }
+
+    @Test
+    public void testImageWrittenToSharedTierReadByOtherCache() throws Exception {
+        File shared = folder.newFolder();
+        ImageCache a = ImageCache.builder().sharedTier(shared).build().add("A");
+        ImageCache b = ImageCache.builder().sharedTier(shared).build().add("A");
+        a.put(request("A", "0,0,10,10"), new byte[] { 1, 2, 3 });
+        // written in the background so finish the writes
+        a.close();
+        assertArrayEquals(new byte[] { 1, 2, 3 }, b.get(request("A", "0,0,10,10")));
+        b.close();
+    }
+
+    @Test
+    public void testClearLayerInRegion() {
+        ImageCache cache = new ImageCache().add("A").add("B");
+        cache.put(request("A", "0,0,10,10"), new byte[] { 1 });
+        cache.put(request("A", "20,0,30,10"), new byte[] { 2 });
+        cache.put(request("A,B", "0,0,10,10"), new byte[] { 3 });
+        cache.put(request("B", "0,0,10,10"), new byte[] { 4 });
+        cache.clear("A", new ProjectorBounds("EPSG:4326", 5, 5, 6, 6));
+        assertNull(cache.get(request("A", "0,0,10,10")));
+        assertNull(cache.get(request("A,B", "0,0,10,10")));
+        assertArrayEquals(new byte[] { 2 }, cache.get(request("A", "20,0,30,10")));
+        assertArrayEquals(new byte[] { 4 }, cache.get(request("B", "0,0,10,10")));
+    }
+
+    @Test
+    public void testClearLayerEverywhere() {
+        ImageCache cache = new ImageCache().add("A").add("B");
+        cache.put(request("A", "0,0,10,10"), new byte[] { 1 });
+        cache.put(request("A", "20,0,30,10"), new byte[] { 2 });
+        cache.put(request("B", "0,0,10,10"), new byte[] { 3 });
+        cache.clear("A", null);
+        assertNull(cache.get(request("A", "0,0,10,10")));
+        assertNull(cache.get(request("A", "20,0,30,10")));
+        assertArrayEquals(new byte[] { 3 }, cache.get(request("B", "0,0,10,10")));
+    }
+
+    @Test
+    public void testImageWithinTimeToLiveIsFreshHit() {
+        TestClock clock = new TestClock();
+        ImageCache cache = new ImageCache().add("A").clock(clock).timeToLive("A", 10,
+                TimeUnit.SECONDS);
+        WmsRequest request = request("A", "0,0,10,10");
+        cache.put(request, new byte[] { 1 });
+        clock.advance(9999);
+        CachedImage image = cache.getImage(request);
+        assertArrayEquals(new byte[] { 1 }, image.toByteArray());
+        assertFalse(cache.isExpired(request, image));
+        image.release();
+        assertEquals(1, cache.stats().hitCount());
+    }
+
+    @Test
+    public void testImageOfLayerWithoutTimeToLiveNeverExpires() {
+        TestClock clock = new TestClock();
+        ImageCache cache = new ImageCache().add("A").add("B").clock(clock)
+                .timeToLive("A", 10, TimeUnit.SECONDS).staleWhileRevalidate(false);
+        WmsRequest request = request("B", "0,0,10,10");
+        cache.put(request, new byte[] { 1 });
+        clock.advance(TimeUnit.DAYS.toMillis(365));
+        assertArrayEquals(new byte[] { 1 }, cache.get(request));
+    }
+
+    @Test
+    public void testExpiredImageServedWithinStaleTime() {
+        TestClock clock = new TestClock();
+        ImageCache cache = new ImageCache().add("A").clock(clock)
+                .timeToLive("A", 10, TimeUnit.SECONDS).staleWhileRevalidate(5, TimeUnit.SECONDS);
+        WmsRequest request = request("A", "0,0,10,10");
+        cache.put(request, new byte[] { 1 });
+        clock.advance(14999);
+        CachedImage image = cache.getImage(request);
+        assertArrayEquals(new byte[] { 1 }, image.toByteArray());
+        // so that the caller refreshes it
+        assertTrue(cache.isExpired(request, image));
+        image.release();
+        assertEquals(1, cache.stats().hitCount());
+    }
+
+    @Test
+    public void testExpiredImagePastStaleTimeIsMiss() {
+        TestClock clock = new TestClock();
+        ImageCache cache = new ImageCache().add("A").clock(clock)
+                .timeToLive("A", 10, TimeUnit.SECONDS).staleWhileRevalidate(5, TimeUnit.SECONDS);
+        WmsRequest request = request("A", "0,0,10,10");
+        cache.put(request, new byte[] { 1 });
+        clock.advance(15000);
+        assertNull(cache.getImage(request));
+        assertEquals(1, cache.stats().missCount());
+        // and removed
+        assertEquals(0, cache.stats().entries());
+    }
+
+    @Test
+    public void testExpiredImageIsMissWithoutStaleWhileRevalidate() {
+        TestClock clock = new TestClock();
+        ImageCache cache = new ImageCache().add("A").clock(clock)
+                .timeToLive("A", 10, TimeUnit.SECONDS).staleWhileRevalidate(false);
+        WmsRequest request = request("A", "0,0,10,10");
+        cache.put(request, new byte[] { 1 });
+        clock.advance(9999);
+        assertArrayEquals(new byte[] { 1 }, cache.get(request));
+        clock.advance(1);
+        assertNull(cache.get(request));
+    }
+
+    @Test
+    public void testExpiredImageServedUntilReplacedByDefault() {
+        TestClock clock = new TestClock();
+        ImageCache cache = new ImageCache().add("A").clock(clock).timeToLive("A", 10,
+                TimeUnit.SECONDS);
+        WmsRequest request = request("A", "0,0,10,10");
+        cache.put(request, new byte[] { 1 });
+        clock.advance(TimeUnit.DAYS.toMillis(1));
+        assertArrayEquals(new byte[] { 1 }, cache.get(request));
+        // a refresh puts the new image which is fresh again
+        cache.put(request, new byte[] { 2 });
+        CachedImage image = cache.getImage(request);
+        assertArrayEquals(new byte[] { 2 }, image.toByteArray());
+        assertFalse(cache.isExpired(request, image));
+        image.release();
+    }
+
+    static WmsRequest request(String layers, String bbox) {
+        return new WmsRequest(layers, null, "", "EPSG:4326", null, bbox, "image/png", "256",
+                "256", "true", null, "1.1.1", null, new HashMap<String, String>(), null);
+    }
+
+    /**
+     * Clock that only moves when advanced.
+     */
+    static final class TestClock extends Clock {
+
+        private final AtomicLong millis = new AtomicLong(1000000);
+
+        void advance(long ms) {
+            millis.addAndGet(ms);
+        }
+
+        @Override
+        public long millis() {
+            return millis.get();
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(millis());
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
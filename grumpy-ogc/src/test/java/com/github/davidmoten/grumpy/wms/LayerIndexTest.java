@@ -0,0 +1,72 @@
+package com.github.davidmoten.grumpy.wms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+public class LayerIndexTest {
+
+    @Test
+    public void testKeysIndexedByEachLayer() {
+        LayerIndex index = new LayerIndex();
+        CacheKey a = key("A", "0,0,10,10");
+        CacheKey ab = key("A,B", "0,0,10,10");
+        index.add(a);
+        index.add(ab);
+        assertEquals(new HashSet<CacheKey>(Arrays.asList(a, ab)),
+                new HashSet<CacheKey>(index.keys("A")));
+        assertEquals(Collections.singletonList(ab), index.keys("B"));
+        assertTrue(index.keys("C").isEmpty());
+    }
+
+    @Test
+    public void testKeysIsSnapshot() {
+        LayerIndex index = new LayerIndex();
+        CacheKey a = key("A", "0,0,10,10");
+        index.add(a);
+        List<CacheKey> keys = index.keys("A");
+        index.remove(a);
+        assertEquals(Collections.singletonList(a), keys);
+    }
+
+    @Test
+    public void testLayerRemovedWithItsLastKey() {
+        LayerIndex index = new LayerIndex();
+        CacheKey a1 = key("A", "0,0,10,10");
+        CacheKey a2 = key("A", "10,0,20,10");
+        CacheKey ab = key("A,B", "0,0,10,10");
+        index.add(a1);
+        index.add(a2);
+        index.add(ab);
+        assertEquals(2, index.layerCount());
+        index.remove(ab);
+        assertEquals(1, index.layerCount());
+        assertTrue(index.keys("B").isEmpty());
+        index.remove(a1);
+        index.remove(a2);
+        assertEquals(0, index.layerCount());
+        assertTrue(index.keys("A").isEmpty());
+        // removing a key not in the index is harmless
+        index.remove(a1);
+        assertEquals(0, index.layerCount());
+    }
+
+    @Test
+    public void testClear() {
+        LayerIndex index = new LayerIndex();
+        index.add(key("A,B", "0,0,10,10"));
+        index.clear();
+        assertEquals(0, index.layerCount());
+        assertTrue(index.keys("A").isEmpty());
+    }
+
+    private static CacheKey key(String layers, String bbox) {
+        return ImageCacheTest.request(layers, bbox).getCacheKey();
+    }
+}
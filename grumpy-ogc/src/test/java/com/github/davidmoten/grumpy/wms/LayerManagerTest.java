@@ -0,0 +1,390 @@
+package com.github.davidmoten.grumpy.wms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.github.davidmoten.grumpy.projection.ProjectorBounds;
+
+public class LayerManagerTest {
+
+    @Test
+    public void testLayerOutsideExtentNotVisible() {
+        Map<String, Layer> layers = new HashMap<String, Layer>();
+        layers.put("A", layer(LayerFeatures.builder().name("A").extent(100, -10, 110, 10)));
+        layers.put("B", layer(LayerFeatures.builder().name("B")));
+        LayerManager manager = new LayerManager(layers(layers));
+        try {
+            assertEquals(Arrays.asList(1), manager.visibleLayers(request("A,B", "-180,-90,0,90")));
+            assertEquals(Arrays.asList(0, 1),
+                    manager.visibleLayers(request("A,B", "90,-20,120,20")));
+        } finally {
+            manager.close();
+        }
+    }
+
+    @Test
+    public void testLayerVisibleInRequestBeyondAntimeridian() {
+        Map<String, Layer> layers = new HashMap<String, Layer>();
+        layers.put("A", layer(LayerFeatures.builder().name("A").extent(-180, -10, -170, 10)));
+        LayerManager manager = new LayerManager(layers(layers));
+        try {
+            assertEquals(Arrays.asList(0), manager.visibleLayers(request("A", "170,-10,200,10")));
+        } finally {
+            manager.close();
+        }
+    }
+
+    @Test
+    public void testLayerOutsideScaleRangeNotVisible() {
+        Map<String, Layer> layers = new HashMap<String, Layer>();
+        layers.put("A", layer(LayerFeatures.builder().name("A").scaleRange(1000000, 10000000)));
+        LayerManager manager = new LayerManager(layers(layers));
+        try {
+            // about 1:1,500,000
+            assertEquals(Arrays.asList(0), manager.visibleLayers(request("A", "0,0,1,1")));
+            // about 1:500,000,000
+            assertEquals(Collections.<Integer> emptyList(),
+                    manager.visibleLayers(request("A", "-180,-90,180,90")));
+        } finally {
+            manager.close();
+        }
+    }
+
+    @Test
+    public void testLayersUnderOpaqueLayerNotVisible() {
+        Map<String, Layer> layers = new HashMap<String, Layer>();
+        layers.put("A", layer(LayerFeatures.builder().name("A")));
+        layers.put("B", layer(LayerFeatures.builder().name("B").opaque()));
+        layers.put("C", layer(LayerFeatures.builder().name("C")));
+        // opaque only within its extent so hides nothing
+        layers.put("D", layer(LayerFeatures.builder().name("D").opaque().extent(-10, -10, 10, 10)));
+        LayerManager manager = new LayerManager(layers(layers));
+        try {
+            assertEquals(Arrays.asList(1, 2),
+                    manager.visibleLayers(request("A,B,C", "-180,-90,180,90")));
+            assertEquals(Arrays.asList(0, 1, 2),
+                    manager.visibleLayers(request("A,D,C", "-180,-90,180,90")));
+        } finally {
+            manager.close();
+        }
+    }
+
+    @Test
+    public void testRenderWithFailingLayerIsIncomplete() throws RenderRejectedException {
+        Map<String, Layer> layers = new HashMap<String, Layer>();
+        layers.put("A", layer(LayerFeatures.builder().name("A")));
+        layers.put("B", failing(LayerFeatures.builder().name("B")));
+        LayerManager manager = new LayerManager(layers(layers));
+        try {
+            LayerManager.Rendered rendered = manager.render(request("A", "-180,-90,180,90"),
+                    false, RenderPriority.INTERACTIVE);
+            assertTrue(rendered.complete);
+            manager.release(rendered.image);
+            rendered = manager.render(request("A,B", "-180,-90,180,90"), false,
+                    RenderPriority.INTERACTIVE);
+            // served with the error drawn on it but must not be cached
+            assertFalse(rendered.complete);
+            assertEquals(256, rendered.image.getWidth());
+            manager.release(rendered.image);
+        } finally {
+            manager.close();
+        }
+    }
+
+    @Test
+    public void testLayerRastersSharedWithCacheNotPooled() throws RenderRejectedException {
+        Map<String, Layer> layers = new HashMap<String, Layer>();
+        layers.put("A", layer(LayerFeatures.builder().name("A")));
+        ImageCache cache = ImageCache.builder().layerRasterCache(1024 * 1024).build().add("A");
+        LayerManager manager = new LayerManager(layers(layers), cache);
+        try {
+            WmsRequest request = request("A", "-180,-90,180,90");
+            LayerManager.Rendered rendered = manager.render(request, true,
+                    RenderPriority.INTERACTIVE);
+            manager.release(rendered.image);
+            // only the composite, the layer raster is held by the cache
+            assertEquals(1, manager.rasterPool().size());
+            BufferedImage raster = cache.getLayerRaster(request, 0);
+            assertNotNull(raster);
+            assertNotSame(raster, manager.rasterPool().acquire(256, 256));
+        } finally {
+            manager.close();
+        }
+    }
+
+    @Test
+    public void testLayerRastersPooledWhenNotCached() throws RenderRejectedException {
+        Map<String, Layer> layers = new HashMap<String, Layer>();
+        layers.put("A", layer(LayerFeatures.builder().name("A")));
+        LayerManager manager = new LayerManager(layers(layers));
+        try {
+            LayerManager.Rendered rendered = manager.render(request("A", "-180,-90,180,90"),
+                    false, RenderPriority.INTERACTIVE);
+            assertEquals(1, manager.rasterPool().size());
+            manager.release(rendered.image);
+            assertEquals(2, manager.rasterPool().size());
+        } finally {
+            manager.close();
+        }
+    }
+
+    @Test
+    public void testRasterOfTimedOutLayerNotPooled() throws Exception {
+        final CountDownLatch finished = new CountDownLatch(1);
+        Map<String, Layer> layers = new HashMap<String, Layer>();
+        layers.put("A", blocking(LayerFeatures.builder().name("A"), finished));
+        LayerManager manager = new LayerManager(layers(layers), null,
+                LayerManager.DEFAULT_RASTER_POOL_BYTES, RenderScheduler.create(1, 10, false,
+                        Collections.<String, Integer> emptyMap()), 100, 1, 0);
+        try {
+            LayerManager.Rendered rendered = manager.render(request("A", "-180,-90,180,90"),
+                    false, RenderPriority.INTERACTIVE);
+            assertFalse(rendered.complete);
+            manager.release(rendered.image);
+            // the worker is interrupted when it times out
+            assertTrue(finished.await(5, TimeUnit.SECONDS));
+            // the worker may still have been painting so only the composite
+            // is pooled
+            assertEquals(1, manager.rasterPool().size());
+        } finally {
+            manager.close();
+        }
+    }
+
+    @Test
+    public void testStripsTileRequestExactly() {
+        LayerManager manager = new LayerManager(layers(new HashMap<String, Layer>()), null,
+                LayerManager.DEFAULT_RASTER_POOL_BYTES, RenderScheduler.create(1, 10, false,
+                        Collections.<String, Integer> emptyMap()), 0, 3, 0);
+        try {
+            WmsRequest request = request("A", "-180,-90,180,90", 100, 1000);
+            List<WmsRequest> strips = manager.strips(request);
+            assertEquals(3, strips.size());
+            assertTilesExactly(request, strips);
+            assertEquals(333, strips.get(0).getHeight());
+            assertEquals(333, strips.get(1).getHeight());
+            assertEquals(334, strips.get(2).getHeight());
+        } finally {
+            manager.close();
+        }
+    }
+
+    @Test
+    public void testSmallRequestNotSplitIntoStrips() {
+        LayerManager manager = new LayerManager(layers(new HashMap<String, Layer>()), null,
+                LayerManager.DEFAULT_RASTER_POOL_BYTES, RenderScheduler.create(1, 10, false,
+                        Collections.<String, Integer> emptyMap()), 0, 4, 100000);
+        try {
+            // too few pixels
+            WmsRequest request = request("A", "-180,-90,180,90", 100, 900);
+            assertEquals(Collections.singletonList(request), manager.strips(request));
+            // strips would be lower than the minimum height
+            request = request("A", "-180,-90,180,90", 10000, 100);
+            assertEquals(Collections.singletonList(request), manager.strips(request));
+            // limited to two strips of at least the minimum height
+            request = request("A", "-180,-90,180,90", 10000, 150);
+            assertTilesExactly(request, manager.strips(request));
+            assertEquals(2, manager.strips(request).size());
+        } finally {
+            manager.close();
+        }
+    }
+
+    @Test
+    public void testBandsTileRequestExactly() {
+        WmsRequest request = request("A", "-10.5,-3.3,7.1,80.9", 100, 1001);
+        List<WmsRequest> bands = LayerManager.bands(request, 256);
+        assertEquals(4, bands.size());
+        assertTilesExactly(request, bands);
+        for (WmsRequest band : bands)
+            assertTrue(band.getHeight() <= 256);
+        // exactly divisible
+        request = request("A", "-10.5,-3.3,7.1,80.9", 100, 1024);
+        bands = LayerManager.bands(request, 256);
+        assertEquals(4, bands.size());
+        assertTilesExactly(request, bands);
+        for (WmsRequest band : bands)
+            assertEquals(256, band.getHeight());
+        // a single band is the request
+        assertEquals(Collections.singletonList(request), LayerManager.bands(request, 1024));
+    }
+
+    @Test
+    public void testBandsOfOnePixel() {
+        WmsRequest request = request("A", "0,0,1,1", 10, 7);
+        List<WmsRequest> bands = LayerManager.bands(request, 1);
+        assertEquals(7, bands.size());
+        assertTilesExactly(request, bands);
+    }
+
+    /**
+     * Asserts that the parts cover the request from top to bottom with no gap
+     * or overlap in either pixels or bounds.
+     */
+    private static void assertTilesExactly(WmsRequest request, List<WmsRequest> parts) {
+        ProjectorBounds b = request.getBounds();
+        double unitsPerPixel = b.getSizeY() / request.getHeight();
+        int rows = 0;
+        double top = b.getMaxY();
+        for (WmsRequest part : parts) {
+            ProjectorBounds p = part.getBounds();
+            assertEquals(request.getWidth(), part.getWidth());
+            assertTrue(part.getHeight() > 0);
+            assertEquals(b.getSrs(), p.getSrs());
+            assertEquals(b.getMinX(), p.getMinX(), 0);
+            assertEquals(b.getMaxX(), p.getMaxX(), 0);
+            // adjacent parts share exactly the same edge
+            assertEquals(top, p.getMaxY(), 0);
+            // bounds in proportion to height
+            assertEquals(part.getHeight() * unitsPerPixel, p.getSizeY(), 0.000001);
+            rows += part.getHeight();
+            top = p.getMinY();
+        }
+        assertEquals(request.getHeight(), rows);
+        assertEquals(b.getMinY(), top, 0);
+    }
+
+    private static WmsRequest request(String layers, String bbox, int width, int height) {
+        return request(layers, bbox).modifySize(width, height);
+    }
+
+    private static WmsRequest request(String layers, String bbox) {
+        return new WmsRequest(layers, null, "", "EPSG:4326", null, bbox, "image/png", "256",
+                "256", "true", null, "1.1.1", null, new HashMap<String, String>(), null);
+    }
+
+    private static Layers layers(final Map<String, Layer> layers) {
+        return new Layers() {
+            @Override
+            public Layer getLayer(String layerName) {
+                return layers.get(layerName);
+            }
+        };
+    }
+
+    static Layer blocking(LayerFeatures.Builder features, final CountDownLatch finished) {
+        final LayerFeatures f = features.build();
+        return new Layer() {
+
+            @Override
+            public LayerFeatures getFeatures() {
+                return f;
+            }
+
+            @Override
+            public void render(Graphics2D g, WmsRequest request) {
+                try {
+                    Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+                } catch (InterruptedException e) {
+                    // timed out
+                } finally {
+                    finished.countDown();
+                }
+            }
+
+            @Override
+            public String getInfo(Date time, WmsRequest request, Point point, String mimeType) {
+                return "";
+            }
+        };
+    }
+
+    static Layer failing(LayerFeatures.Builder features) {
+        final LayerFeatures f = features.build();
+        return new Layer() {
+
+            @Override
+            public LayerFeatures getFeatures() {
+                return f;
+            }
+
+            @Override
+            public void render(Graphics2D g, WmsRequest request) {
+                throw new IllegalStateException("boom");
+            }
+
+            @Override
+            public String getInfo(Date time, WmsRequest request, Point point, String mimeType) {
+                return "";
+            }
+        };
+    }
+
+    static Layer layer(LayerFeatures.Builder features) {
+        final LayerFeatures f = features.build();
+        return new Layer() {
+
+            @Override
+            public LayerFeatures getFeatures() {
+                return f;
+            }
+
+            @Override
+            public void render(Graphics2D g, WmsRequest request) {
+                // nothing to draw
+            }
+
+            @Override
+            public String getInfo(Date time, WmsRequest request, Point point, String mimeType) {
+                return "";
+            }
+        };
+    }
+
+    /**
+     * Returns a layer that fills the given geographic rectangle with the
+     * colour and records the requests it renders. Requests must be in
+     * EPSG:4326.
+     */
+    static Layer painting(LayerFeatures.Builder features, final Color color,
+            final double minLon, final double minLat, final double maxLon,
+            final double maxLat, final List<WmsRequest> renders) {
+        final LayerFeatures f = features.build();
+        return new Layer() {
+
+            @Override
+            public LayerFeatures getFeatures() {
+                return f;
+            }
+
+            @Override
+            public void render(Graphics2D g, WmsRequest request) {
+                renders.add(request);
+                ProjectorBounds b = request.getBounds();
+                int x1 = (int) Math.round((minLon - b.getMinX()) / b.getSizeX()
+                        * request.getWidth());
+                int x2 = (int) Math.round((maxLon - b.getMinX()) / b.getSizeX()
+                        * request.getWidth());
+                int y1 = (int) Math.round((b.getMaxY() - maxLat) / b.getSizeY()
+                        * request.getHeight());
+                int y2 = (int) Math.round((b.getMaxY() - minLat) / b.getSizeY()
+                        * request.getHeight());
+                g.setColor(color);
+                g.fillRect(x1, y1, x2 - x1, y2 - y1);
+            }
+
+            @Override
+            public String getInfo(Date time, WmsRequest request, Point point, String mimeType) {
+                return "";
+            }
+        };
+    }
+}
@@ -0,0 +1,113 @@
+package com.github.davidmoten.grumpy.wms;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class LayerRasterCacheTest {
+
+    private static final Color RED = new Color(255, 0, 0, 160);
+    private static final Color BLUE = new Color(0, 0, 255, 128);
+    private static final Color GREEN = new Color(0, 255, 0, 96);
+
+    private final List<WmsRequest> rendersA = renders();
+    private final List<WmsRequest> rendersB = renders();
+    private final List<WmsRequest> rendersC = renders();
+
+    @Test
+    public void testSharedLayerCompositedFromCachedRaster() throws IOException {
+        WmsRequestProcessor processor = processor();
+        WmsRequestProcessor direct = direct();
+        try {
+            render(processor, "A,B");
+            assertEquals(1, rendersA.size());
+            assertEquals(1, rendersB.size());
+            byte[] bytes = render(processor, "B,C");
+            // B is composited from the raster cached by the first request
+            assertEquals(1, rendersB.size());
+            assertEquals(1, rendersC.size());
+            assertArrayEquals(WmsRequestProcessorTest.pixels(render(direct, "B,C")),
+                    WmsRequestProcessorTest.pixels(bytes));
+        } finally {
+            processor.close();
+            direct.close();
+        }
+    }
+
+    @Test
+    public void testReorderedLayersCompositedWithoutRendering() throws IOException {
+        WmsRequestProcessor processor = processor();
+        WmsRequestProcessor direct = direct();
+        try {
+            render(processor, "A,B,C");
+            byte[] bytes = render(processor, "C,A,B");
+            assertEquals(1, rendersA.size());
+            assertEquals(1, rendersB.size());
+            assertEquals(1, rendersC.size());
+            assertArrayEquals(WmsRequestProcessorTest.pixels(render(direct, "C,A,B")),
+                    WmsRequestProcessorTest.pixels(bytes));
+        } finally {
+            processor.close();
+            direct.close();
+        }
+    }
+
+    @Test
+    public void testLayerRenderedAgainForDifferentBounds() throws IOException {
+        WmsRequestProcessor processor = processor();
+        try {
+            render(processor, "A,B");
+            processor.getImage(ImageCacheTest.request("B,C", "-90,-90,90,90"), true).release();
+            assertEquals(2, rendersB.size());
+        } finally {
+            processor.close();
+        }
+    }
+
+    private WmsRequestProcessor processor() {
+        return WmsRequestProcessor.builder()
+                .imageCache(ImageCache.builder().layerRasterCache(16 * 1024 * 1024).build())
+                .addCachedLayer(LayerManagerTest.painting(LayerFeatures.builder().name("A"), RED,
+                        -150, -60, -60, 30, rendersA))
+                .addCachedLayer(LayerManagerTest.painting(LayerFeatures.builder().name("B"), BLUE,
+                        -120, -30, -30, 60, rendersB))
+                .addCachedLayer(LayerManagerTest.painting(LayerFeatures.builder().name("C"),
+                        GREEN, -90, -75, -15, 15, rendersC)).build();
+    }
+
+    /**
+     * Returns a processor of the same layers that renders every layer of
+     * every request.
+     */
+    private static WmsRequestProcessor direct() {
+        return WmsRequestProcessor.builder()
+                .addLayer(LayerManagerTest.painting(LayerFeatures.builder().name("A"), RED, -150,
+                        -60, -60, 30, renders()))
+                .addLayer(LayerManagerTest.painting(LayerFeatures.builder().name("B"), BLUE, -120,
+                        -30, -30, 60, renders()))
+                .addLayer(LayerManagerTest.painting(LayerFeatures.builder().name("C"), GREEN, -90,
+                        -75, -15, 15, renders())).build();
+    }
+
+    private static byte[] render(WmsRequestProcessor processor, String layers)
+            throws IOException {
+        CachedImage image = processor.getImage(ImageCacheTest.request(layers, "-180,-90,0,90"),
+                true);
+        try {
+            return image.toByteArray();
+        } finally {
+            image.release();
+        }
+    }
+
+    private static List<WmsRequest> renders() {
+        return Collections.synchronizedList(new ArrayList<WmsRequest>());
+    }
+}
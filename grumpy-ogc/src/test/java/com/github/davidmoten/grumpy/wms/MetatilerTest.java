@@ -0,0 +1,79 @@
+package com.github.davidmoten.grumpy.wms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import com.github.davidmoten.grumpy.projection.ProjectorBounds;
+
+public class MetatilerTest {
+
+    private static final double PRECISION = 0.00000001;
+
+    @Test
+    public void testTileMappedToEnclosingMetatile() {
+        TileGrid grid = TileGrid.epsg4326();
+        Metatiler metatiler = new Metatiler(grid, 4);
+        // zoom 3 has 16 x 8 tiles of 22.5 degrees
+        WmsRequest request = ImageCacheTest.request("A", "-67.5,45,-45,67.5");
+        Metatiler.Metatile metatile = metatiler.metatile(request);
+        // columns 4 to 7 and rows 0 to 3
+        assertBounds(metatile.request.getBounds(), -90, 0, 0, 90);
+        assertEquals(1024, metatile.request.getWidth());
+        assertEquals(1024, metatile.request.getHeight());
+        assertEquals(16, metatile.tiles.size());
+        for (Metatiler.Tile tile : metatile.tiles) {
+            int column = 4 + tile.x / 256;
+            int row = tile.y / 256;
+            if (column == 5 && row == 1)
+                assertSame(request, tile.request);
+            else
+                assertBounds(tile.request.getBounds(), grid.tileBounds(3, column, row));
+            assertEquals(256, tile.request.getWidth());
+            assertEquals(256, tile.request.getHeight());
+            assertEquals(request.getLayers(), tile.request.getLayers());
+        }
+    }
+
+    @Test
+    public void testMetatileClippedAtEdgeOfGrid() {
+        // zoom 0 has only 2 x 1 tiles
+        Metatiler metatiler = new Metatiler(TileGrid.epsg4326(), 4);
+        Metatiler.Metatile metatile = metatiler.metatile(ImageCacheTest.request("A",
+                "0,-90,180,90"));
+        assertBounds(metatile.request.getBounds(), -180, -90, 180, 90);
+        assertEquals(512, metatile.request.getWidth());
+        assertEquals(256, metatile.request.getHeight());
+        assertEquals(2, metatile.tiles.size());
+    }
+
+    @Test
+    public void testRequestNotForTileHasNoMetatile() {
+        Metatiler metatiler = new Metatiler(TileGrid.epsg4326(), 4);
+        // not aligned to tile edges
+        assertNull(metatiler.metatile(ImageCacheTest.request("A", "-60,45,-37.5,67.5")));
+        // not the tile size
+        assertNull(metatiler.metatile(ImageCacheTest.request("A", "-67.5,45,-45,67.5")
+                .modifySize(512, 512)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSizeLessThanOneRejected() {
+        new Metatiler(TileGrid.epsg4326(), 0);
+    }
+
+    private static void assertBounds(ProjectorBounds b, ProjectorBounds expected) {
+        assertBounds(b, expected.getMinX(), expected.getMinY(), expected.getMaxX(),
+                expected.getMaxY());
+    }
+
+    private static void assertBounds(ProjectorBounds b, double minX, double minY, double maxX,
+            double maxY) {
+        assertEquals(minX, b.getMinX(), PRECISION);
+        assertEquals(minY, b.getMinY(), PRECISION);
+        assertEquals(maxX, b.getMaxX(), PRECISION);
+        assertEquals(maxY, b.getMaxY(), PRECISION);
+    }
+}
@@ -0,0 +1,114 @@
+package com.github.davidmoten.grumpy.wms;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class OffHeapImagePoolTest {
+
+    private static final int BLOCK = 16;
+
+    @Test
+    public void testRoundTripOfImageSmallerThanBlock() throws IOException {
+        checkRoundTrip(5, 1);
+    }
+
+    @Test
+    public void testRoundTripOfImageExactlyOneBlock() throws IOException {
+        checkRoundTrip(BLOCK, 1);
+    }
+
+    @Test
+    public void testRoundTripOfImageLargerThanBlock() throws IOException {
+        checkRoundTrip(2 * BLOCK + 8, 3);
+    }
+
+    @Test
+    public void testRoundTripOfEmptyImage() throws IOException {
+        checkRoundTrip(0, 1);
+    }
+
+    @Test
+    public void testAllocateReturnsNullWhenPoolFull() {
+        // four blocks in two slabs
+        OffHeapImagePool pool = new OffHeapImagePool(4 * BLOCK, BLOCK, 2 * BLOCK);
+        assertNotNull(pool.allocate(bytes(3 * BLOCK), 0));
+        assertNull(pool.allocate(bytes(BLOCK + 1), 0));
+        assertNotNull(pool.allocate(bytes(BLOCK), 0));
+        assertNull(pool.allocate(bytes(1), 0));
+    }
+
+    @Test
+    public void testReleaseFreesBlocksForReuse() {
+        OffHeapImagePool pool = new OffHeapImagePool(4 * BLOCK, BLOCK, 2 * BLOCK);
+        CachedImage a = pool.allocate(bytes(4 * BLOCK), 0);
+        assertNotNull(a);
+        assertNull(pool.allocate(bytes(1), 0));
+        a.release();
+        byte[] bytes = reversed(bytes(4 * BLOCK));
+        CachedImage b = pool.allocate(bytes, 0);
+        assertNotNull(b);
+        // the reused blocks hold the new image only
+        assertArrayEquals(bytes, b.toByteArray());
+    }
+
+    @Test
+    public void testRetainedImageReadableUntilLastRelease() throws IOException {
+        OffHeapImagePool pool = new OffHeapImagePool(4 * BLOCK, BLOCK, 2 * BLOCK);
+        byte[] bytes = bytes(3 * BLOCK);
+        CachedImage image = pool.allocate(bytes, 0);
+        // a reader takes a reference then the cache releases its own
+        assertTrue(image.retain());
+        image.release();
+        // the blocks are still held so cannot be reused
+        assertNull(pool.allocate(bytes(2 * BLOCK), 0));
+        assertArrayEquals(bytes, image.toByteArray());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        image.writeTo(out);
+        assertArrayEquals(bytes, out.toByteArray());
+        // the reader finishes
+        image.release();
+        assertFalse(image.retain());
+        assertNotNull(pool.allocate(bytes(4 * BLOCK), 0));
+    }
+
+    private static void checkRoundTrip(int length, int blocks) throws IOException {
+        OffHeapImagePool pool = new OffHeapImagePool(8 * BLOCK, BLOCK, 4 * BLOCK);
+        // occupy a block first so that the image doesn't start at the
+        // beginning of a slab
+        assertNotNull(pool.allocate(bytes(1), 0));
+        byte[] bytes = bytes(length);
+        CachedImage image = pool.allocate(bytes, 123);
+        assertEquals(length, image.length());
+        assertEquals(blocks * BLOCK, image.weight());
+        assertEquals(blocks * BLOCK, pool.weigh(length));
+        assertEquals(123, image.createdTime());
+        assertEquals(CachedImage.contentHash(bytes), image.contentHash());
+        assertArrayEquals(bytes, image.toByteArray());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        image.writeTo(out);
+        assertArrayEquals(bytes, out.toByteArray());
+    }
+
+    private static byte[] bytes(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+            bytes[i] = (byte) (i * 7 + 1);
+        return bytes;
+    }
+
+    private static byte[] reversed(byte[] bytes) {
+        byte[] result = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++)
+            result[i] = bytes[bytes.length - 1 - i];
+        return result;
+    }
+}
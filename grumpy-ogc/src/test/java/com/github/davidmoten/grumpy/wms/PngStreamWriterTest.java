@@ -0,0 +1,71 @@
+package com.github.davidmoten.grumpy.wms;
+
+import static org.junit.Assert.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+public class PngStreamWriterTest {
+
+    @Test
+    public void testTransparentImageWrittenInBandsDecodesToSamePixels() throws IOException {
+        checkRoundTrip(true);
+    }
+
+    @Test
+    public void testOpaqueImageWrittenInBandsDecodesToSamePixels() throws IOException {
+        checkRoundTrip(false);
+    }
+
+    @Test(expected = IOException.class)
+    public void testFinishWithMissingRowsThrows() throws IOException {
+        PngStreamWriter writer = new PngStreamWriter(new ByteArrayOutputStream(), 10, 10, true,
+                Deflater.DEFAULT_COMPRESSION);
+        try {
+            writer.write(new BufferedImage(10, 5, BufferedImage.TYPE_INT_ARGB));
+            writer.finish();
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void checkRoundTrip(boolean transparent) throws IOException {
+        int width = 123;
+        int height = 77;
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Random random = new Random(1);
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++) {
+                // mix smooth gradients and noise so that every filter is used
+                int argb = x % 20 < 10 ? (x * 2 << 16) | (y * 3 << 8) | (x + y)
+                        : random.nextInt();
+                image.setRGB(x, y, transparent ? argb | (random.nextInt(2) * 255 << 24)
+                        : argb | 0xff000000);
+            }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PngStreamWriter writer = new PngStreamWriter(bytes, width, height, transparent,
+                Deflater.DEFAULT_COMPRESSION);
+        try {
+            for (int y = 0; y < height; y += 10)
+                writer.write(image.getSubimage(0, y, width, Math.min(10, height - y)));
+            writer.finish();
+        } finally {
+            writer.close();
+        }
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(width, decoded.getWidth());
+        assertEquals(height, decoded.getHeight());
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++)
+                assertEquals(image.getRGB(x, y), decoded.getRGB(x, y));
+    }
+
+}
@@ -0,0 +1,121 @@
+package com.github.davidmoten.grumpy.wms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.awt.image.BufferedImage;
+
+import org.junit.Test;
+
+public class RasterPoolTest {
+
+    @Test
+    public void testReleasedImageReusedAndCleared() {
+        RasterPool pool = new RasterPool(1024 * 1024);
+        BufferedImage image = pool.acquire(10, 10);
+        image.setRGB(5, 5, 0xff00ff00);
+        pool.release(image);
+        assertEquals(1, pool.size());
+        assertEquals(400, pool.bytes());
+        BufferedImage reused = pool.acquire(10, 10);
+        assertSame(image, reused);
+        assertEquals(0, reused.getRGB(5, 5));
+        assertEquals(0, pool.size());
+        assertEquals(0, pool.bytes());
+    }
+
+    @Test
+    public void testKeyedByTypeAndSize() {
+        RasterPool pool = new RasterPool(1024 * 1024);
+        BufferedImage argb = pool.acquire(10, 10, BufferedImage.TYPE_INT_ARGB);
+        BufferedImage rgb = pool.acquire(10, 10, BufferedImage.TYPE_INT_RGB);
+        BufferedImage wide = pool.acquire(20, 5, BufferedImage.TYPE_INT_ARGB);
+        pool.release(argb);
+        pool.release(rgb);
+        pool.release(wide);
+        assertEquals(3, pool.size());
+        assertSame(rgb, pool.acquire(10, 10, BufferedImage.TYPE_INT_RGB));
+        assertSame(wide, pool.acquire(20, 5, BufferedImage.TYPE_INT_ARGB));
+        assertNotSame(argb, pool.acquire(5, 20, BufferedImage.TYPE_INT_ARGB));
+        assertSame(argb, pool.acquire(10, 10, BufferedImage.TYPE_INT_ARGB));
+        assertEquals(0, pool.size());
+    }
+
+    @Test
+    public void testLeastRecentlyReleasedDroppedWhenFull() {
+        // room for two 10x10 images
+        RasterPool pool = new RasterPool(800);
+        BufferedImage a = new BufferedImage(10, 10, BufferedImage.TYPE_INT_ARGB);
+        BufferedImage b = new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB);
+        BufferedImage c = new BufferedImage(10, 10, BufferedImage.TYPE_INT_ARGB);
+        pool.release(a);
+        pool.release(b);
+        pool.release(c);
+        assertEquals(2, pool.size());
+        assertEquals(800, pool.bytes());
+        // a was dropped
+        assertSame(c, pool.acquire(10, 10, BufferedImage.TYPE_INT_ARGB));
+        assertNotSame(a, pool.acquire(10, 10, BufferedImage.TYPE_INT_ARGB));
+        assertSame(b, pool.acquire(10, 10, BufferedImage.TYPE_INT_RGB));
+    }
+
+    @Test
+    public void testImageLargerThanPoolNotRetained() {
+        RasterPool pool = new RasterPool(399);
+        pool.release(new BufferedImage(10, 10, BufferedImage.TYPE_INT_ARGB));
+        assertEquals(0, pool.size());
+        assertEquals(0, pool.bytes());
+    }
+
+    @Test
+    public void testDisabledWithZeroBytes() {
+        RasterPool pool = new RasterPool(0);
+        BufferedImage image = pool.acquire(10, 10);
+        pool.release(image);
+        assertEquals(0, pool.size());
+        assertNotSame(image, pool.acquire(10, 10));
+    }
+
+    @Test
+    public void testSubimageNotRetained() {
+        RasterPool pool = new RasterPool(1024 * 1024);
+        BufferedImage image = new BufferedImage(10, 10, BufferedImage.TYPE_INT_ARGB);
+        pool.release(image.getSubimage(0, 0, 5, 5));
+        assertEquals(0, pool.size());
+    }
+
+    @Test
+    public void testUnsupportedTypeNotRetained() {
+        RasterPool pool = new RasterPool(1024 * 1024);
+        pool.release(new BufferedImage(10, 10, BufferedImage.TYPE_3BYTE_BGR));
+        assertEquals(0, pool.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAcquireUnsupportedTypeRejected() {
+        new RasterPool(1024 * 1024).acquire(10, 10, BufferedImage.TYPE_BYTE_GRAY);
+    }
+
+    @Test
+    public void testDoubleReleaseRetainedOnce() {
+        RasterPool pool = new RasterPool(1024 * 1024);
+        BufferedImage image = new BufferedImage(10, 10, BufferedImage.TYPE_INT_ARGB);
+        pool.release(image);
+        pool.release(image);
+        assertEquals(1, pool.size());
+        assertEquals(400, pool.bytes());
+        assertSame(image, pool.acquire(10, 10));
+        // not handed out twice
+        assertNotSame(image, pool.acquire(10, 10));
+    }
+
+    @Test
+    public void testClear() {
+        RasterPool pool = new RasterPool(1024 * 1024);
+        pool.release(new BufferedImage(10, 10, BufferedImage.TYPE_INT_ARGB));
+        pool.clear();
+        assertEquals(0, pool.size());
+        assertEquals(0, pool.bytes());
+    }
+}
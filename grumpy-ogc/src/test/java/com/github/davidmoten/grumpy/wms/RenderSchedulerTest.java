@@ -0,0 +1,230 @@
+package com.github.davidmoten.grumpy.wms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class RenderSchedulerTest {
+
+    private static final Callable<String> NOTHING = new Callable<String>() {
+        @Override
+        public String call() {
+            return "";
+        }
+    };
+
+    @Test
+    public void testDispatchedInPriorityOrder() throws Exception {
+        RenderScheduler scheduler = scheduler(1, 10, 0);
+        CountDownLatch latch = new CountDownLatch(1);
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        try {
+            scheduler.submit("A", RenderPriority.INTERACTIVE, blocking(latch, "first"));
+            scheduler.submit("A", RenderPriority.FEATURE_INFO, recording(order, "info"));
+            scheduler.submit("A", RenderPriority.BACKGROUND, recording(order, "background"));
+            Future<String> last = scheduler.submit("A", RenderPriority.INTERACTIVE,
+                    recording(order, "interactive"));
+            latch.countDown();
+            last.get(5, TimeUnit.SECONDS);
+            waitForIdle(scheduler);
+            assertEquals(Arrays.asList("interactive", "background", "info"), order);
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testRaisedJobDispatchedAtRaisedPriority() throws Exception {
+        RenderScheduler scheduler = scheduler(1, 10, 0);
+        CountDownLatch latch = new CountDownLatch(1);
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        try {
+            scheduler.submit("A", RenderPriority.INTERACTIVE, blocking(latch, "first"));
+            RenderScheduler.Job job = new RenderScheduler.Job(RenderPriority.BACKGROUND);
+            scheduler.submit("A", job, false, recording(order, "joined"));
+            scheduler.submit("A", RenderPriority.INTERACTIVE, recording(order, "interactive"));
+            // an interactive request joins the background render
+            job.raise(RenderPriority.INTERACTIVE);
+            job.raise(RenderPriority.FEATURE_INFO);
+            assertEquals(RenderPriority.INTERACTIVE, job.priority());
+            latch.countDown();
+            waitForIdle(scheduler);
+            assertEquals(Arrays.asList("joined", "interactive"), order);
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testWaitingLowerPriorityTaskAges() throws Exception {
+        RenderScheduler scheduler = scheduler(1, 10, 50);
+        CountDownLatch latch = new CountDownLatch(1);
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        try {
+            scheduler.submit("A", RenderPriority.INTERACTIVE, blocking(latch, "first"));
+            scheduler.submit("A", RenderPriority.FEATURE_INFO, recording(order, "info"));
+            // long enough to age two classes
+            Thread.sleep(150);
+            scheduler.submit("A", RenderPriority.INTERACTIVE, recording(order, "interactive"));
+            latch.countDown();
+            waitForIdle(scheduler);
+            assertEquals(Arrays.asList("info", "interactive"), order);
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testLayerLimitLetsOtherLayersRun() throws Exception {
+        RenderScheduler scheduler = RenderScheduler.create(2, 10, false, 0,
+                Collections.singletonMap("A", 1));
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicBoolean secondStarted = new AtomicBoolean();
+        try {
+            Future<String> a1 = scheduler.submit("A", RenderPriority.INTERACTIVE,
+                    blocking(latch, "a1"));
+            Future<String> a2 = scheduler.submit("A", RenderPriority.INTERACTIVE,
+                    started(secondStarted, "a2"));
+            Future<String> b = scheduler.submit("B", RenderPriority.INTERACTIVE, NOTHING);
+            // B runs on the second thread while the second A task waits
+            b.get(5, TimeUnit.SECONDS);
+            assertFalse(secondStarted.get());
+            assertEquals(1, scheduler.pendingCount());
+            latch.countDown();
+            assertEquals("a1", a1.get(5, TimeUnit.SECONDS));
+            assertEquals("a2", a2.get(5, TimeUnit.SECONDS));
+            assertTrue(secondStarted.get());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCancelledWaitingTaskRemovedAndNotRun() throws Exception {
+        RenderScheduler scheduler = scheduler(1, 10, 0);
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicBoolean started = new AtomicBoolean();
+        try {
+            scheduler.submit("A", RenderPriority.INTERACTIVE, blocking(latch, "first"));
+            Future<String> waiting = scheduler.submit("A", RenderPriority.INTERACTIVE,
+                    started(started, "waiting"));
+            assertEquals(1, scheduler.pendingCount());
+            waiting.cancel(true);
+            assertEquals(0, scheduler.pendingCount());
+            latch.countDown();
+            waitForIdle(scheduler);
+            assertFalse(started.get());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testRejectedWhenQueueFullUnlessAdmitted() throws Exception {
+        RenderScheduler scheduler = scheduler(1, 1, 0);
+        CountDownLatch latch = new CountDownLatch(1);
+        try {
+            Future<String> running = scheduler.submit("A", RenderPriority.INTERACTIVE,
+                    blocking(latch, "a"));
+            Future<String> waiting = scheduler.submit("A", RenderPriority.INTERACTIVE,
+                    blocking(latch, "b"));
+            try {
+                scheduler.submit("A", RenderPriority.INTERACTIVE, blocking(latch, "c"));
+                fail();
+            } catch (RejectedExecutionException e) {
+                // expected
+            }
+            Future<String> admitted = scheduler.submit("A",
+                    new RenderScheduler.Job(RenderPriority.INTERACTIVE), true,
+                    blocking(latch, "d"));
+            latch.countDown();
+            assertEquals("a", running.get(5, TimeUnit.SECONDS));
+            assertEquals("b", waiting.get(5, TimeUnit.SECONDS));
+            assertEquals("d", admitted.get(5, TimeUnit.SECONDS));
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testLowerPrioritiesCannotFillInteractiveShareOfQueue() throws Exception {
+        RenderScheduler scheduler = scheduler(1, 4, 0);
+        CountDownLatch latch = new CountDownLatch(1);
+        try {
+            scheduler.submit("A", RenderPriority.INTERACTIVE, blocking(latch, "first"));
+            scheduler.submit("A", RenderPriority.BACKGROUND, NOTHING);
+            scheduler.submit("A", RenderPriority.FEATURE_INFO, NOTHING);
+            try {
+                scheduler.submit("A", RenderPriority.BACKGROUND, NOTHING);
+                fail();
+            } catch (RejectedExecutionException e) {
+                // expected
+            }
+            scheduler.submit("A", RenderPriority.INTERACTIVE, NOTHING);
+            scheduler.submit("A", RenderPriority.INTERACTIVE, NOTHING);
+            assertEquals(4, scheduler.pendingCount());
+            latch.countDown();
+            waitForIdle(scheduler);
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private static RenderScheduler scheduler(int threads, int queueSize, long agingMs) {
+        return RenderScheduler.create(threads, queueSize, false, agingMs,
+                Collections.<String, Integer> emptyMap());
+    }
+
+    private static void waitForIdle(RenderScheduler scheduler) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        while (scheduler.pendingCount() > 0 || scheduler.runningCount() > 0) {
+            if (System.currentTimeMillis() - start > 5000)
+                fail("scheduler not idle");
+            Thread.sleep(10);
+        }
+    }
+
+    private static Callable<String> blocking(final CountDownLatch latch, final String result) {
+        return new Callable<String>() {
+            @Override
+            public String call() throws InterruptedException {
+                latch.await();
+                return result;
+            }
+        };
+    }
+
+    private static Callable<String> recording(final List<String> order, final String name) {
+        return new Callable<String>() {
+            @Override
+            public String call() {
+                order.add(name);
+                return name;
+            }
+        };
+    }
+
+    private static Callable<String> started(final AtomicBoolean started, final String result) {
+        return new Callable<String>() {
+            @Override
+            public String call() {
+                started.set(true);
+                return result;
+            }
+        };
+    }
+}
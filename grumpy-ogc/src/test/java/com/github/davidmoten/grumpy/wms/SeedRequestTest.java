@@ -0,0 +1,53 @@
+package com.github.davidmoten.grumpy.wms;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import com.github.davidmoten.grumpy.projection.ProjectorBounds;
+
+public class SeedRequestTest {
+
+    @Test
+    public void testBuildWithMaximumZoomOfGrid() {
+        SeedRequest request = SeedRequest.builder().layers("A").grid(TileGrid.epsg4326())
+                .zoom(0, TileGrid.MAX_ZOOM).build();
+        assertEquals(TileGrid.MAX_ZOOM, request.getMaxZoom());
+        assertEquals(TileGrid.epsg4326().extent().getMinX(), request.getRegion().getMinX(), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZoomBeyondGridMaximumRejected() {
+        SeedRequest.builder().layers("A").zoom(0, TileGrid.MAX_ZOOM + 1).build();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZoomBeyondMaximumOfGridWithManyTilesRejected() {
+        TileGrid grid = new TileGrid(new ProjectorBounds("EPSG:4326", -180, -90, 180, 90), 256,
+                1 << 20, 1);
+        SeedRequest.builder().layers("A").grid(grid).zoom(0, grid.maxZoom() + 1).build();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvertedZoomRangeRejected() {
+        SeedRequest.builder().layers("A").zoom(3, 2).build();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoLayersRejected() {
+        SeedRequest.builder().build();
+    }
+
+    @Test
+    public void testTileRequestHasTileBoundsAndSize() {
+        SeedRequest request = SeedRequest.builder().layers("A").grid(TileGrid.epsg4326())
+                .zoom(0, 2).build();
+        WmsRequest tile = request.tileRequest(2, 1, 0);
+        assertEquals(-135, tile.getBounds().getMinX(), 0);
+        assertEquals(-90, tile.getBounds().getMaxX(), 0);
+        assertEquals(45, tile.getBounds().getMinY(), 0);
+        assertEquals(90, tile.getBounds().getMaxY(), 0);
+        assertEquals(256, tile.getWidth());
+        assertEquals(256, tile.getHeight());
+    }
+}
@@ -0,0 +1,93 @@
+package com.github.davidmoten.grumpy.wms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.github.davidmoten.grumpy.projection.ProjectorBounds;
+
+public class SeedTaskTest {
+
+    @Test
+    public void testVisitsEveryTileOnce() throws InterruptedException {
+        SeedRequest request = SeedRequest.builder().layers("A").grid(TileGrid.epsg4326())
+                .zoom(1, 3).threads(3).build();
+        final Set<String> visited = Collections.synchronizedSet(new HashSet<String>());
+        SeedTask task = SeedTask.start(request, new SeedTask.TileLoader() {
+            @Override
+            public boolean load(WmsRequest tile) {
+                ProjectorBounds b = tile.getBounds();
+                assertTrue(visited.add(b.getMinX() + "," + b.getMinY() + "," + b.getMaxX()));
+                // pretend tiles west of the meridian were already cached
+                return b.getMinX() >= 0;
+            }
+        });
+        assertTrue(task.await(10, TimeUnit.SECONDS));
+        // 4x2 + 8x4 + 16x8
+        assertEquals(168, task.total());
+        assertEquals(168, visited.size());
+        assertEquals(84, task.rendered());
+        assertEquals(84, task.skipped());
+        assertEquals(0, task.failed());
+        assertEquals(1.0, task.progress(), 0);
+    }
+
+    @Test
+    public void testCountsTilesOfRegionOnly() throws InterruptedException {
+        SeedRequest request = SeedRequest.builder().layers("A").grid(TileGrid.epsg4326())
+                .region(new ProjectorBounds("EPSG:4326", 1, 1, 44, 44)).zoom(0, 2).build();
+        SeedTask task = SeedTask.start(request, new SeedTask.TileLoader() {
+            @Override
+            public boolean load(WmsRequest tile) {
+                return true;
+            }
+        });
+        assertTrue(task.await(10, TimeUnit.SECONDS));
+        assertEquals(3, task.total());
+        assertEquals(3, task.rendered());
+    }
+
+    @Test
+    public void testFailedTilesCounted() throws InterruptedException {
+        SeedRequest request = SeedRequest.builder().layers("A").grid(TileGrid.epsg4326())
+                .zoom(0, 1).build();
+        SeedTask task = SeedTask.start(request, new SeedTask.TileLoader() {
+            @Override
+            public boolean load(WmsRequest tile) {
+                throw new IllegalStateException("boom");
+            }
+        });
+        assertTrue(task.await(10, TimeUnit.SECONDS));
+        assertEquals(10, task.failed());
+        assertEquals(1.0, task.progress(), 0);
+    }
+
+    @Test
+    public void testCancelStopsSeeding() throws InterruptedException {
+        SeedRequest request = SeedRequest.builder().layers("A").grid(TileGrid.epsg4326())
+                .zoom(0, 10).build();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        SeedTask task = SeedTask.start(request, new SeedTask.TileLoader() {
+            @Override
+            public boolean load(WmsRequest tile) throws InterruptedException {
+                started.countDown();
+                release.await();
+                return true;
+            }
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        task.cancel();
+        release.countDown();
+        assertTrue(task.await(10, TimeUnit.SECONDS));
+        assertTrue(task.isCancelled());
+        assertEquals(1, task.rendered());
+    }
+}
@@ -0,0 +1,93 @@
+package com.github.davidmoten.grumpy.wms;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SharedImageStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testImageWrittenByOneStoreReadByAnother() throws IOException {
+        File directory = folder.newFolder();
+        SharedImageStore a = SharedImageStore.open(directory);
+        SharedImageStore b = SharedImageStore.open(directory);
+        CacheKey key = key("A", 1);
+        a.put(key, CachedImage.onHeap(new byte[] { 1, 2, 3 }, 123));
+        CachedImage image = b.get(key);
+        assertArrayEquals(new byte[] { 1, 2, 3 }, image.toByteArray());
+        assertEquals(123, image.createdTime());
+        assertNull(b.get(key("A", 2)));
+    }
+
+    @Test
+    public void testKeysRemoveAndClear() throws IOException {
+        SharedImageStore store = SharedImageStore.open(folder.newFolder());
+        store.put(key("A", 1), CachedImage.onHeap(new byte[] { 1 }, 1));
+        store.put(key("A,B", 1), CachedImage.onHeap(new byte[] { 2 }, 1));
+        store.put(key("B", 1), CachedImage.onHeap(new byte[] { 3 }, 1));
+        assertEquals(2, store.keys("A").size());
+        assertTrue(store.keys("A").containsAll(Arrays.asList(key("A", 1), key("A,B", 1))));
+        store.remove(key("A", 1));
+        assertNull(store.get(key("A", 1)));
+        assertEquals(Collections.singletonList(key("A,B", 1)), store.keys("A"));
+        store.clear();
+        assertTrue(store.keys("B").isEmpty());
+        assertNull(store.get(key("B", 1)));
+    }
+
+    @Test
+    public void testFileOfDifferentKeyIgnored() throws IOException {
+        File directory = folder.newFolder();
+        SharedImageStore store = SharedImageStore.open(directory);
+        CacheKey key = key("A", 1);
+        CacheKey other = key("A", 2);
+        store.put(key, CachedImage.onHeap(new byte[] { 1 }, 1));
+        // as if the hashes of the keys collided
+        File file = file(directory, key);
+        File otherFile = file(directory, other);
+        otherFile.getParentFile().mkdirs();
+        Files.copy(file.toPath(), otherFile.toPath());
+        assertNull(store.get(other));
+    }
+
+    @Test
+    public void testFileWithBadKeyLengthIgnored() throws IOException {
+        File directory = folder.newFolder();
+        SharedImageStore store = SharedImageStore.open(directory);
+        CacheKey key = key("A", 1);
+        store.put(key, CachedImage.onHeap(new byte[] { 1 }, 1));
+        File file = file(directory, key);
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        // the key length follows the magic number and creation time
+        ByteBuffer.wrap(bytes).putInt(12, bytes.length);
+        Files.write(file.toPath(), bytes);
+        assertNull(store.get(key));
+        ByteBuffer.wrap(bytes).putInt(12, -1);
+        Files.write(file.toPath(), bytes);
+        assertNull(store.get(key));
+    }
+
+    private static File file(File directory, CacheKey key) {
+        String hex = key.toHex();
+        return new File(new File(directory, hex.substring(0, 2)), hex + ".img");
+    }
+
+    private static CacheKey key(String layers, int i) {
+        return ImageCacheTest.request(layers, "0,0," + i + ",10").getCacheKey();
+    }
+}
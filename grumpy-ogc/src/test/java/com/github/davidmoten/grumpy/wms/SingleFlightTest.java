@@ -0,0 +1,264 @@
+package com.github.davidmoten.grumpy.wms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class SingleFlightTest {
+
+    @Test
+    public void testConcurrentCallsShareOneComputation() throws Exception {
+        final SingleFlight<String, String> flights = new SingleFlight<String, String>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        final Callable<String> callable = new Callable<String>() {
+            @Override
+            public String call() throws InterruptedException {
+                calls.incrementAndGet();
+                latch.await();
+                return "image";
+            }
+        };
+        final List<String> results = new ArrayList<String>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        String result = flights.get("a", callable);
+                        synchronized (results) {
+                            results.add(result);
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+            // the leader waits on the latch and the others on the leader
+            waitUntilWaiting(thread);
+        }
+        assertEquals(1, flights.size());
+        latch.countDown();
+        for (Thread thread : threads)
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        assertEquals(1, calls.get());
+        assertEquals(4, results.size());
+        for (String result : results)
+            assertEquals("image", result);
+        assertEquals(0, flights.size());
+    }
+
+    @Test
+    public void testDifferentKeysNotShared() throws IOException {
+        SingleFlight<String, String> flights = new SingleFlight<String, String>();
+        assertEquals("a", flights.get("a", constant("a")));
+        assertEquals("b", flights.get("b", constant("b")));
+        // nothing is retained once complete
+        assertEquals("c", flights.get("a", constant("c")));
+    }
+
+    @Test
+    public void testIOExceptionThrownToLeaderAndJoiners() throws Exception {
+        final SingleFlight<String, String> flights = new SingleFlight<String, String>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        final IOException error = new IOException("boom");
+        final AtomicReference<Throwable> leaderError = new AtomicReference<Throwable>();
+        Thread leader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    flights.get("a", new Callable<String>() {
+                        @Override
+                        public String call() throws Exception {
+                            latch.await();
+                            throw error;
+                        }
+                    });
+                } catch (IOException e) {
+                    leaderError.set(e);
+                }
+            }
+        };
+        leader.start();
+        waitUntilWaiting(leader);
+        final AtomicReference<Throwable> joinerError = new AtomicReference<Throwable>();
+        Thread joiner = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    flights.get("a", constant("joiner"));
+                } catch (IOException e) {
+                    joinerError.set(e);
+                }
+            }
+        };
+        joiner.start();
+        waitUntilWaiting(joiner);
+        latch.countDown();
+        leader.join(TimeUnit.SECONDS.toMillis(5));
+        joiner.join(TimeUnit.SECONDS.toMillis(5));
+        assertSame(error, leaderError.get());
+        assertSame(error, joinerError.get());
+        // a failed flight is not retained
+        assertEquals(0, flights.size());
+        assertEquals("again", flights.get("a", constant("again")));
+    }
+
+    @Test
+    public void testRuntimeExceptionRethrown() throws IOException {
+        SingleFlight<String, String> flights = new SingleFlight<String, String>();
+        final IllegalStateException error = new IllegalStateException("boom");
+        try {
+            flights.get("a", new Callable<String>() {
+                @Override
+                public String call() {
+                    throw error;
+                }
+            });
+            fail();
+        } catch (IllegalStateException e) {
+            assertSame(error, e);
+        }
+    }
+
+    @Test
+    public void testOtherCheckedExceptionWrapped() throws IOException {
+        SingleFlight<String, String> flights = new SingleFlight<String, String>();
+        final Exception error = new Exception("boom");
+        try {
+            flights.get("a", new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    throw error;
+                }
+            });
+            fail();
+        } catch (RuntimeException e) {
+            assertSame(error, e.getCause());
+        }
+    }
+
+    @Test
+    public void testInterruptedJoinerStopsWaitingAndLeaderCompletes() throws Exception {
+        final SingleFlight<String, String> flights = new SingleFlight<String, String>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<String> leaderResult = new AtomicReference<String>();
+        Thread leader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    leaderResult.set(flights.get("a", new Callable<String>() {
+                        @Override
+                        public String call() throws InterruptedException {
+                            latch.await();
+                            return "image";
+                        }
+                    }));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        leader.start();
+        waitUntilWaiting(leader);
+        final AtomicReference<Throwable> joinerError = new AtomicReference<Throwable>();
+        final AtomicReference<Boolean> joinerInterrupted = new AtomicReference<Boolean>();
+        Thread joiner = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    flights.get("a", constant("joiner"));
+                } catch (IOException e) {
+                    joinerError.set(e);
+                    joinerInterrupted.set(Thread.currentThread().isInterrupted());
+                }
+            }
+        };
+        joiner.start();
+        waitUntilWaiting(joiner);
+        joiner.interrupt();
+        joiner.join(TimeUnit.SECONDS.toMillis(5));
+        assertTrue(joinerError.get() instanceof InterruptedIOException);
+        assertTrue(joinerInterrupted.get());
+        assertEquals(1, flights.size());
+        latch.countDown();
+        leader.join(TimeUnit.SECONDS.toMillis(5));
+        assertEquals("image", leaderResult.get());
+    }
+
+    @Test
+    public void testJoinerRaisesPriorityOfFlightJob() throws Exception {
+        final SingleFlight<String, String> flights = new SingleFlight<String, String>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        final RenderScheduler.Job job = new RenderScheduler.Job(RenderPriority.BACKGROUND);
+        Thread leader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    flights.get("a", job, new Callable<String>() {
+                        @Override
+                        public String call() throws InterruptedException {
+                            latch.await();
+                            return "image";
+                        }
+                    });
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        leader.start();
+        waitUntilWaiting(leader);
+        Thread joiner = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    flights.get("a", new RenderScheduler.Job(RenderPriority.INTERACTIVE),
+                            constant("joiner"));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        joiner.start();
+        waitUntilWaiting(joiner);
+        assertEquals(RenderPriority.INTERACTIVE, job.priority());
+        latch.countDown();
+        leader.join(TimeUnit.SECONDS.toMillis(5));
+        joiner.join(TimeUnit.SECONDS.toMillis(5));
+    }
+
+    private static Callable<String> constant(final String value) {
+        return new Callable<String>() {
+            @Override
+            public String call() {
+                return value;
+            }
+        };
+    }
+
+    private static void waitUntilWaiting(Thread thread) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (thread.getState() != Thread.State.WAITING) {
+            if (System.currentTimeMillis() > deadline)
+                fail("thread did not wait");
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.github.davidmoten.grumpy.wms;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import com.github.davidmoten.grumpy.projection.ProjectorBounds;
+
+public class TileGridTest {
+
+    private static final double PRECISION = 0.00000001;
+
+    @Test
+    public void testColumnsAndRowsDoubleWithEachZoom() {
+        TileGrid grid = TileGrid.epsg4326();
+        assertEquals(2, grid.columns(0));
+        assertEquals(1, grid.rows(0));
+        assertEquals(16, grid.columns(3));
+        assertEquals(8, grid.rows(3));
+        assertEquals(2 << TileGrid.MAX_ZOOM, grid.columns(TileGrid.MAX_ZOOM));
+    }
+
+    @Test
+    public void testMaxZoomLimitedSoTileCountsFitInInt() {
+        assertEquals(TileGrid.MAX_ZOOM, TileGrid.epsg3857().maxZoom());
+        TileGrid grid = new TileGrid(new ProjectorBounds("EPSG:4326", -180, -90, 180, 90), 256,
+                1 << 20, 1);
+        assertEquals(10, grid.maxZoom());
+        assertEquals(1 << 30, grid.columns(10));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZoomAboveMaximumRejected() {
+        TileGrid.epsg3857().columns(TileGrid.MAX_ZOOM + 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeZoomRejected() {
+        TileGrid.epsg3857().rows(-1);
+    }
+
+    @Test
+    public void testAdjacentTilesShareEdges() {
+        TileGrid grid = TileGrid.epsg3857();
+        int zoom = 5;
+        for (int i = 0; i + 1 < grid.columns(zoom); i++) {
+            ProjectorBounds a = grid.tileBounds(zoom, i, i);
+            ProjectorBounds b = grid.tileBounds(zoom, i + 1, i + 1);
+            assertEquals(a.getMaxX(), b.getMinX(), 0);
+            assertEquals(a.getMinY(), b.getMaxY(), 0);
+        }
+        ProjectorBounds last = grid.tileBounds(zoom, grid.columns(zoom) - 1,
+                grid.rows(zoom) - 1);
+        assertEquals(grid.extent().getMaxX(), last.getMaxX(), 0);
+        assertEquals(grid.extent().getMinY(), last.getMinY(), 0);
+    }
+
+    @Test
+    public void testTileRange() {
+        TileGrid grid = TileGrid.epsg4326();
+        // 45 degree tiles at zoom 2
+        assertArrayEquals(new int[] { 4, 1, 4, 1 },
+                grid.tileRange(2, new ProjectorBounds("EPSG:4326", 1, 1, 44, 44)));
+        assertArrayEquals(new int[] { 3, 1, 4, 2 },
+                grid.tileRange(2, new ProjectorBounds("EPSG:4326", -1, -1, 1, 1)));
+        assertArrayEquals(new int[] { 0, 0, 7, 3 }, grid.tileRange(2, grid.extent()));
+        assertNull(grid.tileRange(2, new ProjectorBounds("EPSG:4326", 190, 0, 200, 10)));
+    }
+
+    @Test
+    public void testTileAtExactBounds() {
+        TileGrid grid = TileGrid.epsg4326();
+        assertArrayEquals(new int[] { 0, 0, 0 },
+                grid.tileAt(new ProjectorBounds("EPSG:4326", -180, -90, 0, 90), 256, 256, 0));
+        assertArrayEquals(new int[] { 2, 4, 1 },
+                grid.tileAt(new ProjectorBounds("EPSG:4326", 0, 0, 45, 45), 256, 256, 0));
+        // srs compared ignoring case
+        assertArrayEquals(new int[] { 2, 4, 1 },
+                grid.tileAt(new ProjectorBounds("epsg:4326", 0, 0, 45, 45), 256, 256, 0));
+    }
+
+    @Test
+    public void testTileAtWithinTolerance() {
+        TileGrid grid = TileGrid.epsg4326();
+        // half a pixel is about 0.088 degrees at zoom 2
+        double tolerance = 0.5 / 256;
+        assertArrayEquals(new int[] { 2, 4, 1 }, grid.tileAt(new ProjectorBounds("EPSG:4326",
+                0.01, -0.01, 45.01, 44.99), 256, 256, tolerance));
+        assertNull(grid.tileAt(new ProjectorBounds("EPSG:4326", 0.1, 0, 45.1, 45), 256, 256,
+                tolerance));
+    }
+
+    @Test
+    public void testTileAtNotATile() {
+        TileGrid grid = TileGrid.epsg4326();
+        double tolerance = 0.5 / 256;
+        // half a tile off the grid
+        assertNull(grid.tileAt(new ProjectorBounds("EPSG:4326", 22.5, 0, 67.5, 45), 256, 256,
+                tolerance));
+        // not square in pixels
+        assertNull(grid.tileAt(new ProjectorBounds("EPSG:4326", 0, 0, 45, 45), 256, 257,
+                tolerance));
+        // right bounds but not the tile size
+        assertNull(grid.tileAt(new ProjectorBounds("EPSG:4326", 0, 0, 45, 45), 512, 512,
+                tolerance));
+        // other srs
+        assertNull(grid.tileAt(new ProjectorBounds("EPSG:3857", 0, 0, 45, 45), 256, 256,
+                tolerance));
+        // outside the grid
+        assertNull(grid.tileAt(new ProjectorBounds("EPSG:4326", 180, 0, 225, 45), 256, 256,
+                tolerance));
+        // zoom level above the maximum
+        double w = 360.0 / (2 << (TileGrid.MAX_ZOOM + 1));
+        assertNull(grid.tileAt(new ProjectorBounds("EPSG:4326", 0, 0, w, w), 256, 256, 0));
+    }
+
+    @Test
+    public void testTileWidthAtZoom() {
+        assertEquals(22.5, TileGrid.epsg4326().tileWidth(3), PRECISION);
+    }
+}
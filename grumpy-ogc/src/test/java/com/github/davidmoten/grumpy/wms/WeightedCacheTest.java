@@ -0,0 +1,67 @@
+package com.github.davidmoten.grumpy.wms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class WeightedCacheTest {
+
+    private static final WeightedCache.Weigher<byte[]> WEIGHER = new WeightedCache.Weigher<byte[]>() {
+        @Override
+        public int weigh(byte[] value) {
+            return value.length;
+        }
+    };
+
+    @Test
+    public void testBoundedByWeight() {
+        WeightedCache<Integer, byte[]> cache = new WeightedCache<Integer, byte[]>(1000, 100,
+                WEIGHER);
+        for (int i = 0; i < 100; i++)
+            cache.put(i, new byte[100]);
+        assertTrue(cache.weightedSize() <= 1000);
+        assertEquals(cache.size() * 100, cache.weightedSize());
+    }
+
+    @Test
+    public void testValueHeavierThanMaximumNotCached() {
+        WeightedCache<Integer, byte[]> cache = new WeightedCache<Integer, byte[]>(1000, 100,
+                WEIGHER);
+        cache.put(1, new byte[1001]);
+        assertNull(cache.get(1));
+        assertEquals(0, cache.weightedSize());
+    }
+
+    @Test
+    public void testFrequentlyUsedEntriesSurviveScan() {
+        WeightedCache<String, byte[]> cache = new WeightedCache<String, byte[]>(1000, 100,
+                WEIGHER);
+        for (int i = 0; i < 10; i++)
+            cache.put("hot" + i, new byte[50]);
+        for (int j = 0; j < 20; j++)
+            for (int i = 0; i < 10; i++)
+                cache.get("hot" + i);
+        for (int i = 0; i < 1000; i++)
+            cache.put("cold" + i, new byte[50]);
+        for (int i = 0; i < 10; i++)
+            assertNotNull(cache.get("hot" + i));
+    }
+
+    @Test
+    public void testRemoveAndClear() {
+        WeightedCache<Integer, byte[]> cache = new WeightedCache<Integer, byte[]>(1000, 100,
+                WEIGHER);
+        cache.put(1, new byte[10]);
+        cache.put(2, new byte[10]);
+        assertTrue(cache.remove(1));
+        assertNull(cache.get(1));
+        assertEquals(10, cache.weightedSize());
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.weightedSize());
+    }
+
+}
@@ -0,0 +1,281 @@
+package com.github.davidmoten.grumpy.wms;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+public class WmsRequestProcessorTest {
+
+    @Test
+    public void testImageWithPlaceholderNotCached() throws IOException {
+        ImageCache cache = new ImageCache();
+        WmsRequestProcessor processor = WmsRequestProcessor.builder().imageCache(cache)
+                .addCachedLayer(LayerManagerTest.layer(LayerFeatures.builder().name("A")))
+                .addCachedLayer(LayerManagerTest.blocking(LayerFeatures.builder().name("B"),
+                        new CountDownLatch(1))).renderTimeout(100, TimeUnit.MILLISECONDS)
+                .build();
+        try {
+            WmsRequest complete = ImageCacheTest.request("A", "0,0,10,10");
+            processor.getImage(complete, true).release();
+            assertNotNull(cache.get(complete));
+            WmsRequest timedOut = ImageCacheTest.request("A,B", "0,0,10,10");
+            processor.getImage(timedOut, true).release();
+            assertNull(cache.get(timedOut));
+        } finally {
+            processor.close();
+        }
+    }
+
+    @Test
+    public void testStaleImageServedWhileSingleRefreshRendersReplacement()
+            throws IOException, InterruptedException {
+        ImageCacheTest.TestClock clock = new ImageCacheTest.TestClock();
+        ImageCache cache = new ImageCache().clock(clock).timeToLive("A", 10, TimeUnit.SECONDS);
+        AtomicInteger renders = new AtomicInteger();
+        CountDownLatch refresh = new CountDownLatch(1);
+        WmsRequestProcessor processor = WmsRequestProcessor.builder().imageCache(cache)
+                .addCachedLayer(refreshing(LayerFeatures.builder().name("A"), renders, refresh))
+                .build();
+        try {
+            WmsRequest request = ImageCacheTest.request("A", "0,0,10,10");
+            CachedImage image = processor.getImage(request, true);
+            byte[] stale = image.toByteArray();
+            image.release();
+            assertEquals(1, renders.get());
+
+            clock.advance(TimeUnit.SECONDS.toMillis(11));
+            // every request is served the stale image straight away and only
+            // the first starts a refresh
+            for (int i = 0; i < 3; i++) {
+                image = processor.getImage(request, true);
+                assertArrayEquals(stale, image.toByteArray());
+                image.release();
+            }
+            refresh.countDown();
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+            byte[] bytes;
+            while (Arrays.equals(stale, bytes = cache.get(request))
+                    && System.currentTimeMillis() < deadline)
+                Thread.sleep(1);
+            assertFalse(Arrays.equals(stale, bytes));
+            assertEquals(2, renders.get());
+            // the refreshed image is fresh so is served without another
+            // refresh
+            image = processor.getImage(request, true);
+            assertArrayEquals(bytes, image.toByteArray());
+            assertFalse(cache.isExpired(request, image));
+            image.release();
+            assertEquals(2, renders.get());
+        } finally {
+            processor.close();
+        }
+    }
+
+    @Test
+    public void testTileRenderedOnceAsMetatileAndSlicesCached() throws IOException {
+        List<WmsRequest> renders = Collections.synchronizedList(new ArrayList<WmsRequest>());
+        ImageCache cache = new ImageCache();
+        // zoom 1 has 4 x 2 tiles of 90 degrees so the red square covers a
+        // quarter of each tile of the metatile of columns 0-1 and rows 0-1
+        WmsRequestProcessor processor = WmsRequestProcessor.builder().imageCache(cache)
+                .addCachedLayer(LayerManagerTest.painting(LayerFeatures.builder().name("A"),
+                        Color.RED, -135, -45, -45, 45, renders))
+                .metatile(TileGrid.epsg4326(), 2).build();
+        WmsRequestProcessor direct = WmsRequestProcessor.builder()
+                .addCachedLayer(LayerManagerTest.painting(LayerFeatures.builder().name("A"),
+                        Color.RED, -135, -45, -45, 45, new ArrayList<WmsRequest>())).build();
+        try {
+            processor.getImage(ImageCacheTest.request("A", "-90,0,0,90"), true).release();
+            assertEquals(1, renders.size());
+            WmsRequest rendered = renders.get(0);
+            assertEquals(-180, rendered.getBounds().getMinX(), 0);
+            assertEquals(-90, rendered.getBounds().getMinY(), 0);
+            assertEquals(0, rendered.getBounds().getMaxX(), 0);
+            assertEquals(90, rendered.getBounds().getMaxY(), 0);
+            assertEquals(512, rendered.getWidth());
+            assertEquals(512, rendered.getHeight());
+            for (String bbox : new String[] { "-180,0,-90,90", "-90,0,0,90", "-180,-90,-90,0",
+                    "-90,-90,0,0" }) {
+                WmsRequest tile = ImageCacheTest.request("A", bbox);
+                byte[] cached = cache.get(tile);
+                assertNotNull(cached);
+                int[] pixels = pixels(cached);
+                assertEquals(128 * 128, countPainted(pixels));
+                CachedImage expected = direct.getImage(tile, false);
+                assertArrayEquals(pixels(expected.toByteArray()), pixels);
+                expected.release();
+            }
+            // a neighbouring tile is served from the cache
+            processor.getImage(ImageCacheTest.request("A", "-180,-90,-90,0"), true).release();
+            assertEquals(1, renders.size());
+        } finally {
+            processor.close();
+            direct.close();
+        }
+    }
+
+    @Test
+    public void testRequestNotForTileOfMetatileGridRenderedNormally() throws IOException {
+        List<WmsRequest> renders = Collections.synchronizedList(new ArrayList<WmsRequest>());
+        ImageCache cache = new ImageCache();
+        WmsRequestProcessor processor = WmsRequestProcessor.builder().imageCache(cache)
+                .addCachedLayer(LayerManagerTest.painting(LayerFeatures.builder().name("A"),
+                        Color.RED, -135, -45, -45, 45, renders))
+                .metatile(TileGrid.epsg4326(), 2).build();
+        try {
+            WmsRequest request = ImageCacheTest.request("A", "-100,0,-10,90");
+            processor.getImage(request, true).release();
+            assertEquals(1, renders.size());
+            assertEquals(request.getBounds(), renders.get(0).getBounds());
+            assertEquals(256, renders.get(0).getWidth());
+            assertNotNull(cache.get(request));
+            assertEquals(1, cache.stats().entries());
+        } finally {
+            processor.close();
+        }
+    }
+
+    @Test
+    public void testMetatileWithFailedLayerCachesNothing() throws IOException {
+        List<WmsRequest> renders = Collections.synchronizedList(new ArrayList<WmsRequest>());
+        ImageCache cache = new ImageCache();
+        WmsRequestProcessor processor = WmsRequestProcessor.builder().imageCache(cache)
+                .addCachedLayer(LayerManagerTest.painting(LayerFeatures.builder().name("A"),
+                        Color.RED, -135, -45, -45, 45, renders))
+                .addCachedLayer(LayerManagerTest.failing(LayerFeatures.builder().name("B")))
+                .metatile(TileGrid.epsg4326(), 2).build();
+        try {
+            processor.getImage(ImageCacheTest.request("A,B", "-90,0,0,90"), true).release();
+            // rendered as a metatile
+            assertEquals(1, renders.size());
+            assertEquals(512, renders.get(0).getWidth());
+            assertEquals(0, cache.stats().entries());
+        } finally {
+            processor.close();
+        }
+    }
+
+    @Test
+    public void testCacheableDecidedByPolicyOfEachLayer() {
+        CachePolicy small = CachePolicy.builder().maxSize(256, 256).build();
+        CachePolicy mercator = CachePolicy.builder().srs("EPSG:3857").build();
+        WmsRequestProcessor processor = WmsRequestProcessor.builder()
+                .addCachedLayer(LayerManagerTest.layer(LayerFeatures.builder().name("A")))
+                .addCachedLayer(LayerManagerTest.layer(LayerFeatures.builder().name("B")))
+                .addCachedLayer(LayerManagerTest.layer(LayerFeatures.builder().name("C")))
+                .addLayer(LayerManagerTest.layer(LayerFeatures.builder().name("D")))
+                .cachePolicy(small).cachePolicy("C", mercator).build();
+        try {
+            WmsRequest request = ImageCacheTest.request("A,B", "0,0,10,10");
+            // the policy decides whatever the client asked for
+            assertTrue(processor.isCacheable(request, false));
+            assertFalse(processor.isCacheable(request.modifySize(512, 512), true));
+            // the layer's own policy applies to it
+            assertFalse(processor.isCacheable(ImageCacheTest.request("A,C", "0,0,10,10"), true));
+            // not a cached layer
+            assertFalse(processor.isCacheable(ImageCacheTest.request("A,D", "0,0,10,10"), true));
+        } finally {
+            processor.close();
+        }
+    }
+
+    @Test
+    public void testCacheableAsRequestedWithoutPolicy() {
+        WmsRequestProcessor processor = WmsRequestProcessor.builder()
+                .addCachedLayer(LayerManagerTest.layer(LayerFeatures.builder().name("A")))
+                .build();
+        try {
+            WmsRequest request = ImageCacheTest.request("A", "0,0,10,10");
+            assertTrue(processor.isCacheable(request, true));
+            assertFalse(processor.isCacheable(request, false));
+        } finally {
+            processor.close();
+        }
+    }
+
+    @Test
+    public void testImageWithFailedLayerNotCached() throws IOException {
+        ImageCache cache = new ImageCache();
+        WmsRequestProcessor processor = WmsRequestProcessor.builder().imageCache(cache)
+                .addCachedLayer(LayerManagerTest.failing(LayerFeatures.builder().name("A")))
+                .build();
+        try {
+            WmsRequest request = ImageCacheTest.request("A", "0,0,10,10");
+            processor.getImage(request, true).release();
+            assertNull(cache.get(request));
+        } finally {
+            processor.close();
+        }
+    }
+
+    static int[] pixels(byte[] png) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0,
+                image.getWidth());
+    }
+
+    private static int countPainted(int[] pixels) {
+        int count = 0;
+        for (int pixel : pixels)
+            if (pixel >>> 24 != 0)
+                count++;
+        return count;
+    }
+
+    /**
+     * Returns a layer that draws nothing the first time it renders. Later
+     * renders (refreshes) wait for <code>refresh</code> then fill the image
+     * red.
+     */
+    private static Layer refreshing(LayerFeatures.Builder features, final AtomicInteger renders,
+            final CountDownLatch refresh) {
+        final LayerFeatures f = features.build();
+        return new Layer() {
+
+            @Override
+            public LayerFeatures getFeatures() {
+                return f;
+            }
+
+            @Override
+            public void render(Graphics2D g, WmsRequest request) {
+                if (renders.incrementAndGet() == 1)
+                    return;
+                try {
+                    refresh.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                g.setColor(Color.RED);
+                g.fillRect(0, 0, request.getWidth(), request.getHeight());
+            }
+
+            @Override
+            public String getInfo(Date time, WmsRequest request, Point point, String mimeType) {
+                return "";
+            }
+        };
+    }
+}
@@ -0,0 +1,275 @@
+package com.github.davidmoten.grumpy.wms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Test;
+
+public class WmsServletRequestProcessorTest {
+
+    @Test
+    public void testRejectedRenderReturnsServiceUnavailable() throws Exception {
+        // one render thread and one waiting render
+        final WmsRequestProcessor processor = WmsRequestProcessor.builder()
+                .addLayer(LayerManagerTest.blocking(LayerFeatures.builder().name("A"),
+                        new CountDownLatch(1))).renderThreads(1).renderQueueSize(1).build();
+        WmsServletRequestProcessor servlet = new WmsServletRequestProcessor(
+                new CapabilitiesProviderEmpty(), processor);
+        try {
+            // occupy the render thread then the queue
+            waitUntilWaiting(render(processor, "0,0,10,10"));
+            waitUntilWaiting(render(processor, "10,0,20,10"));
+            Response response = new Response();
+            servlet.doGet(getMap("20,0,30,10"), response.proxy());
+            assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, (int) response.error);
+            assertEquals("1", response.headers.get("Retry-After"));
+        } finally {
+            // interrupts the blocked layer
+            servlet.close();
+        }
+    }
+
+    @Test
+    public void testRejectedRenderNotGivenFreshnessLifetime() throws Exception {
+        final WmsRequestProcessor processor = WmsRequestProcessor.builder()
+                .addLayer(LayerManagerTest.blocking(LayerFeatures.builder().name("A"),
+                        new CountDownLatch(1))).renderThreads(1).renderQueueSize(1).build();
+        WmsServletRequestProcessor servlet = new WmsServletRequestProcessor(
+                new CapabilitiesProviderEmpty(), processor, false,
+                Collections.singletonMap("A", 3600L));
+        try {
+            waitUntilWaiting(render(processor, "0,0,10,10"));
+            waitUntilWaiting(render(processor, "10,0,20,10"));
+            Response response = new Response();
+            servlet.doGet(getMap("20,0,30,10"), response.proxy());
+            assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, (int) response.error);
+            assertEquals("no-store, no-cache, must-revalidate",
+                    response.headers.get("Cache-Control"));
+        } finally {
+            servlet.close();
+        }
+    }
+
+    @Test
+    public void testImageOfLayerWithMaxAgeIsPublic() throws Exception {
+        WmsRequestProcessor processor = WmsRequestProcessor.builder()
+                .addLayer(LayerManagerTest.layer(LayerFeatures.builder().name("A"))).build();
+        WmsServletRequestProcessor servlet = new WmsServletRequestProcessor(
+                new CapabilitiesProviderEmpty(), processor, false,
+                Collections.singletonMap("A", 3600L));
+        try {
+            Response response = new Response();
+            servlet.doGet(getMap("0,0,10,10"), response.proxy());
+            assertEquals("public, max-age=3600", response.headers.get("Cache-Control"));
+            assertNotNull(response.headers.get("ETag"));
+        } finally {
+            servlet.close();
+        }
+    }
+
+    @Test
+    public void testCacheableImageHasETagAndIsRevalidated() throws Exception {
+        WmsServletRequestProcessor servlet = WmsServletRequestProcessor.builder()
+                .addCachedLayer(LayerManagerTest.layer(LayerFeatures.builder().name("A")))
+                .build();
+        try {
+            Map<String, String> parameters = getMapParameters("0,0,10,10");
+            parameters.put("cacheImage", "true");
+            Response response = new Response();
+            servlet.doGet(request(parameters, Collections.<String, String> emptyMap()),
+                    response.proxy());
+            String etag = response.headers.get("ETag");
+            assertNotNull(etag);
+            assertTrue(response.body.size() > 0);
+            assertNull(response.status);
+
+            response = new Response();
+            servlet.doGet(request(parameters, Collections.singletonMap("If-None-Match", etag)),
+                    response.proxy());
+            assertEquals(HttpServletResponse.SC_NOT_MODIFIED, (int) response.status);
+            assertEquals(etag, response.headers.get("ETag"));
+            assertEquals(0, response.body.size());
+        } finally {
+            servlet.close();
+        }
+    }
+
+    @Test
+    public void testUncachedImageHasNoETag() throws Exception {
+        WmsServletRequestProcessor servlet = WmsServletRequestProcessor.builder()
+                .addLayer(LayerManagerTest.layer(LayerFeatures.builder().name("A"))).build();
+        try {
+            Response response = new Response();
+            servlet.doGet(request(getMapParameters("0,0,10,10"),
+                    Collections.singletonMap("If-None-Match", "*")), response.proxy());
+            assertNull(response.headers.get("ETag"));
+            // not revalidated
+            assertNull(response.status);
+            assertTrue(response.body.size() > 0);
+        } finally {
+            servlet.close();
+        }
+    }
+
+    @Test
+    public void testCacheStatsWrittenAsUtf8() throws Exception {
+        WmsServletRequestProcessor servlet = WmsServletRequestProcessor.builder()
+                .addCachedLayer(LayerManagerTest.layer(LayerFeatures.builder().name("A")))
+                .enableCacheStatsRequest().build();
+        try {
+            Response response = new Response();
+            servlet.doGet(request(Collections.singletonMap("REQUEST", "GetCacheStats"),
+                    Collections.<String, String> emptyMap()), response.proxy());
+            assertEquals("text/plain; charset=UTF-8", response.contentType);
+            String stats = new String(response.body.toByteArray(), StandardCharsets.UTF_8);
+            assertTrue(stats.startsWith("ImageCacheStats [hits=0, misses=0"));
+        } finally {
+            servlet.close();
+        }
+    }
+
+    @Test
+    public void testMatches() {
+        String etag = "\"0123456789abcdef\"";
+        assertTrue(WmsServletRequestProcessor.matches(etag, etag));
+        assertTrue(WmsServletRequestProcessor.matches("*", etag));
+        // weak comparison
+        assertTrue(WmsServletRequestProcessor.matches("W/" + etag, etag));
+        // one of a list
+        assertTrue(WmsServletRequestProcessor.matches("\"other\", " + etag, etag));
+        assertTrue(WmsServletRequestProcessor.matches("\"other\",W/" + etag + " ", etag));
+        assertFalse(WmsServletRequestProcessor.matches(null, etag));
+        assertFalse(WmsServletRequestProcessor.matches("", etag));
+        assertFalse(WmsServletRequestProcessor.matches("\"other\"", etag));
+        // quotes are part of the tag
+        assertFalse(WmsServletRequestProcessor.matches("0123456789abcdef", etag));
+    }
+
+    private static Thread render(final WmsRequestProcessor processor, final String bbox) {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    processor.getImage(ImageCacheTest.request("A", bbox), false).release();
+                } catch (IOException e) {
+                    // cancelled by close
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    static HttpServletRequest getMap(String bbox) {
+        return request(getMapParameters(bbox), Collections.<String, String> emptyMap());
+    }
+
+    /**
+     * Returns the parameters of a GetMap request for layer A.
+     */
+    static Map<String, String> getMapParameters(String bbox) {
+        Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put("REQUEST", "GetMap");
+        parameters.put("LAYERS", "A");
+        parameters.put("STYLES", "");
+        parameters.put("SRS", "EPSG:4326");
+        parameters.put("BBOX", bbox);
+        parameters.put("FORMAT", "image/png");
+        parameters.put("WIDTH", "256");
+        parameters.put("HEIGHT", "256");
+        parameters.put("VERSION", "1.1.1");
+        return parameters;
+    }
+
+    static HttpServletRequest request(final Map<String, String> parameters,
+            final Map<String, String> headers) {
+        return (HttpServletRequest) Proxy.newProxyInstance(
+                WmsServletRequestProcessorTest.class.getClassLoader(),
+                new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String name = method.getName();
+                        if (name.equals("getParameter"))
+                            return parameters.get(args[0]);
+                        else if (name.equals("getParameterNames"))
+                            return Collections.enumeration(parameters.keySet());
+                        else if (name.equals("getHeader"))
+                            return headers.get(args[0]);
+                        else if (name.equals("getRequestURL"))
+                            return new StringBuffer("http://localhost/wms");
+                        else
+                            return null;
+                    }
+                });
+    }
+
+    /**
+     * Records the status and headers set on a response.
+     */
+    static final class Response {
+
+        final Map<String, String> headers = new HashMap<String, String>();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        String contentType;
+        Integer error;
+        Integer status;
+
+        HttpServletResponse proxy() {
+            return (HttpServletResponse) Proxy.newProxyInstance(
+                    WmsServletRequestProcessorTest.class.getClassLoader(),
+                    new Class<?>[] { HttpServletResponse.class }, new InvocationHandler() {
+                        @Override
+                        public Object invoke(Object proxy, Method method, Object[] args) {
+                            String name = method.getName();
+                            if (name.equals("setHeader"))
+                                headers.put((String) args[0], (String) args[1]);
+                            else if (name.equals("sendError"))
+                                error = (Integer) args[0];
+                            else if (name.equals("setContentType"))
+                                contentType = (String) args[0];
+                            else if (name.equals("setStatus"))
+                                status = (Integer) args[0];
+                            else if (name.equals("isCommitted"))
+                                return false;
+                            else if (name.equals("getOutputStream"))
+                                return new ServletOutputStream() {
+                                    @Override
+                                    public void write(int b) {
+                                        body.write(b);
+                                    }
+                                };
+                            return null;
+                        }
+                    });
+        }
+    }
+
+    private static void waitUntilWaiting(Thread thread) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (thread.getState() != Thread.State.WAITING) {
+            if (System.currentTimeMillis() > deadline)
+                fail("thread did not wait");
+            Thread.sleep(1);
+        }
+    }
+}
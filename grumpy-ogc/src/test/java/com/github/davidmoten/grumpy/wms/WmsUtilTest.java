@@ -0,0 +1,102 @@
+package com.github.davidmoten.grumpy.wms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.github.davidmoten.grumpy.core.Position;
+import com.github.davidmoten.grumpy.projection.FeatureUtil;
+import com.github.davidmoten.grumpy.projection.ProjectorBounds;
+
+public class WmsUtilTest {
+
+    private static final double PRECISION = 0.000001;
+
+    @Test
+    public void testRingEnvelope() {
+        ProjectorBounds b = WmsUtil.toLatLonBounds(ring(10, 20, 30, 40), false, false);
+        assertBounds(b, 10, 20, 30, 40);
+    }
+
+    @Test
+    public void testRingCrossingAntimeridianCoversAllLongitudes() {
+        List<Position> ring = ring(170, -10, 179, 10);
+        // replace the right edge with one beyond the antimeridian
+        ring.set(1, new Position(-10, -175));
+        ring.set(2, new Position(10, -175));
+        ProjectorBounds b = WmsUtil.toLatLonBounds(ring, false, false);
+        assertBounds(b, -180, -10, 180, 10);
+    }
+
+    @Test
+    public void testRingBeyondLongitude180CoversAllLongitudes() {
+        ProjectorBounds b = WmsUtil.toLatLonBounds(ring(170, -10, 190, 10), false, false);
+        assertBounds(b, -180, -10, 180, 10);
+    }
+
+    @Test
+    public void testRingAroundPoleCoversPole() {
+        ProjectorBounds b = WmsUtil.toLatLonBounds(ring(-20, 60, 20, 70), true, false);
+        assertBounds(b, -180, 60, 180, 90);
+    }
+
+    @Test
+    public void testRingWithUnconvertiblePointCoversWorld() {
+        List<Position> ring = ring(10, 20, 30, 40);
+        ring.set(1, new Position(Double.NaN, Double.NaN));
+        assertBounds(WmsUtil.toLatLonBounds(ring, false, false), -180, -90, 180, 90);
+    }
+
+    @Test
+    public void testGeographicBoundsBeyondAntimeridianIntersect() {
+        ProjectorBounds request = new ProjectorBounds(FeatureUtil.EPSG_4326, 170, -10, 200, 10);
+        ProjectorBounds extent = new ProjectorBounds(FeatureUtil.EPSG_4326, -180, -10, -170, 10);
+        assertTrue(WmsUtil.intersects(request, extent));
+        ProjectorBounds other = new ProjectorBounds(FeatureUtil.EPSG_4326, 0, -10, 10, 10);
+        assertFalse(WmsUtil.intersects(extent, other));
+    }
+
+    @Test
+    public void testBoundsInSameCrsComparedInThatCrs() {
+        ProjectorBounds a = new ProjectorBounds(FeatureUtil.EPSG_3857, 0, 0, 1000, 1000);
+        ProjectorBounds b = new ProjectorBounds(FeatureUtil.EPSG_3857, 500, 500, 2000, 2000);
+        ProjectorBounds c = new ProjectorBounds(FeatureUtil.EPSG_3857, 1500, 0, 2000, 1000);
+        assertTrue(WmsUtil.intersects(a, b));
+        assertFalse(WmsUtil.intersects(a, c));
+    }
+
+    @Test
+    public void testGivenGeographicBoundsUsedInsteadOfConverting() {
+        ProjectorBounds extent = new ProjectorBounds(FeatureUtil.EPSG_4326, 0, 0, 10, 10);
+        ProjectorBounds request = new ProjectorBounds(FeatureUtil.EPSG_3857, -2000000, -2000000,
+                -1000000, -1000000);
+        assertTrue(WmsUtil.intersects(extent, request,
+                new ProjectorBounds(FeatureUtil.EPSG_4326, 5, 5, 15, 15)));
+        assertFalse(WmsUtil.intersects(extent, request,
+                new ProjectorBounds(FeatureUtil.EPSG_4326, 20, 5, 30, 15)));
+    }
+
+    private static void assertBounds(ProjectorBounds b, double minLon, double minLat,
+            double maxLon, double maxLat) {
+        assertEquals(minLon, b.getMinX(), PRECISION);
+        assertEquals(minLat, b.getMinY(), PRECISION);
+        assertEquals(maxLon, b.getMaxX(), PRECISION);
+        assertEquals(maxLat, b.getMaxY(), PRECISION);
+    }
+
+    private static List<Position> ring(double minLon, double minLat, double maxLon,
+            double maxLat) {
+        List<Position> ring = new ArrayList<Position>();
+        ring.add(new Position(minLat, minLon));
+        ring.add(new Position(minLat, maxLon));
+        ring.add(new Position(maxLat, maxLon));
+        ring.add(new Position(maxLat, minLon));
+        ring.add(new Position(minLat, minLon));
+        return ring;
+    }
+}
@@ -31,6 +31,13 @@ public final class WmsServlet extends HttpServlet {
         processor.doGet(req, resp);
     }
 
+    @Override
+    public void destroy() {
+        // stop the render threads and close the image cache
+        if (processor != null)
+            processor.close();
+    }
+
     private void load(String serviceBaseUrl) {
         if (processor != null)
             return;